@@ -20,6 +20,7 @@ import static android.net.ConnectivityManager.TYPE_ETHERNET;
 import static android.net.ConnectivityManager.TYPE_MOBILE;
 import static android.net.ConnectivityManager.TYPE_WIFI;
 import static android.net.ConnectivityManager.TYPE_WIMAX;
+import static android.net.NetworkPolicy.CYCLE_NONE;
 import static android.net.NetworkPolicy.LIMIT_DISABLED;
 import static android.net.NetworkPolicy.WARNING_DISABLED;
 import static android.net.NetworkPolicyManager.EXTRA_NETWORK_TEMPLATE;
@@ -38,8 +39,6 @@ import static android.net.NetworkTemplate.buildTemplateMobileAll;
 import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
 import static android.net.TrafficStats.GB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static android.text.format.DateUtils.FORMAT_ABBREV_MONTH;
 import static android.text.format.DateUtils.FORMAT_SHOW_DATE;
@@ -73,7 +72,6 @@ import android.net.INetworkStatsService;
 import android.net.INetworkStatsSession;
 import android.net.NetworkPolicy;
 import android.net.NetworkPolicyManager;
-import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.TrafficStats;
@@ -86,7 +84,6 @@ import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
 import android.os.UserHandle;
-import android.os.UserManager;
 import android.preference.Preference;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
@@ -94,7 +91,6 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.text.format.Time;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -125,9 +121,12 @@ import android.widget.TextView;
 
 import com.android.internal.telephony.PhoneConstants;
 import com.android.settings.drawable.InsetBoundsDrawable;
+import com.android.settings.net.AppUsageList;
 import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
+import com.android.settings.net.CycleSummaryCache;
 import com.android.settings.net.DataUsageMeteredSettings;
+import com.android.settings.net.NetworkHistoryCache;
 import com.android.settings.net.NetworkPolicyEditor;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
@@ -142,7 +141,7 @@ import com.google.android.collect.Lists;
 import libcore.util.Objects;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
@@ -191,6 +190,13 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     private TelephonyManager mTelephonyManager;
 
     private INetworkStatsSession mStatsSession;
+    private NetworkHistoryCache mHistoryCache;
+    private CycleSummaryCache mCycleSummaryCache;
+
+    // Template and policy cycle the cached cycle summaries were computed for.
+    private NetworkTemplate mSummaryTemplate;
+    private int mSummaryCycleDay;
+    private String mSummaryCycleTimezone;
 
     private static final String PREF_FILE = "data_usage";
     private static final String PREF_SHOW_WIFI = "show_wifi";
@@ -295,6 +301,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
 
         try {
             mStatsSession = mStatsService.openSession();
+            mHistoryCache = new NetworkHistoryCache(mStatsSession);
+            mCycleSummaryCache = new CycleSummaryCache(mStatsSession);
         } catch (RemoteException e) {
             throw new RuntimeException(e);
         }
@@ -417,8 +425,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         mEmpty = (TextView) mHeader.findViewById(android.R.id.empty);
         mStupidPadding = mHeader.findViewById(R.id.stupid_padding);
 
-        final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
-        mAdapter = new DataUsageAdapter(um, mUidDetailProvider, mInsetSide);
+        mAdapter = new DataUsageAdapter(mUidDetailProvider, mInsetSide);
         mListView.setOnItemClickListener(mListListener);
         mListView.setAdapter(mAdapter);
 
@@ -457,6 +464,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                     // wait a few seconds before kicking off
                     Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
                     mStatsService.forceUpdate();
+                    mHistoryCache.invalidate();
+                    mCycleSummaryCache.invalidate();
                 } catch (InterruptedException e) {
                 } catch (RemoteException e) {
                 }
@@ -603,6 +612,9 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         mUidDetailProvider.clearCache();
         mUidDetailProvider = null;
 
+        // Drop the reads still queued against the session before closing it
+        mCycleSummaryCache.invalidate();
+        mHistoryCache.invalidate();
         TrafficStats.closeQuietly(mStatsSession);
 
         super.onDestroy();
@@ -1056,6 +1068,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             mCycleAdapter.setChangePossible(false);
         }
 
+        prefetchCycleSummaries(policy);
+
         // force pick the current cycle (first item)
         if (mCycleAdapter.getCount() > 0) {
             final int position = mCycleAdapter.findNearestPosition(previousItem);
@@ -1075,6 +1089,40 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         }
     }
 
+    /**
+     * Compute in the background the app usage of the cycles of
+     * {@link #mCycleAdapter}, so that switching cycles does not wait for it.
+     */
+    private void prefetchCycleSummaries(NetworkPolicy policy) {
+        final int cycleDay = policy != null ? policy.cycleDay : CYCLE_NONE;
+        final String cycleTimezone = policy != null ? policy.cycleTimezone : null;
+        if (!Objects.equal(mSummaryTemplate, mTemplate) || mSummaryCycleDay != cycleDay
+                || !Objects.equal(mSummaryCycleTimezone, cycleTimezone)) {
+            mCycleSummaryCache.invalidate();
+            mSummaryTemplate = mTemplate;
+            mSummaryCycleDay = cycleDay;
+            mSummaryCycleTimezone = cycleTimezone;
+        }
+        if (isAppDetailMode()) {
+            return;
+        }
+
+        final int count = mCycleAdapter.getCount();
+        final long[] starts = new long[count];
+        final long[] ends = new long[count];
+        int cycles = 0;
+        for (int i = 0; i < count; i++) {
+            final CycleItem cycle = mCycleAdapter.getItem(i);
+            if (!(cycle instanceof CycleChangeItem)) {
+                starts[cycles] = cycle.start;
+                ends[cycles] = cycle.end;
+                cycles++;
+            }
+        }
+        mCycleSummaryCache.prefetch(mTemplate, Arrays.copyOf(starts, cycles),
+                Arrays.copyOf(ends, cycles));
+    }
+
     private View.OnClickListener mDataEnabledListener = new View.OnClickListener() {
         @Override
         public void onClick(View v) {
@@ -1244,7 +1292,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             ChartData>() {
         @Override
         public Loader<ChartData> onCreateLoader(int id, Bundle args) {
-            return new ChartDataLoader(getActivity(), mStatsSession, args);
+            return new ChartDataLoader(getActivity(), mHistoryCache, args);
         }
 
         @Override
@@ -1271,24 +1319,22 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         }
     };
 
-    private final LoaderCallbacks<NetworkStats> mSummaryCallbacks = new LoaderCallbacks<
-            NetworkStats>() {
+    private final LoaderCallbacks<AppUsageList> mSummaryCallbacks = new LoaderCallbacks<
+            AppUsageList>() {
         @Override
-        public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
-            return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
+        public Loader<AppUsageList> onCreateLoader(int id, Bundle args) {
+            return new SummaryForAllUidLoader(getActivity(), mCycleSummaryCache, args);
         }
 
         @Override
-        public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
-                    POLICY_REJECT_METERED_BACKGROUND);
-            mAdapter.bindStats(data, restrictedUids);
+        public void onLoadFinished(Loader<AppUsageList> loader, AppUsageList data) {
+            mAdapter.bindStats(data);
             updateEmptyVisible();
         }
 
         @Override
-        public void onLoaderReset(Loader<NetworkStats> loader) {
-            mAdapter.bindStats(null, new int[0]);
+        public void onLoaderReset(Loader<AppUsageList> loader) {
+            mAdapter.bindStats(null);
             updateEmptyVisible();
         }
 
@@ -1528,117 +1574,38 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     public static class DataUsageAdapter extends BaseAdapter {
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
-        private final UserManager mUm;
 
-        private ArrayList<AppItem> mItems = Lists.newArrayList();
+        private List<AppItem> mItems = AppUsageList.EMPTY.items;
         private long mLargest;
 
-        public DataUsageAdapter(final UserManager userManager, UidDetailProvider provider, int insetSide) {
+        public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
             mProvider = checkNotNull(provider);
             mInsetSide = insetSide;
-            mUm = userManager;
         }
 
         /**
-         * Bind the given {@link NetworkStats}, or {@code null} to clear list.
+         * Bind the given {@link AppUsageList}, or {@code null} to clear list.
          */
-        public void bindStats(NetworkStats stats, int[] restrictedUids) {
-            mItems.clear();
-            mLargest = 0;
-
-            final int currentUserId = ActivityManager.getCurrentUser();
-            final List<UserHandle> profiles = mUm.getUserProfiles();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-            NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
-            for (int i = 0; i < size; i++) {
-                entry = stats.getValues(i, entry);
-
-                // Decide how to collapse items together
-                final int uid = entry.uid;
-
-                final int collapseKey;
-                final int category;
-                final int userId = UserHandle.getUserId(uid);
-                if (UserHandle.isApp(uid)) {
-                    if (profiles.contains(new UserHandle(userId))) {
-                        if (userId != currentUserId) {
-                            // Add to a managed user item.
-                            final int managedKey = UidDetailProvider.buildKeyForUser(userId);
-                            accumulate(managedKey, knownItems, entry,
-                                    AppItem.CATEGORY_USER);
-                        }
-                        // Add to app item.
-                        collapseKey = uid;
-                        category = AppItem.CATEGORY_APP;
-                    } else {
-                        // Add to other user item.
-                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
-                        category = AppItem.CATEGORY_USER;
-                    }
-                } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                    collapseKey = uid;
-                    category = AppItem.CATEGORY_APP;
-                } else {
-                    collapseKey = android.os.Process.SYSTEM_UID;
-                    category = AppItem.CATEGORY_APP;
-                }
-                accumulate(collapseKey, knownItems, entry, category);
-            }
-
-            final int restrictedUidsMax = restrictedUids.length;
-            for (int i = 0; i < restrictedUidsMax; ++i) {
-                final int uid = restrictedUids[i];
-                // Only splice in restricted state for current user or managed users
-                if (!profiles.contains(new UserHandle(UserHandle.getUserId(uid)))) {
-                    continue;
-                }
-
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
-                    item = new AppItem(uid);
-                    item.total = -1;
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.restricted = true;
+        public void bindStats(AppUsageList usage) {
+            if (usage == null) {
+                usage = AppUsageList.EMPTY;
             }
-
-            if (!mItems.isEmpty()) {
-                final AppItem title = new AppItem();
-                title.category = AppItem.CATEGORY_APP_TITLE;
-                mItems.add(title);
-            }
-
-            Collections.sort(mItems);
+            mItems = usage.items;
+            mLargest = usage.largest;
             notifyDataSetChanged();
-        }
 
-        /**
-         * Accumulate data usage of a network stats entry for the item mapped by the collapse key.
-         * Creates the item if needed.
-         *
-         * @param collapseKey the collapse key used to map the item.
-         * @param knownItems collection of known (already existing) items.
-         * @param entry the network stats entry to extract data usage from.
-         * @param itemCategory the item is categorized on the list view by this category. Must be
-         *            either AppItem.APP_ITEM_CATEGORY or AppItem.MANAGED_USER_ITEM_CATEGORY
-         */
-        private void accumulate(int collapseKey, final SparseArray<AppItem> knownItems,
-                NetworkStats.Entry entry, int itemCategory) {
-            final int uid = entry.uid;
-            AppItem item = knownItems.get(collapseKey);
-            if (item == null) {
-                item = new AppItem(collapseKey);
-                item.category = itemCategory;
-                mItems.add(item);
-                knownItems.put(item.key, item);
+            // Resolve the labels and icons of the whole list at once, rather than
+            // one row at a time while scrolling.
+            final int[] keys = new int[mItems.size()];
+            int count = 0;
+            for (int i = 0; i < mItems.size(); i++) {
+                final AppItem item = mItems.get(i);
+                if (item.category != AppItem.CATEGORY_APP_TITLE) {
+                    keys[count++] = item.key;
+                }
             }
-            item.addUid(uid);
-            item.total += entry.rxBytes + entry.txBytes;
-            if (mLargest < item.total) {
-                mLargest = item.total;
+            if (count > 0) {
+                mProvider.prefetch(Arrays.copyOf(keys, count));
             }
         }
 
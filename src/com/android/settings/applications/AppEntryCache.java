@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.graphics.drawable.Drawable;
+import android.os.UserHandle;
+import android.util.Log;
+
+import com.android.settings.util.IconDiskCache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * On-disk cache of what is slow to compute for an {@link ApplicationsState.AppEntry}: its
+ * label, its icon and its sizes, so that the apps list can be shown fully populated right
+ * after a process restart while they are refreshed in the background.
+ *
+ * The labels and sizes of all the applications are kept in the index of an
+ * {@link IconDiskCache}, and their icons in its icon files, named after the package. A cached
+ * entry is only used if the application has not been updated since, which is checked against
+ * its APK path and modification time.
+ *
+ * Not thread safe: except for {@link #get(ApplicationInfo)} and {@link #loadIcon(Record)},
+ * it must only be used from the ApplicationsState loader thread.
+ */
+class AppEntryCache {
+    static final String TAG = "AppEntryCache";
+
+    private static final int MAGIC = 0x41504543; // "APEC"
+    private static final int VERSION = 1;
+
+    private static final String INDEX_FILE_NAME = "app_entries";
+    private static final String ICONS_DIR_NAME = "app_entry_icons";
+
+    /**
+     * What is cached for one application.
+     */
+    static class Record {
+        final String packageName;
+        final String sourceDir;
+        final long apkModified;
+        final int userId;
+
+        String label;
+        boolean hasIcon;
+
+        long size = ApplicationsState.SIZE_UNKNOWN;
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long externalCacheSize;
+        long internalSize;
+        long externalSize;
+
+        Record(String packageName, String sourceDir, long apkModified, int userId) {
+            this.packageName = packageName;
+            this.sourceDir = sourceDir;
+            this.apkModified = apkModified;
+            this.userId = userId;
+        }
+
+        boolean isValidFor(ApplicationInfo info, long apkModified) {
+            return userId == UserHandle.myUserId()
+                    && this.apkModified == apkModified
+                    && sourceDir.equals(info.sourceDir);
+        }
+    }
+
+    private final IconDiskCache mFiles;
+
+    // Written on the loader thread only, once loaded.
+    private volatile HashMap<String, Record> mRecords;
+    private String mConfigKey;
+    private boolean mDirty;
+
+    AppEntryCache(Context context) {
+        mFiles = new IconDiskCache(context, TAG, INDEX_FILE_NAME, ICONS_DIR_NAME, MAGIC,
+                VERSION);
+    }
+
+    /**
+     * Read the index file if it has not been read yet, or drop the records if the
+     * configuration has changed since.
+     */
+    void ensureLoaded() {
+        String configKey = mFiles.getConfigKey();
+        if (mRecords != null) {
+            if (!configKey.equals(mConfigKey)) {
+                mRecords = new HashMap<String, Record>();
+                mConfigKey = configKey;
+                mDirty = true;
+            }
+            return;
+        }
+        HashMap<String, Record> records = new HashMap<String, Record>();
+        try {
+            readIndex(records, configKey);
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read the cached app entries", e);
+            records.clear();
+            mDirty = true;
+        }
+        mConfigKey = configKey;
+        mRecords = records;
+    }
+
+    private void readIndex(HashMap<String, Record> records, String configKey)
+            throws IOException {
+        DataInputStream in = mFiles.openIndex(configKey);
+        if (in == null) {
+            mDirty = true;
+            return;
+        }
+        try {
+            int count = in.readInt();
+            for (int i=0; i<count; i++) {
+                Record record = new Record(in.readUTF(), in.readUTF(), in.readLong(),
+                        in.readInt());
+                record.label = in.readBoolean() ? in.readUTF() : null;
+                record.hasIcon = in.readBoolean();
+                record.size = in.readLong();
+                record.cacheSize = in.readLong();
+                record.codeSize = in.readLong();
+                record.dataSize = in.readLong();
+                record.externalCodeSize = in.readLong();
+                record.externalDataSize = in.readLong();
+                record.externalCacheSize = in.readLong();
+                record.internalSize = in.readLong();
+                record.externalSize = in.readLong();
+                records.put(record.packageName, record);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the cached record of an application, or null if there is none or if the
+     * application has been updated since it was cached
+     */
+    Record get(ApplicationInfo info) {
+        HashMap<String, Record> records = mRecords;
+        if (records == null) {
+            return null;
+        }
+        Record record = records.get(info.packageName);
+        if (record == null || !record.isValidFor(info, new File(info.sourceDir).lastModified())) {
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * @return the cached icon of a record, or null if it cannot be read
+     */
+    Drawable loadIcon(Record record) {
+        if (!record.hasIcon) {
+            return null;
+        }
+        return mFiles.loadIcon(record.packageName);
+    }
+
+    /**
+     * Update the cache from the current entries, writing the icons that are not cached yet.
+     * The index file is only written if something has changed.
+     */
+    void update(List<ApplicationsState.AppEntry> entries) {
+        ensureLoaded();
+        HashMap<String, Record> records = new HashMap<String, Record>(entries.size());
+        for (int i=0; i<entries.size(); i++) {
+            ApplicationsState.AppEntry entry = entries.get(i);
+            Record record;
+            Drawable icon;
+            synchronized (entry) {
+                if (!entry.mounted || entry.label == null) {
+                    continue;
+                }
+                ApplicationInfo info = entry.info;
+                record = new Record(info.packageName, info.sourceDir,
+                        entry.apkFile.lastModified(), UserHandle.myUserId());
+                record.label = entry.label;
+                record.size = entry.size;
+                record.cacheSize = entry.cacheSize;
+                record.codeSize = entry.codeSize;
+                record.dataSize = entry.dataSize;
+                record.externalCodeSize = entry.externalCodeSize;
+                record.externalDataSize = entry.externalDataSize;
+                record.externalCacheSize = entry.externalCacheSize;
+                record.internalSize = entry.internalSize;
+                record.externalSize = entry.externalSize;
+                icon = entry.icon;
+            }
+
+            Record old = mRecords.get(record.packageName);
+            boolean sameApk = old != null && old.apkModified == record.apkModified
+                    && old.sourceDir.equals(record.sourceDir);
+            record.hasIcon = sameApk && old.hasIcon;
+            if (!record.hasIcon && icon != null) {
+                record.hasIcon = mFiles.writeIcon(record.packageName, icon);
+            }
+            if (!sameApk || !isSame(old, record)) {
+                mDirty = true;
+            }
+            records.put(record.packageName, record);
+        }
+        if (records.size() != mRecords.size()) {
+            mDirty = true;
+        }
+        mRecords = records;
+
+        if (mDirty) {
+            writeIndex();
+            deleteStaleIcons();
+        }
+    }
+
+    private static boolean isSame(Record a, Record b) {
+        return a.label != null && a.label.equals(b.label) && a.hasIcon == b.hasIcon
+                && a.size == b.size && a.cacheSize == b.cacheSize && a.codeSize == b.codeSize
+                && a.dataSize == b.dataSize && a.externalCodeSize == b.externalCodeSize
+                && a.externalDataSize == b.externalDataSize
+                && a.externalCacheSize == b.externalCacheSize
+                && a.internalSize == b.internalSize && a.externalSize == b.externalSize;
+    }
+
+    private void writeIndex() {
+        final HashMap<String, Record> records = mRecords;
+        final boolean written = mFiles.writeIndex(mConfigKey, new IconDiskCache.IndexWriter() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(records.size());
+                for (Record record : records.values()) {
+                    out.writeUTF(record.packageName);
+                    out.writeUTF(record.sourceDir);
+                    out.writeLong(record.apkModified);
+                    out.writeInt(record.userId);
+                    out.writeBoolean(record.label != null);
+                    if (record.label != null) {
+                        out.writeUTF(record.label);
+                    }
+                    out.writeBoolean(record.hasIcon);
+                    out.writeLong(record.size);
+                    out.writeLong(record.cacheSize);
+                    out.writeLong(record.codeSize);
+                    out.writeLong(record.dataSize);
+                    out.writeLong(record.externalCodeSize);
+                    out.writeLong(record.externalDataSize);
+                    out.writeLong(record.externalCacheSize);
+                    out.writeLong(record.internalSize);
+                    out.writeLong(record.externalSize);
+                }
+            }
+        });
+        if (written) {
+            mDirty = false;
+        }
+    }
+
+    private void deleteStaleIcons() {
+        HashSet<String> names = new HashSet<String>(mRecords.size());
+        for (Record record : mRecords.values()) {
+            if (record.hasIcon) {
+                names.add(record.packageName);
+            }
+        }
+        mFiles.deleteStaleIcons(names);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Index of the names of a list of applications, for filtering it as the user types.
+ *
+ * A query matches an entry if it appears anywhere in its normalized label or in its package
+ * name, whatever its length. All the substrings of one to three characters of both are
+ * indexed: a query of up to three characters is looked up directly, a longer one by the
+ * least common of its trigrams, before checking the candidates.
+ *
+ * The index is updated incrementally: only the entries added to or removed from the list, or
+ * whose label changed, are (re)indexed. All the methods are thread safe, as filtering happens
+ * on a background thread.
+ */
+class AppNameIndex {
+    private static final int GRAM_LENGTH = 3;
+
+    private static class IndexedEntry {
+        final String label;
+        final String packageName;
+        final String[] keys;
+
+        IndexedEntry(String label, String packageName, String[] keys) {
+            this.label = label;
+            this.packageName = packageName;
+            this.keys = keys;
+        }
+
+        boolean matches(String query) {
+            return label.indexOf(query) != -1 || packageName.indexOf(query) != -1;
+        }
+    }
+
+    private final HashMap<String, HashSet<AppEntry>> mPostings
+            = new HashMap<String, HashSet<AppEntry>>();
+    private final HashMap<AppEntry, IndexedEntry> mIndexed
+            = new HashMap<AppEntry, IndexedEntry>();
+
+    // The current list and the position of each of its entries.
+    private ArrayList<AppEntry> mEntries;
+    private final HashMap<AppEntry, Integer> mPositions = new HashMap<AppEntry, Integer>();
+
+    /**
+     * Make the index reflect a new list of entries.
+     */
+    synchronized void update(ArrayList<AppEntry> entries) {
+        if (entries == null) {
+            entries = new ArrayList<AppEntry>();
+        }
+        mEntries = entries;
+        mPositions.clear();
+        for (int i=0; i<entries.size(); i++) {
+            mPositions.put(entries.get(i), i);
+        }
+
+        // Drop the entries that are not in the list anymore...
+        ArrayList<AppEntry> removed = new ArrayList<AppEntry>();
+        for (AppEntry entry : mIndexed.keySet()) {
+            if (!mPositions.containsKey(entry)) {
+                removed.add(entry);
+            }
+        }
+        for (int i=0; i<removed.size(); i++) {
+            remove(removed.get(i));
+        }
+
+        // ...and index the new or renamed ones.
+        for (int i=0; i<entries.size(); i++) {
+            AppEntry entry = entries.get(i);
+            String label = entry.getNormalizedLabel();
+            IndexedEntry indexed = mIndexed.get(entry);
+            if (indexed != null && indexed.label.equals(label)) {
+                continue;
+            }
+            if (indexed != null) {
+                remove(entry);
+            }
+            add(entry, label);
+        }
+    }
+
+    private void add(AppEntry entry, String label) {
+        String packageName = entry.info.packageName.toLowerCase();
+        HashSet<String> keys = new HashSet<String>();
+        addGrams(keys, label);
+        addGrams(keys, packageName);
+        for (String key : keys) {
+            HashSet<AppEntry> posting = mPostings.get(key);
+            if (posting == null) {
+                posting = new HashSet<AppEntry>();
+                mPostings.put(key, posting);
+            }
+            posting.add(entry);
+        }
+        mIndexed.put(entry, new IndexedEntry(label, packageName,
+                keys.toArray(new String[keys.size()])));
+    }
+
+    private void remove(AppEntry entry) {
+        IndexedEntry indexed = mIndexed.remove(entry);
+        for (String key : indexed.keys) {
+            HashSet<AppEntry> posting = mPostings.get(key);
+            posting.remove(entry);
+            if (posting.isEmpty()) {
+                mPostings.remove(key);
+            }
+        }
+    }
+
+    private static void addGrams(HashSet<String> keys, String text) {
+        for (int i=0; i<text.length(); i++) {
+            for (int j=i+1; j<=text.length() && j-i<=GRAM_LENGTH; j++) {
+                keys.add(text.substring(i, j));
+            }
+        }
+    }
+
+    /**
+     * @param query a query normalized with {@link ApplicationsState#normalize(String)}
+     * @param entries the list to filter; if it is not the one last indexed, it is scanned
+     * @return the entries of the list matching the query, in the order of the list
+     */
+    synchronized ArrayList<AppEntry> filter(String query, ArrayList<AppEntry> entries) {
+        if (entries == null || query.length() == 0) {
+            return entries;
+        }
+        if (entries != mEntries) {
+            return scan(query, entries);
+        }
+
+        // Only look at the entries having the least common key of the query.
+        HashSet<AppEntry> candidates = null;
+        if (query.length() <= GRAM_LENGTH) {
+            candidates = mPostings.get(query);
+        } else {
+            for (int i=0; i+GRAM_LENGTH<=query.length(); i++) {
+                HashSet<AppEntry> posting = mPostings.get(query.substring(i, i+GRAM_LENGTH));
+                if (posting == null) {
+                    candidates = null;
+                    break;
+                }
+                if (candidates == null || posting.size() < candidates.size()) {
+                    candidates = posting;
+                }
+            }
+        }
+        if (candidates == null) {
+            return new ArrayList<AppEntry>();
+        }
+
+        int[] positions = new int[candidates.size()];
+        int count = 0;
+        for (AppEntry entry : candidates) {
+            if (mIndexed.get(entry).matches(query)) {
+                positions[count++] = mPositions.get(entry);
+            }
+        }
+        Arrays.sort(positions, 0, count);
+
+        ArrayList<AppEntry> result = new ArrayList<AppEntry>(count);
+        for (int i=0; i<count; i++) {
+            result.add(mEntries.get(positions[i]));
+        }
+        return result;
+    }
+
+    private static ArrayList<AppEntry> scan(String query, ArrayList<AppEntry> entries) {
+        ArrayList<AppEntry> result = new ArrayList<AppEntry>();
+        for (int i=0; i<entries.size(); i++) {
+            AppEntry entry = entries.get(i);
+            if (entry.getNormalizedLabel().indexOf(query) != -1
+                    || entry.info.packageName.toLowerCase().indexOf(query) != -1) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+}
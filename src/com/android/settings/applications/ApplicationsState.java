@@ -22,15 +22,31 @@ import android.os.UserHandle;
 import android.text.format.Formatter;
 import android.util.Log;
 
+import com.android.settings.R;
+
 import java.io.File;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -45,7 +61,7 @@ public class ApplicationsState {
     public static interface Callbacks {
         public void onRunningStateChanged(boolean running);
         public void onPackageListChanged();
-        public void onRebuildComplete(ArrayList<AppEntry> apps);
+        public void onRebuildComplete(ArrayList<AppEntry> apps, ChangeSet changes);
         public void onPackageIconChanged();
         public void onPackageSizeChanged(String packageName);
         public void onAllSizesComputed();
@@ -115,15 +131,55 @@ public class ApplicationsState {
 
         String normalizedLabel;
 
-        AppEntry(Context context, ApplicationInfo info, long id) {
+        // Collation key of the label, see getLabelCollationKey().
+        CollationKey labelCollationKey;
+
+        // What was cached on disk for this entry, until its icon is loaded.
+        AppEntryCache.Record cached;
+
+        AppEntry(Context context, ApplicationInfo info, long id,
+                AppEntryCache.Record cached) {
             apkFile = new File(info.sourceDir);
             this.id = id;
             this.info = info;
             this.size = SIZE_UNKNOWN;
             this.sizeStale = true;
+            if (cached != null) {
+                // The cache is only valid while the APK is unchanged, so it
+                // is mounted.
+                this.cached = cached;
+                this.label = cached.label;
+                this.mounted = true;
+                this.size = cached.size;
+                this.cacheSize = cached.cacheSize;
+                this.codeSize = cached.codeSize;
+                this.dataSize = cached.dataSize;
+                this.externalCodeSize = cached.externalCodeSize;
+                this.externalDataSize = cached.externalDataSize;
+                this.externalCacheSize = cached.externalCacheSize;
+                this.internalSize = cached.internalSize;
+                this.externalSize = cached.externalSize;
+            }
             ensureLabel(context);
         }
         
+        /**
+         * Comparing collation keys is much cheaper than comparing the labels
+         * with the collator, so sorts use them.  The key is recomputed when
+         * the label changes.
+         */
+        CollationKey getLabelCollationKey() {
+            String label = this.label;
+            CollationKey key = labelCollationKey;
+            if (key == null || !key.getSourceString().equals(label)) {
+                synchronized (sCollator) {
+                    key = sCollator.getCollationKey(label);
+                }
+                labelCollationKey = key;
+            }
+            return key;
+        }
+
         void ensureLabel(Context context) {
             if (this.label == null || !this.mounted) {
                 if (!this.apkFile.exists()) {
@@ -160,8 +216,15 @@ public class ApplicationsState {
         }
     }
 
+    // Shared by all the label collation keys, which can only be compared if
+    // they come from the same collator.
+    static final Collator sCollator = Collator.getInstance();
+
+    static int compareLabels(AppEntry object1, AppEntry object2) {
+        return object1.getLabelCollationKey().compareTo(object2.getLabelCollationKey());
+    }
+
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             final boolean normal1 = object1.info.enabled
@@ -171,40 +234,37 @@ public class ApplicationsState {
             if (normal1 != normal2) {
                 return normal1 ? -1 : 1;
             }
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.size < object2.size) return 1;
             if (object1.size > object2.size) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.internalSize < object2.internalSize) return 1;
             if (object1.internalSize > object2.internalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.externalSize < object2.externalSize) return 1;
             if (object1.externalSize > object2.externalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
@@ -268,21 +328,100 @@ public class ApplicationsState {
     final int mRetrieveFlags;
     PackageIntentReceiver mPackageIntentReceiver;
 
-    boolean mResumed;
-    boolean mHaveDisabledApps;
+    /**
+     * One generation of the list of installed applications.  Snapshots are
+     * immutable: any change to the list publishes a new one, so readers can
+     * iterate over the current one without holding any lock.
+     */
+    static final class AppsSnapshot {
+        static final AppsSnapshot EMPTY = new AppsSnapshot(0, new ArrayList<ApplicationInfo>());
+
+        final int generation;
+        final List<ApplicationInfo> apps;
+        private final HashMap<String, ApplicationInfo> mAppsByPackage;
 
-    // Information about all applications.  Synchronize on mEntriesMap
-    // to protect access to these.
+        AppsSnapshot(int generation, ArrayList<ApplicationInfo> apps) {
+            this.generation = generation;
+            this.apps = Collections.unmodifiableList(apps);
+            mAppsByPackage = new HashMap<String, ApplicationInfo>(apps.size());
+            for (int i=0; i<apps.size(); i++) {
+                ApplicationInfo info = apps.get(i);
+                mAppsByPackage.put(info.packageName, info);
+            }
+        }
+
+        ApplicationInfo get(String packageName) {
+            return mAppsByPackage.get(packageName);
+        }
+
+        AppsSnapshot withApp(ApplicationInfo info) {
+            ArrayList<ApplicationInfo> apps = new ArrayList<ApplicationInfo>(this.apps.size()+1);
+            apps.addAll(this.apps);
+            apps.add(info);
+            return new AppsSnapshot(generation+1, apps);
+        }
+
+        AppsSnapshot withoutApp(String packageName) {
+            ArrayList<ApplicationInfo> apps = new ArrayList<ApplicationInfo>(this.apps.size());
+            for (int i=0; i<this.apps.size(); i++) {
+                ApplicationInfo info = this.apps.get(i);
+                if (!info.packageName.equals(packageName)) {
+                    apps.add(info);
+                }
+            }
+            return new AppsSnapshot(generation+1, apps);
+        }
+    }
+
+    // Sessions and loader state.  Synchronize on mLock to protect access
+    // to these.  Nothing slow (and in particular no PackageManager call
+    // made by the loaders) must be done while holding it.
+    final Object mLock = new Object();
+    boolean mResumed;
+    // Bumped on each resume and package change, so that a list of installed
+    // applications queried without the lock is only applied if nothing
+    // happened meanwhile.
+    int mPackagesChangeCount;
     final ArrayList<Session> mSessions = new ArrayList<Session>();
     final ArrayList<Session> mRebuildingSessions = new ArrayList<Session>();
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
-    final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
-    final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
-    List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
-    long mCurId = 1;
-    String mCurComputingSizePkg;
     boolean mSessionsChanged;
 
+    // How many getPackageSizeInfo() requests can be in flight at once.
+    final int mMaxSizeRequests;
+
+    // Sizes being computed, and the packages whose size changed since the
+    // callbacks were last told.  Synchronized on mLock too.
+    final HashSet<String> mSizesInFlight = new HashSet<String>();
+    final LinkedHashSet<String> mPendingSizeChanges = new LinkedHashSet<String>();
+
+    // The packages most recently bound to a view, most recent last, whose
+    // sizes are computed first.  Synchronized on mLock too.
+    final LinkedHashMap<String, Boolean> mVisiblePackages
+            = new LinkedHashMap<String, Boolean>(MAX_VISIBLE_PACKAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_VISIBLE_PACKAGES;
+        }
+    };
+
+    // After this long without an answer, a size request is considered lost.
+    static final long SIZE_REQUEST_TIMEOUT = 20*1000;
+    // Size changes are delivered in batches, at most this often.
+    static final long SIZE_CHANGES_DELAY = 100;
+    static final int MAX_VISIBLE_PACKAGES = 32;
+
+    // Information about all applications.  The list of applications is only
+    // replaced with mLock held, but is read without any lock.  Entries are
+    // created lazily by whoever needs them first; the mutable parts of an
+    // entry are protected by the entry itself, so the rebuilds, the icon and
+    // size loaders and the package receiver only contend on the same entry.
+    volatile AppsSnapshot mApplications = AppsSnapshot.EMPTY;
+    volatile boolean mHaveDisabledApps;
+    final ConcurrentHashMap<String, AppEntry> mEntriesMap
+            = new ConcurrentHashMap<String, AppEntry>();
+    final AtomicLong mCurId = new AtomicLong(1);
+
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
 
@@ -344,7 +483,7 @@ public class ApplicationsState {
     }
 
     void rebuildActiveSessions() {
-        synchronized (mEntriesMap) {
+        synchronized (mLock) {
             if (!mSessionsChanged) {
                 return;
             }
@@ -373,7 +512,13 @@ public class ApplicationsState {
                 case MSG_REBUILD_COMPLETE: {
                     Session s = (Session)msg.obj;
                     if (mActiveSessions.contains(s)) {
-                        s.mCallbacks.onRebuildComplete(s.mLastAppList);
+                        ArrayList<AppEntry> apps;
+                        ChangeSet changes;
+                        synchronized (s.mRebuildSync) {
+                            apps = s.mLastAppList;
+                            changes = s.mLastChanges;
+                        }
+                        s.mCallbacks.onRebuildComplete(apps, changes);
                     }
                 } break;
                 case MSG_PACKAGE_LIST_CHANGED: {
@@ -387,9 +532,17 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_PACKAGE_SIZE_CHANGED: {
-                    for (int i=0; i<mActiveSessions.size(); i++) {
-                        mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(
-                                (String)msg.obj);
+                    String[] packageNames;
+                    synchronized (mLock) {
+                        packageNames = mPendingSizeChanges.toArray(
+                                new String[mPendingSizeChanges.size()]);
+                        mPendingSizeChanges.clear();
+                    }
+                    for (String packageName : packageNames) {
+                        for (int i=0; i<mActiveSessions.size(); i++) {
+                            mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(
+                                    packageName);
+                        }
                     }
                 } break;
                 case MSG_ALL_SIZES_COMPUTED: {
@@ -426,10 +579,14 @@ public class ApplicationsState {
     private ApplicationsState(Application app) {
         mContext = app;
         mPm = mContext.getPackageManager();
+        mMaxSizeRequests = Math.max(1, mContext.getResources().getInteger(
+                R.integer.config_appSizeRequestLimit));
         mThread = new HandlerThread("ApplicationsState.Loader",
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
         mBackgroundHandler = new BackgroundHandler(mThread.getLooper());
+        mEntryLoader = new EntryLoader();
+        mEntryCache = new AppEntryCache(mContext);
 
         // Only the owner can see all apps.
         if (UserHandle.myUserId() == 0) {
@@ -440,26 +597,87 @@ public class ApplicationsState {
             mRetrieveFlags = PackageManager.GET_DISABLED_COMPONENTS |
                     PackageManager.GET_DISABLED_UNTIL_USED_COMPONENTS;
         }
+    }
+
+    /**
+     * The difference between two consecutive lists of a session, so that
+     * the list of a callback can be updated rather than replaced.
+     */
+    public static class ChangeSet {
+        private static final int[] EMPTY = new int[0];
+
+        final ArrayList<AppEntry> mFrom;
+        final int[] mRemoved;
+        final int[] mInserted;
+
+        ChangeSet(ArrayList<AppEntry> from, int[] removed, int[] inserted) {
+            mFrom = from;
+            mRemoved = removed;
+            mInserted = inserted;
+        }
 
         /**
-         * This is a trick to prevent the foreground thread from being delayed.
-         * The problem is that Dalvik monitors are initially spin locks, to keep
-         * them lightweight.  This leads to unfair contention -- Even though the
-         * background thread only holds the lock for a short amount of time, if
-         * it keeps running and locking again it can prevent the main thread from
-         * acquiring its lock for a long time...  sometimes even > 5 seconds
-         * (leading to an ANR).
-         * 
-         * Dalvik will promote a monitor to a "real" lock if it detects enough
-         * contention on it.  It doesn't figure this out fast enough for us
-         * here, though, so this little trick will force it to turn into a real
-         * lock immediately.
+         * A change set that does not apply to any list: everything changed.
          */
-        synchronized (mEntriesMap) {
-            try {
-                mEntriesMap.wait(1);
-            } catch (InterruptedException e) {
-            }
+        static ChangeSet all() {
+            return new ChangeSet(null, EMPTY, EMPTY);
+        }
+
+        /**
+         * @return whether these are the changes from the given list, which
+         * is the only list they can be applied to
+         */
+        public boolean appliesTo(ArrayList<AppEntry> list) {
+            return mFrom != null && mFrom == list;
+        }
+
+        public boolean isEmpty() {
+            return mFrom != null && mRemoved.length == 0 && mInserted.length == 0;
+        }
+
+        /**
+         * @return the positions in the previous list of the entries that
+         * were removed from it, in ascending order
+         */
+        public int[] getRemovedPositions() {
+            return mRemoved;
+        }
+
+        /**
+         * @return the positions in the new list of the entries that were
+         * inserted in it once the removed ones were gone, in ascending order
+         */
+        public int[] getInsertedPositions() {
+            return mInserted;
+        }
+    }
+
+    /**
+     * What the comparators look at in an entry.  An entry only needs to be
+     * moved in a sorted list if it has changed.
+     */
+    static final class SortKey {
+        final String label;
+        final boolean normal;
+        final long size;
+        final long internalSize;
+        final long externalSize;
+
+        // Must be called with the entry locked.
+        SortKey(AppEntry entry) {
+            label = entry.label;
+            normal = entry.info.enabled
+                    && (entry.info.flags&ApplicationInfo.FLAG_INSTALLED) != 0;
+            size = entry.size;
+            internalSize = entry.internalSize;
+            externalSize = entry.externalSize;
+        }
+
+        boolean sameAs(SortKey other) {
+            return other != null && normal == other.normal && size == other.size
+                    && internalSize == other.internalSize
+                    && externalSize == other.externalSize
+                    && (label == null ? other.label == null : label.equals(other.label));
         }
     }
 
@@ -467,6 +685,10 @@ public class ApplicationsState {
         final Callbacks mCallbacks;
         boolean mResumed;
 
+        // If more than 1/N of the list changed, it is faster to sort it again
+        // than to move the changed entries one at a time.
+        static final int MAX_INCREMENTAL_CHANGES_FRACTION = 8;
+
         // Rebuilding of app list.  Synchronized on mRebuildSync.
         final Object mRebuildSync = new Object();
         boolean mRebuildRequested;
@@ -475,6 +697,13 @@ public class ApplicationsState {
         Comparator<AppEntry> mRebuildComparator;
         ArrayList<AppEntry> mRebuildResult;
         ArrayList<AppEntry> mLastAppList;
+        ChangeSet mLastChanges;
+
+        // What the last list was built with, so that the next rebuild only
+        // has to apply what changed since.  Only used by the loader thread.
+        AppFilter mLastFilter;
+        Comparator<AppEntry> mLastComparator;
+        HashMap<AppEntry, SortKey> mLastSortKeys;
 
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
@@ -482,19 +711,23 @@ public class ApplicationsState {
 
         public void resume() {
             if (DEBUG_LOCKING) Log.v(TAG, "resume about to acquire lock...");
-            synchronized (mEntriesMap) {
+            boolean loadApplications = false;
+            synchronized (mLock) {
                 if (!mResumed) {
                     mResumed = true;
                     mSessionsChanged = true;
-                    doResumeIfNeededLocked();
+                    loadApplications = doResumeIfNeededLocked();
                 }
             }
             if (DEBUG_LOCKING) Log.v(TAG, "...resume releasing lock");
+            if (loadApplications) {
+                loadApplications();
+            }
         }
 
         public void pause() {
             if (DEBUG_LOCKING) Log.v(TAG, "pause about to acquire lock...");
-            synchronized (mEntriesMap) {
+            synchronized (mLock) {
                 if (mResumed) {
                     mResumed = false;
                     mSessionsChanged = true;
@@ -508,7 +741,7 @@ public class ApplicationsState {
         // Creates a new list of app entries with the given filter and comparator.
         ArrayList<AppEntry> rebuild(AppFilter filter, Comparator<AppEntry> comparator) {
             synchronized (mRebuildSync) {
-                synchronized (mEntriesMap) {
+                synchronized (mLock) {
                     mRebuildingSessions.add(this);
                     mRebuildRequested = true;
                     mRebuildAsync = false;
@@ -562,33 +795,65 @@ public class ApplicationsState {
             if (filter != null) {
                 filter.init();
             }
-            
-            List<ApplicationInfo> apps;
-            synchronized (mEntriesMap) {
-                apps = new ArrayList<ApplicationInfo>(mApplications);
-            }
 
-            ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
-            if (DEBUG) Log.i(TAG, "Rebuilding...");
+            // No lock needed: the snapshot cannot change under us, and the
+            // loaders only lock the entries they are working on.
+            AppsSnapshot snapshot = mApplications;
+            List<ApplicationInfo> apps = snapshot.apps;
+
+            ArrayList<ApplicationInfo> filteredInfos = new ArrayList<ApplicationInfo>();
+            ArrayList<ApplicationInfo> missingInfos = new ArrayList<ApplicationInfo>();
             for (int i=0; i<apps.size(); i++) {
                 ApplicationInfo info = apps.get(i);
                 if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
-                        entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                        filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+                    filteredInfos.add(info);
+                    if (mEntriesMap.get(info.packageName) == null) {
+                        missingInfos.add(info);
                     }
                 }
             }
+            if (missingInfos.size() > 1) {
+                // Loading the labels is what takes time here, do it in parallel.
+                mEntryLoader.loadLabels(missingInfos);
+            }
 
-            Collections.sort(filteredApps, comparator);
+            HashMap<AppEntry, SortKey> sortKeys
+                    = new HashMap<AppEntry, SortKey>(filteredInfos.size());
+            ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>(filteredInfos.size());
+            if (DEBUG) Log.i(TAG, "Rebuilding generation " + snapshot.generation + "...");
+            for (int i=0; i<filteredInfos.size(); i++) {
+                ApplicationInfo info = filteredInfos.get(i);
+                AppEntry entry = getEntry(info);
+                synchronized (entry) {
+                    entry.ensureLabel(mContext);
+                    sortKeys.put(entry, new SortKey(entry));
+                }
+                if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                filteredApps.add(entry);
+            }
+
+            ChangeSet changes = null;
+            ArrayList<AppEntry> previous = mLastAppList;
+            if (previous != null && filter == mLastFilter && comparator == mLastComparator) {
+                ArrayList<AppEntry> updatedApps = new ArrayList<AppEntry>(filteredApps.size());
+                changes = applyChanges(previous, mLastSortKeys, sortKeys, comparator,
+                        updatedApps);
+                if (changes != null) {
+                    filteredApps = updatedApps;
+                }
+            }
+            if (changes == null) {
+                Collections.sort(filteredApps, comparator);
+                changes = ChangeSet.all();
+            }
 
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
                     mLastAppList = filteredApps;
+                    mLastChanges = changes;
+                    mLastFilter = filter;
+                    mLastComparator = comparator;
+                    mLastSortKeys = sortKeys;
                     if (!mRebuildAsync) {
                         mRebuildResult = filteredApps;
                         mRebuildSync.notifyAll();
@@ -605,9 +870,67 @@ public class ApplicationsState {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         }
 
+        /**
+         * Build the new sorted list from the previous one, only moving the
+         * entries that have changed since it was built.
+         *
+         * @return the changes, or null if there are too many of them and
+         * the list should be sorted again instead
+         */
+        private ChangeSet applyChanges(ArrayList<AppEntry> previous,
+                HashMap<AppEntry, SortKey> previousKeys, HashMap<AppEntry, SortKey> keys,
+                Comparator<AppEntry> comparator, ArrayList<AppEntry> result) {
+            ArrayList<AppEntry> inserted = new ArrayList<AppEntry>();
+            for (Map.Entry<AppEntry, SortKey> e : keys.entrySet()) {
+                if (!e.getValue().sameAs(previousKeys.get(e.getKey()))) {
+                    inserted.add(e.getKey());
+                }
+            }
+            if (inserted.size() > keys.size() / MAX_INCREMENTAL_CHANGES_FRACTION) {
+                return null;
+            }
+
+            // Entries that are gone or have changed are removed...
+            int[] removed = new int[previous.size()];
+            int removedCount = 0;
+            for (int i=0; i<previous.size(); i++) {
+                AppEntry entry = previous.get(i);
+                SortKey key = keys.get(entry);
+                if (key != null && key.sameAs(previousKeys.get(entry))) {
+                    result.add(entry);
+                } else {
+                    removed[removedCount++] = i;
+                }
+            }
+
+            // ...and new or changed entries are inserted where they belong.
+            // They are inserted in order, so each one goes after the previous.
+            Collections.sort(inserted, comparator);
+            int[] insertedPositions = new int[inserted.size()];
+            int low = 0;
+            for (int i=0; i<inserted.size(); i++) {
+                AppEntry entry = inserted.get(i);
+                int high = result.size();
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (comparator.compare(result.get(mid), entry) <= 0) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                result.add(low, entry);
+                insertedPositions[i] = low;
+                low++;
+            }
+
+            return new ChangeSet(previous, Arrays.copyOf(removed, removedCount),
+                    insertedPositions);
+        }
+
         public void release() {
             pause();
-            synchronized (mEntriesMap) {
+            synchronized (mLock) {
                 mSessions.remove(this);
             }
         }
@@ -615,56 +938,95 @@ public class ApplicationsState {
 
     public Session newSession(Callbacks callbacks) {
         Session s = new Session(callbacks);
-        synchronized (mEntriesMap) {
+        synchronized (mLock) {
             mSessions.add(s);
         }
         return s;
     }
 
-    void doResumeIfNeededLocked() {
+    /**
+     * @return true if the list of applications has to be loaded again, by
+     * calling loadApplications() once mLock is released
+     */
+    boolean doResumeIfNeededLocked() {
         if (mResumed) {
-            return;
+            return false;
         }
         mResumed = true;
+        mPackagesChangeCount++;
         if (mPackageIntentReceiver == null) {
             mPackageIntentReceiver = new PackageIntentReceiver();
             mPackageIntentReceiver.registerReceiver();
         }
-        mApplications = mPm.getInstalledApplications(mRetrieveFlags);
-        if (mApplications == null) {
-            mApplications = new ArrayList<ApplicationInfo>();
+        return true;
+    }
+
+    /**
+     * Query the installed applications without holding mLock, and publish
+     * them unless we have been paused meanwhile.  The query is done again if
+     * a package changed, or we were paused and resumed, meanwhile.
+     */
+    void loadApplications() {
+        while (true) {
+            final int changeCount;
+            synchronized (mLock) {
+                if (!mResumed) {
+                    return;
+                }
+                changeCount = mPackagesChangeCount;
+            }
+            List<ApplicationInfo> installed = mPm.getInstalledApplications(mRetrieveFlags);
+            if (installed == null) {
+                installed = new ArrayList<ApplicationInfo>();
+            }
+            synchronized (mLock) {
+                if (!mResumed) {
+                    return;
+                }
+                if (changeCount == mPackagesChangeCount) {
+                    applyApplicationsLocked(installed);
+                    return;
+                }
+            }
         }
+    }
 
+    void applyApplicationsLocked(List<ApplicationInfo> installed) {
         if (mInterestingConfigChanges.applyNewConfig(mContext.getResources())) {
             // If an interesting part of the configuration has changed, we
             // should completely reload the app entries.
             mEntriesMap.clear();
-            mAppEntries.clear();
         } else {
-            for (int i=0; i<mAppEntries.size(); i++) {
-                mAppEntries.get(i).sizeStale = true;
+            for (AppEntry entry : mEntriesMap.values()) {
+                synchronized (entry) {
+                    entry.sizeStale = true;
+                }
             }
         }
 
-        mHaveDisabledApps = false;
-        for (int i=0; i<mApplications.size(); i++) {
-            final ApplicationInfo info = mApplications.get(i);
+        boolean haveDisabledApps = false;
+        ArrayList<ApplicationInfo> apps = new ArrayList<ApplicationInfo>(installed.size());
+        for (int i=0; i<installed.size(); i++) {
+            final ApplicationInfo info = installed.get(i);
             // Need to trim out any applications that are disabled by
             // something different than the user.
             if (!info.enabled) {
                 if (info.enabledSetting != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
-                    mApplications.remove(i);
-                    i--;
                     continue;
                 }
-                mHaveDisabledApps = true;
+                haveDisabledApps = true;
             }
+            apps.add(info);
             final AppEntry entry = mEntriesMap.get(info.packageName);
             if (entry != null) {
-                entry.info = info;
+                synchronized (entry) {
+                    entry.info = info;
+                }
             }
         }
-        mCurComputingSizePkg = null;
+        mApplications = new AppsSnapshot(mApplications.generation+1, apps);
+        mHaveDisabledApps = haveDisabledApps;
+        mSizesInFlight.clear();
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -688,24 +1050,21 @@ public class ApplicationsState {
             mPackageIntentReceiver.unregisterReceiver();
             mPackageIntentReceiver = null;
         }
+        // Keep whatever has been loaded so far for the next time.
+        if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_SAVE_CACHE)) {
+            mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_SAVE_CACHE);
+        }
     }
 
     AppEntry getEntry(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry == null) {
-                for (int i=0; i<mApplications.size(); i++) {
-                    ApplicationInfo info = mApplications.get(i);
-                    if (packageName.equals(info.packageName)) {
-                        entry = getEntryLocked(info);
-                        break;
-                    }
-                }
+        AppEntry entry = mEntriesMap.get(packageName);
+        if (entry == null) {
+            ApplicationInfo info = mApplications.get(packageName);
+            if (info != null) {
+                entry = getEntry(info);
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
-            return entry;
         }
+        return entry;
     }
     
     void ensureIcon(AppEntry entry) {
@@ -713,103 +1072,112 @@ public class ApplicationsState {
             return;
         }
         synchronized (entry) {
-            entry.ensureIconLocked(mContext, mPm);
+            ensureIconLocked(entry);
+        }
+    }
+
+    /**
+     * Same as AppEntry.ensureIconLocked(), using the cached icon if there
+     * is one.
+     */
+    boolean ensureIconLocked(AppEntry entry) {
+        if (entry.icon == null && entry.cached != null) {
+            Drawable icon = mEntryCache.loadIcon(entry.cached);
+            entry.cached = null;
+            if (icon != null) {
+                entry.icon = icon;
+                return true;
+            }
         }
+        return entry.ensureIconLocked(mContext, mPm);
     }
     
     void requestSize(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry != null) {
-                mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...requestSize releasing lock");
+        AppEntry entry = mEntriesMap.get(packageName);
+        if (entry != null) {
+            mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
         }
     }
 
     long sumCacheSizes() {
         long sum = 0;
-        if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
-        synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "-> sumCacheSizes now has lock");
-            for (int i=mAppEntries.size()-1; i>=0; i--) {
-                sum += mAppEntries.get(i).cacheSize;
+        for (AppEntry entry : mEntriesMap.values()) {
+            synchronized (entry) {
+                sum += entry.cacheSize;
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...sumCacheSizes releasing lock");
         }
         return sum;
     }
-    
-    int indexOfApplicationInfoLocked(String pkgName) {
-        for (int i=mApplications.size()-1; i>=0; i--) {
-            if (mApplications.get(i).packageName.equals(pkgName)) {
-                return i;
-            }
-        }
-        return -1;
-    }
 
     void addPackage(String pkgName) {
+        if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
+        synchronized (mLock) {
+            mPackagesChangeCount++;
+            if (!mResumed) {
+                // If we are not resumed, we will do a full query the
+                // next time we resume, so there is no reason to do work
+                // here.
+                return;
+            }
+        }
+        // Queried without the lock, the package is checked again below.
+        final ApplicationInfo info;
         try {
-            synchronized (mEntriesMap) {
-                if (DEBUG_LOCKING) Log.v(TAG, "addPackage acquired lock");
-                if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
-                if (!mResumed) {
-                    // If we are not resumed, we will do a full query the
-                    // next time we resume, so there is no reason to do work
-                    // here.
-                    if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: not resumed");
-                    return;
-                }
-                if (indexOfApplicationInfoLocked(pkgName) >= 0) {
-                    if (DEBUG) Log.i(TAG, "Package already exists!");
-                    if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: already exists");
+            info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
+        } catch (NameNotFoundException e) {
+            return;
+        }
+        synchronized (mLock) {
+            if (DEBUG_LOCKING) Log.v(TAG, "addPackage acquired lock");
+            if (!mResumed) {
+                if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: not resumed");
+                return;
+            }
+            if (mApplications.get(pkgName) != null) {
+                if (DEBUG) Log.i(TAG, "Package already exists!");
+                if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: already exists");
+                return;
+            }
+            if (!info.enabled) {
+                if (info.enabledSetting
+                        != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
                     return;
                 }
-                ApplicationInfo info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
-                if (!info.enabled) {
-                    if (info.enabledSetting
-                            != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
-                        return;
-                    }
-                    mHaveDisabledApps = true;
-                }
-                mApplications.add(info);
-                if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
-                    mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
-                }
-                if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
-                    mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
-                }
-                if (DEBUG_LOCKING) Log.v(TAG, "addPackage releasing lock");
+                mHaveDisabledApps = true;
             }
-        } catch (NameNotFoundException e) {
+            mApplications = mApplications.withApp(info);
+            if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
+                mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
+            }
+            if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
+                mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
+            }
+            if (DEBUG_LOCKING) Log.v(TAG, "addPackage releasing lock");
         }
     }
 
     void removePackage(String pkgName) {
-        synchronized (mEntriesMap) {
+        synchronized (mLock) {
             if (DEBUG_LOCKING) Log.v(TAG, "removePackage acquired lock");
-            int idx = indexOfApplicationInfoLocked(pkgName);
-            if (DEBUG) Log.i(TAG, "removePackage: " + pkgName + " @ " + idx);
-            if (idx >= 0) {
-                AppEntry entry = mEntriesMap.get(pkgName);
+            mPackagesChangeCount++;
+            ApplicationInfo info = mApplications.get(pkgName);
+            if (DEBUG) Log.i(TAG, "removePackage: " + pkgName + " " + info);
+            if (info != null) {
+                // Publish the new generation first, so that an entry created
+                // concurrently from the old one is dropped by getEntry().
+                mApplications = mApplications.withoutApp(pkgName);
+                AppEntry entry = mEntriesMap.remove(pkgName);
                 if (DEBUG) Log.i(TAG, "removePackage: " + entry);
-                if (entry != null) {
-                    mEntriesMap.remove(pkgName);
-                    mAppEntries.remove(entry);
-                }
-                ApplicationInfo info = mApplications.get(idx);
-                mApplications.remove(idx);
                 if (!info.enabled) {
-                    mHaveDisabledApps = false;
-                    for (int i=0; i<mApplications.size(); i++) {
-                        if (!mApplications.get(i).enabled) {
-                            mHaveDisabledApps = true;
+                    boolean haveDisabledApps = false;
+                    List<ApplicationInfo> apps = mApplications.apps;
+                    for (int i=0; i<apps.size(); i++) {
+                        if (!apps.get(i).enabled) {
+                            haveDisabledApps = true;
                             break;
                         }
                     }
+                    mHaveDisabledApps = haveDisabledApps;
                 }
                 if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
                     mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
@@ -823,21 +1191,239 @@ public class ApplicationsState {
         removePackage(pkgName);
         addPackage(pkgName);
     }
-    
-    AppEntry getEntryLocked(ApplicationInfo info) {
+
+    /**
+     * Return the entry of an application, creating it if needed.  This does
+     * not need any lock: if two threads race to create the same entry, only
+     * the first one to publish it wins.
+     */
+    AppEntry getEntry(ApplicationInfo info) {
         AppEntry entry = mEntriesMap.get(info.packageName);
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
         if (entry == null) {
             if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
-            mEntriesMap.put(info.packageName, entry);
-            mAppEntries.add(entry);
-        } else if (entry.info != info) {
-            entry.info = info;
+            AppEntryCache.Record cached = mEntryCache.get(info);
+            AppEntry newEntry = new AppEntry(mContext, info, mCurId.getAndIncrement(),
+                    cached);
+            if (cached != null) {
+                newEntry.sizeStr = getSizeStr(newEntry.size);
+                newEntry.internalSizeStr = getSizeStr(newEntry.internalSize);
+                newEntry.externalSizeStr = getSizeStr(newEntry.externalSize);
+            }
+            entry = mEntriesMap.putIfAbsent(info.packageName, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+                if (mApplications.get(info.packageName) == null) {
+                    // The package has been removed meanwhile: do not keep
+                    // its entry around.
+                    mEntriesMap.remove(info.packageName, entry);
+                }
+            }
+        }
+        if (entry.info != info && mApplications.get(info.packageName) == info) {
+            // Only the current generation may update the entry, a rebuild
+            // still working on an older one must not revert it.
+            synchronized (entry) {
+                entry.info = info;
+            }
         }
         return entry;
     }
 
+    /**
+     * Load the icon of an entry bound to a view in the background, ahead of
+     * all the entries that are not.  Callbacks.onPackageIconChanged() is
+     * called once it is loaded.
+     */
+    void requestIcon(AppEntry entry) {
+        synchronized (mLock) {
+            // Bound to a view: compute its size first too.
+            mVisiblePackages.put(entry.info.packageName, Boolean.TRUE);
+        }
+        if (entry.icon != null) {
+            return;
+        }
+        if (entry.cached != null && entry.cached.hasIcon) {
+            // Decoding a cached icon is cheap enough to be done right away.
+            ensureIcon(entry);
+            return;
+        }
+        mEntryLoader.load(entry.info, EntryLoader.PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Loads the labels and icons of the entries on a small pool of threads,
+     * rather than one at a time on the loader thread.  Requests are served
+     * in this order: labels needed by a rebuild, icons of the entries bound
+     * to a view (most recently bound first), then everything else in the
+     * order of the application list.
+     */
+    class EntryLoader {
+        static final int PRIORITY_REBUILD = 0;
+        static final int PRIORITY_VISIBLE = 1;
+        static final int PRIORITY_BACKGROUND = 2;
+
+        static final int MAX_THREADS = 4;
+        static final long KEEP_ALIVE_SECONDS = 5;
+
+        final ThreadPoolExecutor mExecutor;
+        final AtomicLong mNextSequence = new AtomicLong();
+
+        // Icon loads not started yet, by package name.  Synchronize on
+        // mPendingLoads to protect access to these.
+        final HashMap<String, LoadTask> mPendingLoads = new HashMap<String, LoadTask>();
+        int mPendingCount;
+        boolean mSizesWaiting;
+
+        class LoadTask implements Runnable, Comparable<LoadTask> {
+            final ApplicationInfo mInfo;
+            final CountDownLatch mDone;
+            int mPriority;
+            long mSequence;
+
+            LoadTask(ApplicationInfo info, int priority, CountDownLatch done) {
+                mInfo = info;
+                mPriority = priority;
+                mDone = done;
+            }
+
+            @Override
+            public int compareTo(LoadTask other) {
+                if (mPriority != other.mPriority) {
+                    return mPriority < other.mPriority ? -1 : 1;
+                }
+                if (mSequence == other.mSequence) {
+                    return 0;
+                }
+                // The last entries bound to a view are the ones on screen.
+                boolean older = mSequence < other.mSequence;
+                if (mPriority == PRIORITY_VISIBLE) {
+                    return older ? 1 : -1;
+                }
+                return older ? -1 : 1;
+            }
+
+            @Override
+            public void run() {
+                if (mDone != null) {
+                    try {
+                        getEntry(mInfo);
+                    } finally {
+                        mDone.countDown();
+                    }
+                    return;
+                }
+
+                synchronized (mPendingLoads) {
+                    mPendingLoads.remove(mInfo.packageName);
+                }
+                AppEntry entry = getEntry(mInfo);
+                boolean iconChanged;
+                synchronized (entry) {
+                    entry.ensureLabel(mContext);
+                    iconChanged = ensureIconLocked(entry);
+                }
+                if (iconChanged
+                        && !mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
+                    mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
+                }
+                onLoadDone();
+            }
+        }
+
+        EntryLoader() {
+            int threads = Math.max(1, Math.min(MAX_THREADS,
+                    Runtime.getRuntime().availableProcessors()));
+            mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread("ApplicationsState.EntryLoader #"
+                                    + mCount.getAndIncrement()) {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            };
+                        }
+                    });
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        /**
+         * Load the label and icon of an application, or move the pending
+         * load of it ahead if it is more urgent now.
+         *
+         * @return true if a load has been queued
+         */
+        boolean load(ApplicationInfo info, int priority) {
+            synchronized (mPendingLoads) {
+                LoadTask task = mPendingLoads.get(info.packageName);
+                if (task != null) {
+                    if (priority != PRIORITY_VISIBLE || !mExecutor.remove(task)) {
+                        // Not more urgent, or already being loaded.
+                        return false;
+                    }
+                    task.mPriority = priority;
+                } else {
+                    task = new LoadTask(info, priority, null);
+                    mPendingLoads.put(info.packageName, task);
+                    mPendingCount++;
+                }
+                task.mSequence = mNextSequence.getAndIncrement();
+                mExecutor.execute(task);
+                return true;
+            }
+        }
+
+        /**
+         * Create the entries of some applications, loading their labels in
+         * parallel, and wait until they are all created.
+         */
+        void loadLabels(List<ApplicationInfo> apps) {
+            CountDownLatch done = new CountDownLatch(apps.size());
+            for (int i=0; i<apps.size(); i++) {
+                LoadTask task = new LoadTask(apps.get(i), PRIORITY_REBUILD, done);
+                task.mSequence = mNextSequence.getAndIncrement();
+                mExecutor.execute(task);
+            }
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                // The missing entries will be created by the caller.
+            }
+        }
+
+        /**
+         * Start queueing the loads after which the sizes should be computed.
+         * Must be followed by a call to {@link #onLoadDone()}.
+         */
+        void beginBatch() {
+            synchronized (mPendingLoads) {
+                mPendingCount++;
+                mSizesWaiting = true;
+            }
+        }
+
+        void onLoadDone() {
+            synchronized (mPendingLoads) {
+                if (--mPendingCount > 0 || !mSizesWaiting) {
+                    return;
+                }
+                mSizesWaiting = false;
+            }
+            // Everything has been loaded, go on with the sizes.
+            if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_SIZES)) {
+                mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_SIZES);
+            }
+        }
+    }
+
     // --------------------------------------------------------------
 
     private long getTotalInternalSize(PackageStats ps) {
@@ -867,63 +1453,66 @@ public class ApplicationsState {
 
     final HandlerThread mThread;
     final BackgroundHandler mBackgroundHandler;
+    final EntryLoader mEntryLoader;
+    final AppEntryCache mEntryCache;
     class BackgroundHandler extends Handler {
         static final int MSG_REBUILD_LIST = 1;
         static final int MSG_LOAD_ENTRIES = 2;
-        static final int MSG_LOAD_ICONS = 3;
         static final int MSG_LOAD_SIZES = 4;
+        static final int MSG_SAVE_CACHE = 5;
 
         boolean mRunning;
 
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
-                synchronized (mEntriesMap) {
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
-                    AppEntry entry = mEntriesMap.get(stats.packageName);
-                    if (entry != null) {
-                        synchronized (entry) {
-                            entry.sizeStale = false;
-                            entry.sizeLoadStart = 0;
-                            long externalCodeSize = stats.externalCodeSize
-                                    + stats.externalObbSize;
-                            long externalDataSize = stats.externalDataSize
-                                    + stats.externalMediaSize;
-                            long newSize = externalCodeSize + externalDataSize
-                                    + getTotalInternalSize(stats);
-                            if (entry.size != newSize ||
-                                    entry.cacheSize != stats.cacheSize ||
-                                    entry.codeSize != stats.codeSize ||
-                                    entry.dataSize != stats.dataSize ||
-                                    entry.externalCodeSize != externalCodeSize ||
-                                    entry.externalDataSize != externalDataSize ||
-                                    entry.externalCacheSize != stats.externalCacheSize) {
-                                entry.size = newSize;
-                                entry.cacheSize = stats.cacheSize;
-                                entry.codeSize = stats.codeSize;
-                                entry.dataSize = stats.dataSize;
-                                entry.externalCodeSize = externalCodeSize;
-                                entry.externalDataSize = externalDataSize;
-                                entry.externalCacheSize = stats.externalCacheSize;
-                                entry.sizeStr = getSizeStr(entry.size);
-                                entry.internalSize = getTotalInternalSize(stats);
-                                entry.internalSizeStr = getSizeStr(entry.internalSize);
-                                entry.externalSize = getTotalExternalSize(stats);
-                                entry.externalSizeStr = getSizeStr(entry.externalSize);
-                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
-                                        + ": " + entry.sizeStr);
-                                sizeChanged = true;
-                            }
-                        }
-                        if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                AppEntry entry = mEntriesMap.get(stats.packageName);
+                if (entry != null) {
+                    synchronized (entry) {
+                        entry.sizeStale = false;
+                        entry.sizeLoadStart = 0;
+                        long externalCodeSize = stats.externalCodeSize
+                                + stats.externalObbSize;
+                        long externalDataSize = stats.externalDataSize
+                                + stats.externalMediaSize;
+                        long newSize = externalCodeSize + externalDataSize
+                                + getTotalInternalSize(stats);
+                        if (entry.size != newSize ||
+                                entry.cacheSize != stats.cacheSize ||
+                                entry.codeSize != stats.codeSize ||
+                                entry.dataSize != stats.dataSize ||
+                                entry.externalCodeSize != externalCodeSize ||
+                                entry.externalDataSize != externalDataSize ||
+                                entry.externalCacheSize != stats.externalCacheSize) {
+                            entry.size = newSize;
+                            entry.cacheSize = stats.cacheSize;
+                            entry.codeSize = stats.codeSize;
+                            entry.dataSize = stats.dataSize;
+                            entry.externalCodeSize = externalCodeSize;
+                            entry.externalDataSize = externalDataSize;
+                            entry.externalCacheSize = stats.externalCacheSize;
+                            entry.sizeStr = getSizeStr(entry.size);
+                            entry.internalSize = getTotalInternalSize(stats);
+                            entry.internalSizeStr = getSizeStr(entry.internalSize);
+                            entry.externalSize = getTotalExternalSize(stats);
+                            entry.externalSizeStr = getSizeStr(entry.externalSize);
+                            if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
+                                    + ": " + entry.sizeStr);
+                            sizeChanged = true;
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                }
+                synchronized (mLock) {
+                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
+                    if (sizeChanged && mPendingSizeChanges.add(stats.packageName)
+                            && mPendingSizeChanges.size() == 1) {
+                        mMainHandler.sendEmptyMessageDelayed(
+                                MainHandler.MSG_PACKAGE_SIZE_CHANGED, SIZE_CHANGES_DELAY);
+                    }
+                    // Sizes requested with requestSize() are not in flight,
+                    // they only trigger a check for more work, which is fine.
+                    mSizesInFlight.remove(stats.packageName);
+                    if (!hasMessages(MSG_LOAD_SIZES)) {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
@@ -937,9 +1526,13 @@ public class ApplicationsState {
 
         @Override
         public void handleMessage(Message msg) {
+            // Nothing is cached until the first message has been handled,
+            // which is fine as the first thing we need is the rebuild.
+            mEntryCache.ensureLoaded();
+
             // Always try rebuilding list first thing, if needed.
             ArrayList<Session> rebuildingSessions = null;
-            synchronized (mEntriesMap) {
+            synchronized (mLock) {
                 if (mRebuildingSessions.size() > 0) {
                     rebuildingSessions = new ArrayList<Session>(mRebuildingSessions);
                     mRebuildingSessions.clear();
@@ -955,101 +1548,113 @@ public class ApplicationsState {
                 case MSG_REBUILD_LIST: {
                 } break;
                 case MSG_LOAD_ENTRIES: {
-                    int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
-                            if (!mRunning) {
+                    // Labels and icons are loaded by the entry loader, which
+                    // sends MSG_LOAD_SIZES once it is done with all of them.
+                    mEntryLoader.beginBatch();
+                    List<ApplicationInfo> apps = mApplications.apps;
+                    for (int i=0; i<apps.size(); i++) {
+                        ApplicationInfo info = apps.get(i);
+                        AppEntry entry = mEntriesMap.get(info.packageName);
+                        if (entry == null || entry.icon == null || !entry.mounted) {
+                            if (mEntryLoader.load(info, EntryLoader.PRIORITY_BACKGROUND)
+                                    && !mRunning) {
                                 mRunning = true;
                                 Message m = mMainHandler.obtainMessage(
                                         MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
                                 mMainHandler.sendMessage(m);
                             }
-                            ApplicationInfo info = mApplications.get(i);
-                            if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
-                            }
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
-                    }
-
-                    if (numDone >= 6) {
-                        sendEmptyMessage(MSG_LOAD_ENTRIES);
-                    } else {
-                        sendEmptyMessage(MSG_LOAD_ICONS);
                     }
+                    mEntryLoader.onLoadDone();
                 } break;
-                case MSG_LOAD_ICONS: {
-                    int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
-                                    }
-                                }
-                            }
-                        }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
+                case MSG_LOAD_SIZES: {
+                    long now = SystemClock.uptimeMillis();
+                    int slots;
+                    HashSet<String> visible;
+                    synchronized (mLock) {
+                        slots = mMaxSizeRequests - mSizesInFlight.size();
+                        visible = new HashSet<String>(mVisiblePackages.keySet());
                     }
-                    if (numDone > 0) {
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
-                            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
+
+                    // Pick the next sizes to compute: those of the entries
+                    // bound to a view first, then those never computed (new
+                    // or updated packages), then the stale ones.
+                    ArrayList<AppEntry> visibleEntries = new ArrayList<AppEntry>();
+                    ArrayList<AppEntry> unknownEntries = new ArrayList<AppEntry>();
+                    ArrayList<AppEntry> staleEntries = new ArrayList<AppEntry>();
+                    boolean computing = false;
+                    List<ApplicationInfo> apps = mApplications.apps;
+                    for (int i=0; i<apps.size(); i++) {
+                        AppEntry entry = mEntriesMap.get(apps.get(i).packageName);
+                        if (entry == null) {
+                            continue;
                         }
-                    }
-                    if (numDone >= 2) {
-                        sendEmptyMessage(MSG_LOAD_ICONS);
-                    } else {
-                        sendEmptyMessage(MSG_LOAD_SIZES);
-                    }
-                } break;
-                case MSG_LOAD_SIZES: {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
+                        synchronized (entry) {
+                            if (entry.size != SIZE_UNKNOWN && !entry.sizeStale) {
+                                continue;
+                            }
+                            computing = true;
+                            if (entry.sizeLoadStart != 0 &&
+                                    entry.sizeLoadStart >= (now-SIZE_REQUEST_TIMEOUT)) {
+                                // Already in flight.
+                                continue;
+                            }
+                            if (visible.contains(entry.info.packageName)) {
+                                visibleEntries.add(entry);
+                            } else if (entry.size == SIZE_UNKNOWN) {
+                                unknownEntries.add(entry);
+                            } else {
+                                staleEntries.add(entry);
+                            }
                         }
+                    }
 
-                        long now = SystemClock.uptimeMillis();
-                        for (int i=0; i<mAppEntries.size(); i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
-                                }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
+                    ArrayList<AppEntry> next = visibleEntries;
+                    next.addAll(unknownEntries);
+                    next.addAll(staleEntries);
+                    for (int i=0; i<next.size(); i++) {
+                        AppEntry entry = next.get(i);
+                        String packageName;
+                        synchronized (entry) {
+                            packageName = entry.info.packageName;
+                        }
+                        synchronized (mLock) {
+                            // A lost request must not hold its slot forever.
+                            if (mSizesInFlight.remove(packageName)) {
+                                slots++;
+                            }
+                            if (slots <= 0) {
+                                break;
                             }
+                            mSizesInFlight.add(packageName);
+                            slots--;
+                        }
+                        synchronized (entry) {
+                            entry.sizeLoadStart = now;
                         }
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
-                            mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
-                            mRunning = false;
+                        if (!mRunning) {
+                            mRunning = true;
                             Message m = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
+                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
                             mMainHandler.sendMessage(m);
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
+                        mPm.getPackageSizeInfo(packageName, mStatsObserver);
                     }
+                    if (computing) {
+                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES: now computing");
+                        return;
+                    }
+                    if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
+                        mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
+                        mRunning = false;
+                        Message m = mMainHandler.obtainMessage(
+                                MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
+                        mMainHandler.sendMessage(m);
+                        sendEmptyMessage(MSG_SAVE_CACHE);
+                    }
+                } break;
+                case MSG_SAVE_CACHE: {
+                    mEntryCache.update(new ArrayList<AppEntry>(mEntriesMap.values()));
                 } break;
             }
         }
@@ -252,7 +252,8 @@ public class ExpandedDesktopPreferenceFragment extends SettingsPreferenceFragmen
     }
 
     @Override
-    public void onRebuildComplete(ArrayList<ApplicationsState.AppEntry> entries) {
+    public void onRebuildComplete(ArrayList<ApplicationsState.AppEntry> entries,
+            ApplicationsState.ChangeSet changes) {
         handleAppEntries(entries);
     }
 
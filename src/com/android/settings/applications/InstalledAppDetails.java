@@ -677,7 +677,7 @@ public class InstalledAppDetails extends Fragment
     }
 
     @Override
-    public void onRebuildComplete(ArrayList<AppEntry> apps) {
+    public void onRebuildComplete(ArrayList<AppEntry> apps, ApplicationsState.ChangeSet changes) {
     }
 
     @Override
@@ -562,6 +562,7 @@ public class ManageApplications extends Fragment implements
         private final int mFilterMode;
         private ArrayList<ApplicationsState.AppEntry> mBaseEntries;
         private ArrayList<ApplicationsState.AppEntry> mEntries;
+        private final AppNameIndex mNameIndex = new AppNameIndex();
         private boolean mResumed;
         private int mLastSortMode=-1;
         private boolean mWaitingForData;
@@ -679,6 +680,7 @@ public class ManageApplications extends Fragment implements
                 return;
             }
             mBaseEntries = entries;
+            mNameIndex.update(mBaseEntries);
             if (mBaseEntries != null) {
                 mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
             } else {
@@ -703,17 +705,7 @@ public class ManageApplications extends Fragment implements
                 return origEntries;
             } else {
                 String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
-                ArrayList<ApplicationsState.AppEntry> newEntries
-                        = new ArrayList<ApplicationsState.AppEntry>();
-                for (int i=0; i<origEntries.size(); i++) {
-                    ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
-                        newEntries.add(entry);
-                    }
-                }
-                return newEntries;
+                return mNameIndex.filter(prefixStr, origEntries);
             }
         }
 
@@ -723,7 +715,14 @@ public class ManageApplications extends Fragment implements
         }
 
         @Override
-        public void onRebuildComplete(ArrayList<AppEntry> apps) {
+        public void onRebuildComplete(ArrayList<AppEntry> apps,
+                ApplicationsState.ChangeSet changes) {
+            if (changes.isEmpty() && changes.appliesTo(mBaseEntries)) {
+                // Same entries in the same order: nothing to redraw.
+                mBaseEntries = apps;
+                mNameIndex.update(mBaseEntries);
+                return;
+            }
             if (mTab.mLoadingContainer.getVisibility() == View.VISIBLE) {
                 mTab.mLoadingContainer.startAnimation(AnimationUtils.loadAnimation(
                         mContext, android.R.anim.fade_out));
@@ -734,6 +733,7 @@ public class ManageApplications extends Fragment implements
             mTab.mLoadingContainer.setVisibility(View.GONE);
             mWaitingForData = false;
             mBaseEntries = apps;
+            mNameIndex.update(mBaseEntries);
             mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
             notifyDataSetChanged();
             mTab.updateStorageUsage();
@@ -746,8 +746,18 @@ public class ManageApplications extends Fragment implements
 
         @Override
         public void onPackageIconChanged() {
-            // We ensure icons are loaded when their item is displayed, so
-            // don't care about icons loaded in the background.
+            // Icons are requested when their item is displayed, only the
+            // items still displayed without one need to be updated.
+            for (int i=0; i<mActive.size(); i++) {
+                AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
+                if (holder.appIcon.getDrawable() == null) {
+                    synchronized (holder.entry) {
+                        if (holder.entry.icon != null) {
+                            holder.appIcon.setImageDrawable(holder.entry.icon);
+                        }
+                    }
+                }
+            }
         }
 
         @Override
@@ -809,10 +819,10 @@ public class ManageApplications extends Fragment implements
                 if (entry.label != null) {
                     holder.appName.setText(entry.label);
                 }
-                mState.ensureIcon(entry);
-                if (entry.icon != null) {
-                    holder.appIcon.setImageDrawable(entry.icon);
-                }
+                // Loaded in the background ahead of the items not displayed,
+                // see onPackageIconChanged().
+                mState.requestIcon(entry);
+                holder.appIcon.setImageDrawable(entry.icon);
                 holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
                 if ((entry.info.flags&ApplicationInfo.FLAG_INSTALLED) == 0) {
                     holder.disabled.setVisibility(View.VISIBLE);
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+/**
+ * The most recent samples of a memory size, in a fixed size ring buffer: once full, each
+ * new sample replaces the oldest one, so the memory used does not depend on how long the
+ * samples are recorded for.
+ *
+ * Samples are added by the RunningState background thread and read by the UI thread, so
+ * all the methods are synchronized.
+ */
+class MemoryHistory {
+    private final long[] mTimes;
+    private final long[] mValues;
+
+    // Index of the next sample to write, and number of samples kept.
+    private int mHead;
+    private int mCount;
+    private long mSum;
+
+    // Incremented on each change, for readers to know when to redraw.
+    private int mVersion;
+
+    MemoryHistory(int capacity) {
+        mTimes = new long[capacity];
+        mValues = new long[capacity];
+    }
+
+    synchronized void add(long time, long value) {
+        if (mCount == mValues.length) {
+            mSum -= mValues[mHead];
+        } else {
+            mCount++;
+        }
+        mTimes[mHead] = time;
+        mValues[mHead] = value;
+        mSum += value;
+        mHead = (mHead + 1) % mValues.length;
+        mVersion++;
+    }
+
+    synchronized void clear() {
+        mHead = 0;
+        mCount = 0;
+        mSum = 0;
+        mVersion++;
+    }
+
+    synchronized int getCount() {
+        return mCount;
+    }
+
+    synchronized int getVersion() {
+        return mVersion;
+    }
+
+    synchronized long getMin() {
+        long min = Long.MAX_VALUE;
+        for (int i=0; i<mCount; i++) {
+            min = Math.min(min, mValues[i]);
+        }
+        return mCount > 0 ? min : 0;
+    }
+
+    synchronized long getMax() {
+        long max = 0;
+        for (int i=0; i<mCount; i++) {
+            max = Math.max(max, mValues[i]);
+        }
+        return max;
+    }
+
+    synchronized long getAverage() {
+        return mCount > 0 ? mSum / mCount : 0;
+    }
+
+    /**
+     * Copy the samples, oldest first, into the given arrays, which must be at least as
+     * large as the capacity.
+     *
+     * @return the number of samples copied
+     */
+    synchronized int copy(long[] times, long[] values) {
+        int start = (mHead - mCount + mValues.length) % mValues.length;
+        for (int i=0; i<mCount; i++) {
+            int index = (start + i) % mValues.length;
+            times[i] = mTimes[index];
+            values[i] = mValues[index];
+        }
+        return mCount;
+    }
+
+    int getCapacity() {
+        return mValues.length;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settings.R;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Small line chart of a {@link MemoryHistory}, scaled between its minimum and maximum
+ * samples over the time they cover.
+ */
+public class MemorySparkline extends View {
+    private final Paint mPaint = new Paint();
+    private final Path mPath = new Path();
+
+    private MemoryHistory mHistory;
+    private int mDrawnVersion = -1;
+    private int mDrawnWidth;
+    private int mDrawnHeight;
+
+    private long[] mTimes;
+    private long[] mValues;
+
+    public MemorySparkline(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mPaint.setStyle(Paint.Style.STROKE);
+        mPaint.setStrokeWidth(context.getResources().getDisplayMetrics().density);
+        mPaint.setAntiAlias(true);
+        mPaint.setColor(context.getResources().getColor(R.color.running_processes_apps_ram));
+    }
+
+    public void setColor(int color) {
+        mPaint.setColor(color);
+        invalidate();
+    }
+
+    public void setHistory(MemoryHistory history) {
+        if (mHistory != history) {
+            mHistory = history;
+            mDrawnVersion = -1;
+            invalidate();
+        }
+    }
+
+    /**
+     * Redraw if samples were added since the last time.
+     */
+    public void update() {
+        if (mHistory != null && mHistory.getVersion() != mDrawnVersion) {
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mHistory == null) {
+            return;
+        }
+        final int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        final int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        final int version = mHistory.getVersion();
+        if (version != mDrawnVersion || width != mDrawnWidth || height != mDrawnHeight) {
+            buildPath(width, height);
+            mDrawnVersion = version;
+            mDrawnWidth = width;
+            mDrawnHeight = height;
+        }
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        canvas.drawPath(mPath, mPaint);
+        canvas.restore();
+    }
+
+    private void buildPath(int width, int height) {
+        mPath.reset();
+        if (mValues == null || mValues.length < mHistory.getCapacity()) {
+            mTimes = new long[mHistory.getCapacity()];
+            mValues = new long[mHistory.getCapacity()];
+        }
+        final int count = mHistory.copy(mTimes, mValues);
+        if (count < 2 || width <= 0 || height <= 0) {
+            return;
+        }
+
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i=0; i<count; i++) {
+            min = Math.min(min, mValues[i]);
+            max = Math.max(max, mValues[i]);
+        }
+        final long startTime = mTimes[0];
+        final long duration = Math.max(mTimes[count-1] - startTime, 1);
+        // Keep a flat line in the middle rather than at the top.
+        final long range = max > min ? max - min : 0;
+        for (int i=0; i<count; i++) {
+            float x = width * (mTimes[i] - startTime) / (float)duration;
+            float y = range > 0 ? height - height * (mValues[i] - min) / (float)range
+                    : height / 2f;
+            if (i == 0) {
+                mPath.moveTo(x, y);
+            } else {
+                mPath.lineTo(x, y);
+            }
+        }
+    }
+}
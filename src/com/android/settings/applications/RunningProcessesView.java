@@ -81,6 +81,7 @@ public class RunningProcessesView extends FrameLayout
     TextView mBackgroundProcessText;
     TextView mAppsProcessText;
     TextView mForegroundProcessText;
+    MemorySparkline mFreeRamSparkline;
 
     long mCurTotalRam = -1;
     long mCurHighRam = -1;      // "System" or "Used"
@@ -92,6 +93,9 @@ public class RunningProcessesView extends FrameLayout
 
     MemInfoReader mMemInfoReader = new MemInfoReader();
 
+    // Free and cached RAM since the screen was created.
+    final MemoryHistory mFreeRamHistory = new MemoryHistory(RunningState.MEMORY_HISTORY_SIZE);
+
     public static class ActiveItem {
         View mRootView;
         RunningState.BaseItem mItem;
@@ -99,8 +103,11 @@ public class RunningProcessesView extends FrameLayout
         ViewHolder mHolder;
         long mFirstRunTime;
         boolean mSetBackground;
+        int mMemoryHistoryVersion = -1;
 
         void updateTime(Context context, StringBuilder builder) {
+            updateMemoryHistory(context);
+
             TextView uptimeView = null;
             
             if (mItem instanceof RunningState.ServiceItem) {
@@ -149,6 +156,39 @@ public class RunningProcessesView extends FrameLayout
                 }
             }
         }
+
+        private void updateMemoryHistory(Context context) {
+            if (mHolder.memoryHistoryRow == null) {
+                return;
+            }
+            MemoryHistory history = null;
+            if (mItem instanceof RunningState.ProcessItem) {
+                history = ((RunningState.ProcessItem)mItem).mPssHistory;
+            } else if (mItem instanceof RunningState.MergedItem) {
+                RunningState.MergedItem mergedItem = (RunningState.MergedItem)mItem;
+                if (mergedItem.mUser == null && mergedItem.mProcess != null) {
+                    history = mergedItem.mProcess.mPssHistory;
+                }
+            }
+            if (history == null || history.getCount() < 2) {
+                mHolder.memoryHistoryRow.setVisibility(View.GONE);
+                mMemoryHistoryVersion = -1;
+                return;
+            }
+            int version = history.getVersion();
+            if (version == mMemoryHistoryVersion) {
+                return;
+            }
+            mMemoryHistoryVersion = version;
+            mHolder.memoryHistoryRow.setVisibility(View.VISIBLE);
+            mHolder.memoryHistory.setHistory(history);
+            mHolder.memoryHistory.update();
+            mHolder.memoryStats.setText(context.getString(
+                    R.string.running_processes_item_memory_stats,
+                    Formatter.formatShortFileSize(context, history.getMin()),
+                    Formatter.formatShortFileSize(context, history.getAverage()),
+                    Formatter.formatShortFileSize(context, history.getMax())));
+        }
     }
     
     public static class ViewHolder {
@@ -158,6 +198,9 @@ public class RunningProcessesView extends FrameLayout
         public TextView description;
         public TextView size;
         public TextView uptime;
+        public View memoryHistoryRow;
+        public MemorySparkline memoryHistory;
+        public TextView memoryStats;
         
         public ViewHolder(View v) {
             rootView = v;
@@ -166,6 +209,9 @@ public class RunningProcessesView extends FrameLayout
             description = (TextView)v.findViewById(R.id.description);
             size = (TextView)v.findViewById(R.id.size);
             uptime = (TextView)v.findViewById(R.id.uptime);
+            memoryHistoryRow = v.findViewById(R.id.memory_history_row);
+            memoryHistory = (MemorySparkline)v.findViewById(R.id.memory_history);
+            memoryStats = (TextView)v.findViewById(R.id.memory_stats);
             v.setTag(this);
         }
         
@@ -330,6 +376,12 @@ public class RunningProcessesView extends FrameLayout
         }
 
         mMemInfoReader.readMemInfo();
+        mFreeRamHistory.add(SystemClock.uptimeMillis(),
+                mMemInfoReader.getFreeSize() + mMemInfoReader.getCachedSize());
+        if (mFreeRamHistory.getCount() >= 2) {
+            mFreeRamSparkline.setVisibility(View.VISIBLE);
+            mFreeRamSparkline.update();
+        }
 
         /*
         // This is the amount of available memory until we start killing
@@ -459,6 +511,9 @@ public class RunningProcessesView extends FrameLayout
         mBackgroundProcessText = (TextView)mHeader.findViewById(R.id.freeSize);
         mAppsProcessText = (TextView)mHeader.findViewById(R.id.appsSize);
         mForegroundProcessText = (TextView)mHeader.findViewById(R.id.systemSize);
+        mFreeRamSparkline = (MemorySparkline)mHeader.findViewById(R.id.free_ram_history);
+        mFreeRamSparkline.setColor(res.getColor(R.color.running_processes_system_ram));
+        mFreeRamSparkline.setHistory(mFreeRamHistory);
 
         ActivityManager.MemoryInfo memInfo = new ActivityManager.MemoryInfo();
         mAm.getMemoryInfo(memInfo);
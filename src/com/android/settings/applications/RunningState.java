@@ -38,6 +38,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.format.Formatter;
@@ -45,6 +46,7 @@ import android.util.Log;
 import android.util.SparseArray;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -69,6 +71,14 @@ public class RunningState {
 
     static final long TIME_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
+    // While nothing changes, the contents are updated less and less often,
+    // down to this period.
+    static final long MAX_CONTENTS_UPDATE_DELAY = 16000;
+    // The memory of a process that keeps running in the same state is only
+    // sampled again after this long.
+    static final long PSS_MAX_AGE = 15000;
+    // How many memory samples are kept for each process.
+    static final int MEMORY_HISTORY_SIZE = 64;
 
     static final int MAX_SERVICES = 100;
 
@@ -217,6 +227,16 @@ public class RunningState {
     int mNumServiceProcesses;
     long mServiceProcessMemory;
 
+    // Current period of the contents updates, reset to CONTENTS_UPDATE_DELAY
+    // whenever something changes or the user asks for fresh data.
+    long mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+
+    // ----- following only used by the background thread -----
+
+    // Whether processes were started, stopped or changed importance
+    // during the last update.
+    boolean mProcessesChanged;
+
     // ----- BACKGROUND MONITORING THREAD -----
 
     final HandlerThread mBackgroundThread;
@@ -237,12 +257,24 @@ public class RunningState {
                             return;
                         }
                     }
+                    boolean changed = update(mApplicationContext, mAm);
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
+                    cmd.arg1 = changed ? 1 : 0;
                     mHandler.sendMessage(cmd);
+                    long delay;
+                    synchronized (mLock) {
+                        // Back off while nothing is happening.
+                        if (changed || mProcessesChanged) {
+                            mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+                        } else {
+                            mContentsUpdateDelay = Math.min(mContentsUpdateDelay*2,
+                                    MAX_CONTENTS_UPDATE_DELAY);
+                        }
+                        delay = mContentsUpdateDelay;
+                    }
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    sendMessageDelayed(msg, delay);
                     break;
             }
         }
@@ -359,6 +391,16 @@ public class RunningState {
         
         MergedItem mMergedItem;
 
+        // The last memory sample, and the process and state it was taken in.
+        long mPss;
+        long mPssTime;
+        int mPssPid;
+        int mPssUid;
+        int mPssImportance;
+
+        // The memory samples of the process, reset when it is restarted.
+        final MemoryHistory mPssHistory = new MemoryHistory(MEMORY_HISTORY_SIZE);
+
         boolean mInteresting;
 
         // Purely for sorting.
@@ -509,6 +551,32 @@ public class RunningState {
             return changed;
         }
         
+        /**
+         * Whether the last memory sample is still the one of this process in
+         * its current state, that is the process has not been restarted and
+         * has not changed importance since.
+         */
+        boolean isPssSampleCurrent() {
+            final ActivityManager.RunningAppProcessInfo pi = mRunningProcessInfo;
+            final int uid = pi != null ? pi.uid : mUid;
+            final int importance = pi != null ? pi.importance : 0;
+            return mPssTime != 0 && mPssPid == mPid && mPssUid == uid
+                    && mPssImportance == importance;
+        }
+
+        void setPssSample(long pss, long now) {
+            final ActivityManager.RunningAppProcessInfo pi = mRunningProcessInfo;
+            if (mPssPid != mPid) {
+                mPssHistory.clear();
+            }
+            mPssHistory.add(now, pss * 1024);
+            mPss = pss;
+            mPssTime = now;
+            mPssPid = mPid;
+            mPssUid = pi != null ? pi.uid : mUid;
+            mPssImportance = pi != null ? pi.importance : 0;
+        }
+
         boolean updateSize(Context context, long pss, int curSeq) {
             mSize = pss * 1024;
             if (mCurSeq == curSeq) {
@@ -751,6 +819,7 @@ public class RunningState {
         synchronized (mLock) {
             mResumed = true;
             mRefreshUiListener = listener;
+            mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
             if (mInterestingConfigChanges.applyNewConfig(mApplicationContext.getResources())) {
                 mHaveData = false;
                 mBackgroundHandler.removeMessages(MSG_RESET_CONTENTS);
@@ -766,6 +835,7 @@ public class RunningState {
 
     void updateNow() {
         synchronized (mLock) {
+            mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
             mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
         }
@@ -1275,17 +1345,37 @@ public class RunningState {
         ArrayList<MergedItem> newUserBackgroundItems = null;
         boolean diffUsers = false;
         try {
+            // Only sample the memory of the processes that were started or
+            // changed importance since their last sample, or whose sample is
+            // too old; the others keep their last one.
+            final long now = SystemClock.uptimeMillis();
             final int numProc = mAllProcessItems.size();
             int[] pids = new int[numProc];
+            int[] sampled = new int[numProc];
+            int numPids = 0;
+            boolean processesChanged = false;
             for (int i=0; i<numProc; i++) {
-                pids[i] = mAllProcessItems.get(i).mPid;
+                ProcessItem proc = mAllProcessItems.get(i);
+                boolean current = proc.isPssSampleCurrent();
+                if (!current || proc.mPssTime < (now-PSS_MAX_AGE)) {
+                    pids[numPids] = proc.mPid;
+                    sampled[numPids] = i;
+                    numPids++;
+                    processesChanged |= !current;
+                }
+            }
+            mProcessesChanged = processesChanged;
+            if (numPids > 0) {
+                long[] pss = ActivityManagerNative.getDefault()
+                        .getProcessPss(Arrays.copyOf(pids, numPids));
+                for (int i=0; i<numPids; i++) {
+                    mAllProcessItems.get(sampled[i]).setPssSample(pss[i], now);
+                }
             }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
             int bgIndex = 0;
-            for (int i=0; i<pids.length; i++) {
+            for (int i=0; i<numProc; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
-                changed |= proc.updateSize(context, pss[i], mSequence);
+                changed |= proc.updateSize(context, proc.mPss, mSequence);
                 if (proc.mCurSeq == mSequence) {
                     serviceProcessMemory += proc.mSize;
                 } else if (proc.mRunningProcessInfo.importance >=
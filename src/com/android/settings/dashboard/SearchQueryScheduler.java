@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Schedules the queries issued while the user is typing.
+ *
+ * A query is only started once no other query has been requested during the debounce window,
+ * and starting a query cancels the one in flight (if any). Requesting the query that is
+ * already pending or in flight does nothing. Results are copied into snapshots kept in a small
+ * LRU cache so that going back to a recent query (for example with backspace) is immediate.
+ *
+ * All the methods must be called from the main thread.
+ */
+class SearchQueryScheduler {
+
+    private static final String LOG_TAG = "SearchQueryScheduler";
+
+    private static final int MAX_CACHED_SNAPSHOTS = 16;
+
+    /**
+     * The query run in the background.
+     */
+    public interface Query {
+        /**
+         * @param signal to be given to the underlying database queries
+         * @return the result cursor, which will be closed by the scheduler
+         */
+        Cursor run(String query, CancellationSignal signal);
+    }
+
+    /**
+     * Receives the results on the main thread.
+     */
+    public interface Callback {
+        /**
+         * @param cursor a cursor owned by the callback
+         */
+        void onQueryResult(String query, Cursor cursor);
+    }
+
+    /**
+     * An immutable copy of the result of a query.
+     */
+    private static class Snapshot {
+        public final String[] columnNames;
+        public final Object[][] rows;
+
+        public Snapshot(Cursor cursor) {
+            columnNames = cursor.getColumnNames();
+            rows = new Object[cursor.getCount()][];
+            final int columnCount = columnNames.length;
+            int position = 0;
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext() && position < rows.length) {
+                final Object[] values = new Object[columnCount];
+                for (int n = 0; n < columnCount; n++) {
+                    values[n] = cursor.getString(n);
+                }
+                rows[position++] = values;
+            }
+        }
+
+        public Cursor toCursor() {
+            final MatrixCursor cursor = new MatrixCursor(columnNames, rows.length);
+            for (int n = 0; n < rows.length; n++) {
+                if (rows[n] != null) {
+                    cursor.addRow(rows[n]);
+                }
+            }
+            return cursor;
+        }
+    }
+
+    private final Handler mHandler = new Handler();
+    private final LruCache<String, Snapshot> mSnapshots =
+            new LruCache<String, Snapshot>(MAX_CACHED_SNAPSHOTS);
+
+    private final Query mRunner;
+    private final Callback mCallback;
+    private final long mDebounceMillis;
+
+    private String mPendingQuery;
+    private QueryTask mTask;
+
+    private final Runnable mStartPendingQuery = new Runnable() {
+        @Override
+        public void run() {
+            final String query = mPendingQuery;
+            mPendingQuery = null;
+            if (query != null) {
+                // Do not wait behind the Index updates running on the serial executor
+                mTask = new QueryTask(query);
+                mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void[]) null);
+            }
+        }
+    };
+
+    public SearchQueryScheduler(Query runner, Callback callback, long debounceMillis) {
+        mRunner = runner;
+        mCallback = callback;
+        mDebounceMillis = debounceMillis;
+    }
+
+    /**
+     * Request the results of a query. They will be delivered to the {@link Callback} either
+     * immediately if they are cached, or once the query has run.
+     */
+    public void schedule(String query) {
+        if (query == null) {
+            cancel();
+            return;
+        }
+        if (query.equals(mPendingQuery) || (mTask != null && query.equals(mTask.mQuery))) {
+            return;
+        }
+        cancel();
+
+        final Snapshot snapshot = mSnapshots.get(query);
+        if (snapshot != null) {
+            mCallback.onQueryResult(query, snapshot.toCursor());
+            return;
+        }
+
+        mPendingQuery = query;
+        mHandler.postDelayed(mStartPendingQuery, mDebounceMillis);
+    }
+
+    /**
+     * Cancel the pending and in flight queries. Their results will not be delivered.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mStartPendingQuery);
+        mPendingQuery = null;
+        if (mTask != null) {
+            mTask.cancelQuery();
+            mTask = null;
+        }
+    }
+
+    /**
+     * Drop the cached results, as they do not reflect the data anymore.
+     */
+    public void invalidate() {
+        mSnapshots.evictAll();
+    }
+
+    private class QueryTask extends AsyncTask<Void, Void, Snapshot> {
+        private final String mQuery;
+        private final CancellationSignal mSignal = new CancellationSignal();
+
+        public QueryTask(String query) {
+            mQuery = query;
+        }
+
+        public void cancelQuery() {
+            cancel(false);
+            mSignal.cancel();
+        }
+
+        @Override
+        protected Snapshot doInBackground(Void... params) {
+            Cursor cursor = null;
+            try {
+                cursor = mRunner.run(mQuery, mSignal);
+                return (cursor != null) ? new Snapshot(cursor) : null;
+            } catch (OperationCanceledException e) {
+                Log.d(LOG_TAG, "Query canceled: " + mQuery);
+                return null;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Snapshot snapshot) {
+            if (mTask != this) {
+                return;
+            }
+            mTask = null;
+            if (snapshot == null) {
+                return;
+            }
+            mSnapshots.put(mQuery, snapshot);
+            mCallback.onQueryResult(mQuery, snapshot.toCursor());
+        }
+    }
+}
@@ -24,8 +24,8 @@ import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -53,15 +53,19 @@ public class SearchResultsSummary extends Fragment {
 
     private static final String SAVE_KEY_SHOW_RESULTS = ":settings:show_results";
 
+    // Time to wait for another key stroke before running a search query
+    private static final long SEARCH_DEBOUNCE_MILLIS = 100;
+    private static final long SUGGESTIONS_DEBOUNCE_MILLIS = 0;
+
     private SearchView mSearchView;
 
     private ListView mResultsListView;
     private SearchResultsAdapter mResultsAdapter;
-    private UpdateSearchResultsTask mUpdateSearchResultsTask;
+    private SearchQueryScheduler mSearchResultsScheduler;
 
     private ListView mSuggestionsListView;
     private SuggestionsAdapter mSuggestionsAdapter;
-    private UpdateSuggestionsTask mUpdateSuggestionsTask;
+    private SearchQueryScheduler mSuggestionsScheduler;
 
     private ViewGroup mLayoutSuggestions;
     private ViewGroup mLayoutResults;
@@ -71,44 +75,44 @@ public class SearchResultsSummary extends Fragment {
     private boolean mShowResults;
 
     /**
-     * A basic AsyncTask for updating the query results cursor
+     * Runs the search queries and updates the results cursor
      */
-    private class UpdateSearchResultsTask extends AsyncTask<String, Void, Cursor> {
+    private final SearchQueryScheduler.Query mSearchResultsQuery =
+            new SearchQueryScheduler.Query() {
         @Override
-        protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).search(params[0]);
+        public Cursor run(String query, CancellationSignal signal) {
+            return Index.getInstance(getActivity()).search(query, signal);
         }
+    };
 
+    private final SearchQueryScheduler.Callback mSearchResultsCallback =
+            new SearchQueryScheduler.Callback() {
         @Override
-        protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
-                setResultsCursor(cursor);
-                setResultsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
-                cursor.close();
-            }
+        public void onQueryResult(String query, Cursor cursor) {
+            setResultsCursor(cursor);
+            setResultsVisibility(cursor.getCount() > 0);
         }
-    }
+    };
 
     /**
-     * A basic AsyncTask for updating the suggestions cursor
+     * Runs the suggestions queries and updates the suggestions cursor
      */
-    private class UpdateSuggestionsTask extends AsyncTask<String, Void, Cursor> {
+    private final SearchQueryScheduler.Query mSuggestionsQuery =
+            new SearchQueryScheduler.Query() {
         @Override
-        protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).getSuggestions(params[0]);
+        public Cursor run(String query, CancellationSignal signal) {
+            return Index.getInstance(getActivity()).getSuggestions(query, signal);
         }
+    };
 
+    private final SearchQueryScheduler.Callback mSuggestionsCallback =
+            new SearchQueryScheduler.Callback() {
         @Override
-        protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
-                setSuggestionsCursor(cursor);
-                setSuggestionsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
-                cursor.close();
-            }
+        public void onQueryResult(String query, Cursor cursor) {
+            setSuggestionsCursor(cursor);
+            setSuggestionsVisibility(cursor.getCount() > 0);
         }
-    }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -117,6 +121,11 @@ public class SearchResultsSummary extends Fragment {
         mResultsAdapter = new SearchResultsAdapter(getActivity());
         mSuggestionsAdapter = new SuggestionsAdapter(getActivity());
 
+        mSearchResultsScheduler = new SearchQueryScheduler(mSearchResultsQuery,
+                mSearchResultsCallback, SEARCH_DEBOUNCE_MILLIS);
+        mSuggestionsScheduler = new SearchQueryScheduler(mSuggestionsQuery,
+                mSuggestionsCallback, SUGGESTIONS_DEBOUNCE_MILLIS);
+
         if (savedInstanceState != null) {
             mShowResults = savedInstanceState.getBoolean(SAVE_KEY_SHOW_RESULTS);
         }
@@ -135,17 +144,21 @@ public class SearchResultsSummary extends Fragment {
 
         clearSuggestions();
         clearResults();
+
+        // The Index may be updated while we are stopped
+        mSearchResultsScheduler.invalidate();
+        mSuggestionsScheduler.invalidate();
     }
 
     @Override
     public void onDestroy() {
         mResultsListView = null;
         mResultsAdapter = null;
-        mUpdateSearchResultsTask = null;
+        mSearchResultsScheduler = null;
 
         mSuggestionsListView = null;
         mSuggestionsAdapter = null;
-        mUpdateSuggestionsTask = null;
+        mSuggestionsScheduler = null;
 
         mSearchView = null;
 
@@ -271,6 +284,7 @@ public class SearchResultsSummary extends Fragment {
 
     private void saveQueryToDatabase() {
         Index.getInstance(getActivity()).addSavedQuery(mQuery);
+        mSuggestionsScheduler.invalidate();
     }
 
     public boolean onQueryTextSubmit(String query) {
@@ -307,9 +321,8 @@ public class SearchResultsSummary extends Fragment {
     }
 
     private void clearSuggestions() {
-        if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
-            mUpdateSuggestionsTask = null;
+        if (mSuggestionsScheduler != null) {
+            mSuggestionsScheduler.cancel();
         }
         setSuggestionsCursor(null);
     }
@@ -325,9 +338,8 @@ public class SearchResultsSummary extends Fragment {
     }
 
     private void clearResults() {
-        if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
-            mUpdateSearchResultsTask = null;
+        if (mSearchResultsScheduler != null) {
+            mSearchResultsScheduler.cancel();
         }
         setResultsCursor(null);
     }
@@ -357,35 +369,27 @@ public class SearchResultsSummary extends Fragment {
         return filtered.toString();
     }
 
-    private void clearAllTasks() {
-        if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
-            mUpdateSearchResultsTask = null;
-        }
-        if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
-            mUpdateSuggestionsTask = null;
-        }
-    }
-
     private void updateSuggestions() {
-        clearAllTasks();
+        // Do not cancel the pending suggestions query, so that it can be coalesced
+        mSearchResultsScheduler.cancel();
         if (mQuery == null) {
+            // Otherwise a pending query would bring back the suggestions cleared here
+            mSuggestionsScheduler.cancel();
             setSuggestionsCursor(null);
         } else {
-            mUpdateSuggestionsTask = new UpdateSuggestionsTask();
-            mUpdateSuggestionsTask.execute(mQuery);
+            mSuggestionsScheduler.schedule(mQuery);
         }
     }
 
     private void updateSearchResults() {
-        clearAllTasks();
+        // Do not cancel the pending search query, so that it can be coalesced
+        mSuggestionsScheduler.cancel();
         if (TextUtils.isEmpty(mQuery)) {
+            mSearchResultsScheduler.cancel();
             setResultsVisibility(false);
             setResultsCursor(null);
         } else {
-            mUpdateSearchResultsTask = new UpdateSearchResultsTask();
-            mUpdateSearchResultsTask.execute(mQuery);
+            mSearchResultsScheduler.schedule(mQuery);
         }
     }
 
@@ -50,6 +50,10 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -80,6 +84,14 @@ public class StorageMeasurement {
     @GuardedBy("sInstances")
     private static HashMap<StorageVolume, StorageMeasurement> sInstances = Maps.newHashMap();
 
+    /** Directories are measured concurrently, shared by all the volumes. */
+    private static final ThreadPoolExecutor sMeasureExecutor;
+    static {
+        sMeasureExecutor = new ThreadPoolExecutor(4, 4, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        sMeasureExecutor.allowCoreThreadTimeOut(true);
+    }
+
     /**
      * Obtain shared instance of {@link StorageMeasurement} for given physical
      * {@link StorageVolume}, or internal storage if {@code null}.
@@ -141,6 +153,13 @@ public class StorageMeasurement {
          * internal storage. Key is {@link UserHandle}.
          */
         public SparseLongArray usersSize = new SparseLongArray();
+
+        /**
+         * Whether everything has been measured. Partial details are delivered while
+         * measuring: the values not measured yet are those of the previous measurement if
+         * any, otherwise missing or 0.
+         */
+        public boolean complete;
     }
 
     public interface MeasurementReceiver {
@@ -189,6 +208,7 @@ public class StorageMeasurement {
     public void cleanUp() {
         mReceiver = null;
         mHandler.removeMessages(MeasurementHandler.MSG_MEASURE);
+        mHandler.cancelExactMeasurement();
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_DISCONNECT);
     }
 
@@ -219,12 +239,12 @@ public class StorageMeasurement {
         private final boolean mIsInternal;
         private final MeasurementDetails mDetails;
         private final int mCurrentUser;
-        private final Message mFinished;
+        private final Runnable mFinished;
 
         private int mRemaining;
 
         public StatsObserver(boolean isInternal, MeasurementDetails details, int currentUser,
-                Message finished, int remaining) {
+                Runnable finished, int remaining) {
             mIsInternal = isInternal;
             mDetails = details;
             mCurrentUser = currentUser;
@@ -239,7 +259,7 @@ public class StorageMeasurement {
                     addStatsLocked(stats);
                 }
                 if (--mRemaining == 0) {
-                    mFinished.sendToTarget();
+                    mFinished.run();
                 }
             }
         }
@@ -285,6 +305,7 @@ public class StorageMeasurement {
         public static final int MSG_DISCONNECT = 3;
         public static final int MSG_COMPLETED = 4;
         public static final int MSG_INVALIDATE = 5;
+        public static final int MSG_PARTIAL = 6;
 
         private Object mLock = new Object();
 
@@ -294,6 +315,11 @@ public class StorageMeasurement {
 
         private MeasurementDetails mCached;
 
+        /** Last complete details, the base of the partial ones until measured again. */
+        private MeasurementDetails mLastCompleted;
+
+        private volatile ExactMeasurement mExactMeasurement;
+
         private final WeakReference<Context> mContext;
 
         private final ServiceConnection mDefContainerConn = new ServiceConnection() {
@@ -364,8 +390,23 @@ public class StorageMeasurement {
                     }
                     break;
                 }
+                case MSG_PARTIAL: {
+                    final ExactMeasurement measurement = (ExactMeasurement) msg.obj;
+                    if (measurement == mExactMeasurement && !measurement.isCancelled()) {
+                        sendExactUpdate(measurement.snapshot(mLastCompleted));
+                    }
+                    break;
+                }
                 case MSG_COMPLETED: {
-                    mCached = (MeasurementDetails) msg.obj;
+                    final ExactMeasurement measurement = (ExactMeasurement) msg.obj;
+                    if (measurement != mExactMeasurement || measurement.isCancelled()) {
+                        break;
+                    }
+                    mExactMeasurement = null;
+                    removeMessages(MSG_PARTIAL);
+                    mFileInfoForMisc = measurement.getMiscFiles();
+                    mCached = measurement.snapshot(null);
+                    mLastCompleted = mCached;
                     sendExactUpdate(mCached);
                     break;
                 }
@@ -390,17 +431,27 @@ public class StorageMeasurement {
             sendInternalApproximateUpdate();
         }
 
+        /**
+         * Stop the exact measurement in progress, if any: nothing it measures is delivered
+         * anymore.
+         */
+        void cancelExactMeasurement() {
+            final ExactMeasurement measurement = mExactMeasurement;
+            if (measurement != null) {
+                measurement.cancel();
+            }
+        }
+
         private void measureExactStorage(IMediaContainerService imcs) {
             final Context context = mContext != null ? mContext.get() : null;
             if (context == null) {
                 return;
             }
 
-            final MeasurementDetails details = new MeasurementDetails();
-            final Message finished = obtainMessage(MSG_COMPLETED, details);
-
-            details.totalSize = mTotalSize;
-            details.availSize = mAvailSize;
+            // Whatever was being measured is out of date.
+            cancelExactMeasurement();
+            final ExactMeasurement measurement = new ExactMeasurement(this, imcs);
+            mExactMeasurement = measurement;
 
             final UserManager userManager = (UserManager) context.getSystemService(
                     Context.USER_SERVICE);
@@ -415,9 +466,8 @@ public class StorageMeasurement {
                     || mIsPrimary;
             if (measureMedia) {
                 for (String type : sMeasureMediaTypes) {
-                    final File path = currentEnv.getExternalStoragePublicDirectory(type);
-                    final long size = getDirectorySize(imcs, path);
-                    details.mediaSize.put(type, size);
+                    measurement.measureMedia(type,
+                            currentEnv.getExternalStoragePublicDirectory(type));
                 }
             }
 
@@ -425,15 +475,14 @@ public class StorageMeasurement {
             if (measureMedia) {
                 final File path = mIsInternal ? currentEnv.getExternalStorageDirectory()
                         : mVolume.getPathFile();
-                details.miscSize = measureMisc(imcs, path);
+                measurement.measureMisc(path);
             }
 
             // Measure total emulated storage of all users; internal apps data
             // will be spliced in later
             for (UserInfo user : users) {
                 final UserEnvironment userEnv = new UserEnvironment(user.id);
-                final long size = getDirectorySize(imcs, userEnv.getExternalStorageDirectory());
-                addValue(details.usersSize, user.id, size);
+                measurement.measureUser(user.id, userEnv.getExternalStorageDirectory());
             }
 
             // Measure all apps for all users
@@ -442,68 +491,297 @@ public class StorageMeasurement {
                 final List<ApplicationInfo> apps = pm.getInstalledApplications(
                         PackageManager.GET_UNINSTALLED_PACKAGES
                         | PackageManager.GET_DISABLED_COMPONENTS);
+                measurement.measureApps(pm, apps, users, currentUser);
+            }
+
+            measurement.start();
+        }
+    }
 
-                final int count = users.size() * apps.size();
-                final StatsObserver observer = new StatsObserver(
-                        mIsInternal, details, currentUser, finished, count);
+    /**
+     * One exact measurement, split into tasks run concurrently on {@link #sMeasureExecutor}:
+     * one per media directory, per top level misc directory and per user, plus the stats of
+     * all the apps. Partial details are posted to the handler each time a task completes,
+     * and the complete ones once the last task has completed. Once cancelled, the tasks not
+     * started yet never run and the results of the others are dropped.
+     */
+    private class ExactMeasurement {
+        private final MeasurementHandler mHandler;
+        private final IMediaContainerService mImcs;
+
+        private final Object mLock = new Object();
+
+        /** Only holds the values measured so far. */
+        @GuardedBy("mLock")
+        private final MeasurementDetails mDetails = new MeasurementDetails();
+        @GuardedBy("mLock")
+        private final ArrayList<Future<?>> mFutures = new ArrayList<Future<?>>();
+        @GuardedBy("mLock")
+        private final ArrayList<FileInfo> mMiscFiles = new ArrayList<FileInfo>();
+        @GuardedBy("mLock")
+        private long mMiscSize;
+        @GuardedBy("mLock")
+        private int mMiscRemaining;
+        @GuardedBy("mLock")
+        private boolean mMiscMeasured;
+        @GuardedBy("mLock")
+        private boolean mAppsMeasured;
+        /** Tasks not completed yet, plus one until {@link #start()}. */
+        @GuardedBy("mLock")
+        private int mRemaining = 1;
+
+        private volatile boolean mCancelled;
+
+        ExactMeasurement(MeasurementHandler handler, IMediaContainerService imcs) {
+            mHandler = handler;
+            mImcs = imcs;
+            mDetails.totalSize = mTotalSize;
+            mDetails.availSize = mAvailSize;
+        }
 
-                for (UserInfo user : users) {
-                    for (ApplicationInfo app : apps) {
-                        pm.getPackageSizeInfo(app.packageName, user.id, observer);
+        void measureMedia(final String type, final File path) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    final long size = getDirectorySize(mImcs, path);
+                    synchronized (mLock) {
+                        mDetails.mediaSize.put(type, size);
                     }
                 }
+            });
+        }
 
-            } else {
-                finished.sendToTarget();
+        void measureMisc(final File dir) {
+            synchronized (mLock) {
+                mMiscRemaining++;
             }
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    listMisc(dir);
+                    miscTaskDone();
+                }
+            });
         }
-    }
 
-    private static long getDirectorySize(IMediaContainerService imcs, File path) {
-        try {
-            final long size = imcs.calculateDirectorySize(path.toString());
-            Log.d(TAG, "getDirectorySize(" + path + ") returned " + size);
-            return size;
-        } catch (Exception e) {
-            Log.w(TAG, "Could not read memory from default container service for " + path, e);
-            return 0;
+        void measureUser(final int userId, final File path) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    final long size = getDirectorySize(mImcs, path);
+                    synchronized (mLock) {
+                        addValue(mDetails.usersSize, userId, size);
+                    }
+                }
+            });
         }
-    }
 
-    private long measureMisc(IMediaContainerService imcs, File dir) {
-        mFileInfoForMisc = new ArrayList<FileInfo>();
+        void measureApps(PackageManager pm, List<ApplicationInfo> apps, List<UserInfo> users,
+                int currentUser) {
+            final int count = users.size() * apps.size();
+            if (count == 0) {
+                synchronized (mLock) {
+                    mAppsMeasured = true;
+                }
+                return;
+            }
+            synchronized (mLock) {
+                mRemaining++;
+            }
+            // Added to the details all at once, a partial apps size being meaningless.
+            final MeasurementDetails appsDetails = new MeasurementDetails();
+            final StatsObserver observer = new StatsObserver(mIsInternal, appsDetails,
+                    currentUser, new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (mLock) {
+                                mDetails.appsSize += appsDetails.appsSize;
+                                mDetails.cacheSize += appsDetails.cacheSize;
+                                for (int i = 0; i < appsDetails.usersSize.size(); i++) {
+                                    addValue(mDetails.usersSize, appsDetails.usersSize.keyAt(i),
+                                            appsDetails.usersSize.valueAt(i));
+                                }
+                                mAppsMeasured = true;
+                            }
+                            taskDone();
+                        }
+                    }, count);
 
-        final File[] files = dir.listFiles();
-        if (files == null) return 0;
+            for (UserInfo user : users) {
+                for (ApplicationInfo app : apps) {
+                    pm.getPackageSizeInfo(app.packageName, user.id, observer);
+                }
+            }
+        }
 
-        // Get sizes of all top level nodes except the ones already computed
-        long counter = 0;
-        long miscSize = 0;
+        /**
+         * Call once all the tasks have been submitted.
+         */
+        void start() {
+            taskDone();
+        }
 
-        for (File file : files) {
-            final String path = file.getAbsolutePath();
-            final String name = file.getName();
-            if (sMeasureMediaTypes.contains(name)) {
-                continue;
+        void cancel() {
+            mCancelled = true;
+            synchronized (mLock) {
+                for (Future<?> future : mFutures) {
+                    future.cancel(false);
+                }
+                mFutures.clear();
             }
+        }
 
-            if (file.isFile()) {
-                final long fileSize = file.length();
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
-                miscSize += fileSize;
-            } else if (file.isDirectory()) {
-                final long dirSize = getDirectorySize(imcs, file);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                miscSize += dirSize;
-            } else {
-                // Non directory, non file: not listed
+        boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * @return the details measured so far, completed with the values of the given
+         * details for what has not been measured yet
+         */
+        MeasurementDetails snapshot(MeasurementDetails previous) {
+            final MeasurementDetails details = new MeasurementDetails();
+            synchronized (mLock) {
+                details.complete = mRemaining == 0;
+                if (details.complete) {
+                    previous = null;
+                }
+                details.totalSize = mDetails.totalSize;
+                details.availSize = mDetails.availSize;
+                if (previous != null) {
+                    details.mediaSize.putAll(previous.mediaSize);
+                }
+                details.mediaSize.putAll(mDetails.mediaSize);
+                final MeasurementDetails apps = mAppsMeasured || previous == null
+                        ? mDetails : previous;
+                details.appsSize = apps.appsSize;
+                details.cacheSize = apps.cacheSize;
+                // Also holds the data of the apps of each user: without it, the sizes of the
+                // user dirs alone would be shown as if they were the total.
+                if (mAppsMeasured || previous != null) {
+                    details.usersSize = apps.usersSize.clone();
+                }
+                details.miscSize = mMiscMeasured || previous == null
+                        ? mDetails.miscSize : previous.miscSize;
+            }
+            return details;
+        }
+
+        /**
+         * @return the misc files measured, largest first
+         */
+        List<FileInfo> getMiscFiles() {
+            synchronized (mLock) {
+                final ArrayList<FileInfo> files = new ArrayList<FileInfo>(mMiscFiles);
+                Collections.sort(files);
+                return files;
+            }
+        }
+
+        private void listMisc(File dir) {
+            final File[] files = dir.listFiles();
+            if (files == null) return;
+
+            // Get sizes of all top level nodes except the ones already computed
+            long filesSize = 0;
+            for (final File file : files) {
+                final String name = file.getName();
+                if (sMeasureMediaTypes.contains(name)) {
+                    continue;
+                }
+
+                if (file.isFile()) {
+                    final long fileSize = file.length();
+                    addMiscFile(file.getAbsolutePath(), fileSize);
+                    filesSize += fileSize;
+                } else if (file.isDirectory()) {
+                    synchronized (mLock) {
+                        mMiscRemaining++;
+                    }
+                    submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            final long dirSize = getDirectorySize(mImcs, file);
+                            addMiscFile(file.getAbsolutePath(), dirSize);
+                            synchronized (mLock) {
+                                mMiscSize += dirSize;
+                            }
+                            miscTaskDone();
+                        }
+                    });
+                } else {
+                    // Non directory, non file: not listed
+                }
+            }
+            synchronized (mLock) {
+                mMiscSize += filesSize;
+            }
+        }
+
+        private void addMiscFile(String path, long size) {
+            synchronized (mLock) {
+                mMiscFiles.add(new FileInfo(path, size, mMiscFiles.size()));
+            }
+        }
+
+        private void miscTaskDone() {
+            synchronized (mLock) {
+                if (--mMiscRemaining == 0) {
+                    // Only shown once complete, like the apps.
+                    mDetails.miscSize = mMiscSize;
+                    mMiscMeasured = true;
+                }
+            }
+        }
+
+        private void submit(final Runnable task) {
+            synchronized (mLock) {
+                if (mCancelled) {
+                    return;
+                }
+                mRemaining++;
+                mFutures.add(sMeasureExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mCancelled) {
+                            return;
+                        }
+                        try {
+                            task.run();
+                        } finally {
+                            taskDone();
+                        }
+                    }
+                }));
             }
         }
 
-        // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
+        private void taskDone() {
+            final boolean complete;
+            synchronized (mLock) {
+                complete = --mRemaining == 0;
+            }
+            if (mCancelled) {
+                return;
+            }
+            if (complete) {
+                mHandler.obtainMessage(MeasurementHandler.MSG_COMPLETED, this).sendToTarget();
+            } else if (!mHandler.hasMessages(MeasurementHandler.MSG_PARTIAL, this)) {
+                // Coalesced: tasks completing together only cause one update.
+                mHandler.obtainMessage(MeasurementHandler.MSG_PARTIAL, this).sendToTarget();
+            }
+        }
+    }
 
-        return miscSize;
+    private static long getDirectorySize(IMediaContainerService imcs, File path) {
+        try {
+            final long size = imcs.calculateDirectorySize(path.toString());
+            Log.d(TAG, "getDirectorySize(" + path + ") returned " + size);
+            return size;
+        } catch (Exception e) {
+            Log.w(TAG, "Could not read memory from default container service for " + path, e);
+            return 0;
+        }
     }
 
     static class FileInfo implements Comparable<FileInfo> {
@@ -307,11 +307,18 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
         updatePreferencesFromState();
     }
 
-    private static long totalValues(HashMap<String, Long> map, String... keys) {
+    /**
+     * @return the total of the given keys, or -1 if the details are partial and some of the
+     * keys have not been measured yet
+     */
+    private static long totalValues(MeasurementDetails details, String... keys) {
+        final HashMap<String, Long> map = details.mediaSize;
         long total = 0;
         for (String key : keys) {
             if (map.containsKey(key)) {
                 total += map.get(key);
+            } else if (!details.complete) {
+                return -1;
             }
         }
         return total;
@@ -327,38 +334,41 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
 
         mUsageBarPreference.clear();
 
-        updatePreference(mItemApps, details.appsSize);
+        final boolean complete = details.complete;
+        updatePreference(mItemApps, details.appsSize, complete);
 
-        final long dcimSize = totalValues(details.mediaSize, Environment.DIRECTORY_DCIM,
+        final long dcimSize = totalValues(details, Environment.DIRECTORY_DCIM,
                 Environment.DIRECTORY_MOVIES, Environment.DIRECTORY_PICTURES);
-        updatePreference(mItemDcim, dcimSize);
+        updatePreference(mItemDcim, dcimSize, complete);
 
-        final long musicSize = totalValues(details.mediaSize, Environment.DIRECTORY_MUSIC,
+        final long musicSize = totalValues(details, Environment.DIRECTORY_MUSIC,
                 Environment.DIRECTORY_ALARMS, Environment.DIRECTORY_NOTIFICATIONS,
                 Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS);
-        updatePreference(mItemMusic, musicSize);
+        updatePreference(mItemMusic, musicSize, complete);
 
-        final long downloadsSize = totalValues(details.mediaSize, Environment.DIRECTORY_DOWNLOADS);
-        updatePreference(mItemDownloads, downloadsSize);
+        final long downloadsSize = totalValues(details, Environment.DIRECTORY_DOWNLOADS);
+        updatePreference(mItemDownloads, downloadsSize, complete);
 
-        updatePreference(mItemCache, details.cacheSize);
-        updatePreference(mItemMisc, details.miscSize);
+        updatePreference(mItemCache, details.cacheSize, complete);
+        updatePreference(mItemMisc, details.miscSize, complete);
 
         for (StorageItemPreference userPref : mItemUsers) {
             final long userSize = details.usersSize.get(userPref.userHandle);
-            updatePreference(userPref, userSize);
+            updatePreference(userPref, userSize, complete);
         }
 
         mUsageBarPreference.commit();
     }
 
-    private void updatePreference(StorageItemPreference pref, long size) {
+    private void updatePreference(StorageItemPreference pref, long size, boolean complete) {
         if (size > 0) {
             pref.setSummary(formatSize(size));
             final int order = pref.getOrder();
             mUsageBarPreference.addEntry(order, size / (float) mTotalSize, pref.color);
-        } else {
+        } else if (complete) {
             removePreference(pref);
+        } else {
+            // Not measured yet: still calculating.
         }
     }
 
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import com.android.settings.R;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.text.format.DateUtils;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Bar chart of the power an app drained each day of a {@link BatteryDrainRecorder.History},
+ * with a marker where each charge cycle started.
+ */
+public class BatteryDrainChart extends View {
+    private final Paint mBarPaint = new Paint();
+    private final Paint mCyclePaint = new Paint();
+    private final float mBarGap;
+
+    private BatteryDrainRecorder.History mHistory;
+    private long mEndTime;
+    private double[] mDailyDrains;
+    private double mMaxDrain;
+
+    public BatteryDrainChart(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        final float density = context.getResources().getDisplayMetrics().density;
+        mBarPaint.setStyle(Paint.Style.FILL);
+        mBarPaint.setColor(context.getResources().getColor(R.color.theme_accent));
+        mCyclePaint.setStyle(Paint.Style.STROKE);
+        mCyclePaint.setStrokeWidth(density);
+        mCyclePaint.setColor(context.getResources().getColor(
+                R.color.running_processes_system_ram));
+        mBarGap = 2 * density;
+    }
+
+    /**
+     * Show the drain of the given days, the last one ending at the given time.
+     */
+    public void setHistory(BatteryDrainRecorder.History history, long endTime, int days) {
+        mHistory = history;
+        mEndTime = endTime;
+        mDailyDrains = new double[Math.max(days, 1)];
+        mMaxDrain = 0;
+        final long startTime = getStartTime();
+        for (int i=0; i<history.size; i++) {
+            final long time = history.times[i];
+            if (time <= startTime || time > endTime) {
+                continue;
+            }
+            final int day = (int) ((time - startTime - 1) / DateUtils.DAY_IN_MILLIS);
+            mDailyDrains[day] += history.drains[i];
+            mMaxDrain = Math.max(mMaxDrain, mDailyDrains[day]);
+        }
+        invalidate();
+    }
+
+    /**
+     * @return the total power drained over the days shown, in mAh
+     */
+    public double getTotalDrain() {
+        double total = 0;
+        if (mDailyDrains != null) {
+            for (int i=0; i<mDailyDrains.length; i++) {
+                total += mDailyDrains[i];
+            }
+        }
+        return total;
+    }
+
+    private long getStartTime() {
+        return mEndTime - mDailyDrains.length * DateUtils.DAY_IN_MILLIS;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mHistory == null) {
+            return;
+        }
+        final boolean rtl = getLayoutDirection() == LAYOUT_DIRECTION_RTL;
+        final int width = getWidth() - getPaddingStart() - getPaddingEnd();
+        final int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        canvas.save();
+        canvas.translate(rtl ? getPaddingEnd() : getPaddingStart(), getPaddingTop());
+        if (rtl) {
+            // Time flows from right to left: draw as in LTR, mirrored.
+            canvas.scale(-1, 1, width / 2f, 0);
+        }
+
+        final int days = mDailyDrains.length;
+        final float dayWidth = width / (float)days;
+        if (mMaxDrain > 0) {
+            for (int i=0; i<days; i++) {
+                final float top = height - (float) (height * mDailyDrains[i] / mMaxDrain);
+                canvas.drawRect(i * dayWidth + mBarGap / 2, top,
+                        (i + 1) * dayWidth - mBarGap / 2, height, mBarPaint);
+            }
+        }
+
+        final long startTime = getStartTime();
+        final long duration = mEndTime - startTime;
+        for (int i=0; i<mHistory.resetCount; i++) {
+            final long time = mHistory.resetTimes[i];
+            if (time <= startTime || time > mEndTime) {
+                continue;
+            }
+            final float x = width * (time - startTime) / (float)duration;
+            canvas.drawLine(x, 0, x, height, mCyclePaint);
+        }
+        canvas.restore();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+
+import com.android.settings.R;
+
+/**
+ * Samples the power drained by each app through {@link BatteryDrainRecorder} on an inexact,
+ * non-waking alarm, scheduled again on boot.
+ */
+public class BatteryDrainRecordReceiver extends BroadcastReceiver {
+    private static final String ACTION_RECORD =
+            "com.android.settings.fuelgauge.RECORD_BATTERY_DRAIN";
+
+    /**
+     * Schedule the recording alarm, unless it is already scheduled.
+     */
+    static void schedule(Context context) {
+        final PendingIntent pending = PendingIntent.getBroadcast(context, 0,
+                getRecordIntent(context), PendingIntent.FLAG_NO_CREATE);
+        if (pending == null) {
+            setAlarm(context);
+        }
+    }
+
+    private static void setAlarm(Context context) {
+        final AlarmManager alarmManager =
+                (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        final PendingIntent pending = PendingIntent.getBroadcast(context, 0,
+                getRecordIntent(context), 0);
+        final long interval = context.getResources().getInteger(
+                R.integer.config_batteryDrainRecordIntervalMinutes) * DateUtils.MINUTE_IN_MILLIS;
+        if (interval <= 0) {
+            // Recording disabled.
+            alarmManager.cancel(pending);
+            pending.cancel();
+            return;
+        }
+        // Not waking the device up: a sample taken late still holds everything drained since.
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + interval, interval, pending);
+    }
+
+    private static Intent getRecordIntent(Context context) {
+        final Intent intent = new Intent(ACTION_RECORD);
+        intent.setClass(context, BatteryDrainRecordReceiver.class);
+        return intent;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final String action = intent.getAction();
+        if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
+            setAlarm(context);
+        } else if (ACTION_RECORD.equals(action)) {
+            final Context appContext = context.getApplicationContext();
+            final PendingResult result = goAsync();
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BatteryDrainRecorder.record(appContext);
+                    } finally {
+                        result.finish();
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,579 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.Context;
+import android.os.BatteryStats;
+import android.os.Bundle;
+import android.os.UserManager;
+import android.text.format.DateUtils;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseLongArray;
+
+import com.android.internal.os.BatterySipper;
+import com.android.internal.os.BatteryStatsHelper;
+import com.android.settings.R;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records the power drained by each app over time, so that its drain can be shown across
+ * several charge cycles while {@link BatteryStats} only holds the current one.
+ *
+ * Each sample is appended to a log as a single record holding, for every app which drained
+ * power since the previous record, its uid and the power it drained since. The log header
+ * holds the time it starts from; each record holds its time as an offset from the previous
+ * one. All the numbers are variable length, so a record typically takes a couple
+ * of bytes per app. The total power of each app at the previous sample is kept in a small
+ * separate state file, rewritten on each sample.
+ *
+ * Records older than the retention are dropped, at most once a day, by rewriting the log.
+ * The log is always opened through its {@link AtomicFile}, which restores it from its backup
+ * if a rewrite was interrupted. Records are then appended in place to its base file, since
+ * an {@link AtomicFile} cannot be appended to at a given offset.
+ */
+final class BatteryDrainRecorder {
+    private static final String TAG = "BatteryDrainRecorder";
+
+    private static final int MAGIC = 0x42445252; // "BDRR"
+    private static final int VERSION = 1;
+    /** Magic, version and base time. */
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+
+    static final String LOG_FILE_NAME = "battery_drain";
+    private static final String STATE_FILE_NAME = "battery_drain_state";
+
+    /** The stats have been reset since the previous record: a new charge cycle started. */
+    static final int FLAG_RESET = 1 << 0;
+
+    /** Power is stored in hundredths of mAh. */
+    private static final double POWER_UNITS_PER_MAH = 100;
+
+    private static final Object sLock = new Object();
+
+    /**
+     * The drain of one app, one entry per record in which it drained power.
+     */
+    static final class History {
+        int size;
+        long[] times;
+        /** Power drained since the previous record, in mAh. */
+        double[] drains;
+
+        int resetCount;
+        /** Times of the records which started a new charge cycle. */
+        long[] resetTimes;
+
+        /** Start of the recording, or of the retention if older records were dropped. */
+        long startTime;
+
+        History() {
+            times = new long[16];
+            drains = new double[16];
+            resetTimes = new long[4];
+        }
+
+        private void add(long time, double drain) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                drains = Arrays.copyOf(drains, size * 2);
+            }
+            times[size] = time;
+            drains[size] = drain;
+            size++;
+        }
+
+        private void addReset(long time) {
+            if (resetCount == resetTimes.length) {
+                resetTimes = Arrays.copyOf(resetTimes, resetCount * 2);
+            }
+            resetTimes[resetCount++] = time;
+        }
+    }
+
+    /**
+     * What is needed to append the next record.
+     */
+    private static class State {
+        /** Length of the log up to the end of its last complete record. */
+        long logLength;
+        long baseTime;
+        long lastRecordTime;
+        /** Identifies the stats window the powers below were read from. */
+        long startClockTime;
+        /** Total power of each app, since the start of the stats window. */
+        SparseLongArray powers = new SparseLongArray();
+    }
+
+    private final AtomicFile mLogFile;
+    private final File mStateFile;
+    private final long mRetentionMs;
+
+    private BatteryDrainRecorder(Context context) {
+        this(context.getFilesDir(), context.getResources().getInteger(
+                R.integer.config_batteryDrainRetentionDays) * DateUtils.DAY_IN_MILLIS);
+    }
+
+    /**
+     * @param dir the directory of the log and state files
+     * @param retentionMs how long records are kept
+     */
+    BatteryDrainRecorder(File dir, long retentionMs) {
+        mLogFile = new AtomicFile(new File(dir, LOG_FILE_NAME));
+        mStateFile = new File(dir, STATE_FILE_NAME);
+        mRetentionMs = retentionMs;
+    }
+
+    /**
+     * Sample the power drained by each app and append it to the log. Slow: do it off the UI
+     * thread.
+     */
+    static void record(Context context) {
+        final BatteryStatsHelper helper = new BatteryStatsHelper(context, false);
+        helper.create((Bundle) null);
+        final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        helper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, um.getUserProfiles());
+
+        final SparseLongArray powers = new SparseLongArray();
+        final List<BatterySipper> usageList = helper.getUsageList();
+        for (int i=0; i<usageList.size(); i++) {
+            final BatterySipper sipper = usageList.get(i);
+            if (sipper.drainType != BatterySipper.DrainType.APP || sipper.uidObj == null) {
+                continue;
+            }
+            final long power = Math.round(sipper.value * POWER_UNITS_PER_MAH);
+            if (power > 0) {
+                final int uid = sipper.getUid();
+                powers.put(uid, powers.get(uid) + power);
+            }
+        }
+        final BatteryStats stats = helper.getStats();
+        final long startClockTime = stats != null ? stats.getStartClockTime() : 0;
+
+        synchronized (sLock) {
+            new BatteryDrainRecorder(context).appendLocked(System.currentTimeMillis(),
+                    startClockTime, powers);
+        }
+    }
+
+    /**
+     * @return the recorded drain of the given uid, oldest first
+     */
+    static History readHistory(Context context, int uid) {
+        synchronized (sLock) {
+            return new BatteryDrainRecorder(context).readHistoryLocked(uid);
+        }
+    }
+
+    void appendLocked(long now, long startClockTime, SparseLongArray powers) {
+        State state = readState();
+        if (state == null || getLogLength() < state.logLength) {
+            // Nothing to compare the powers with yet: only keep them for the next sample.
+            state = recoverState(now);
+            if (state == null) {
+                return;
+            }
+            state.startClockTime = startClockTime;
+            state.powers = powers;
+            writeState(state);
+            return;
+        }
+
+        boolean reset = startClockTime != state.startClockTime;
+        for (int i=0; i<powers.size() && !reset; i++) {
+            reset = powers.valueAt(i) < state.powers.get(powers.keyAt(i));
+        }
+
+        final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        int count = 0;
+        int lastUid = 0;
+        for (int i=0; i<powers.size(); i++) {
+            final int uid = powers.keyAt(i);
+            final long drain = powers.valueAt(i) - (reset ? 0 : state.powers.get(uid));
+            if (drain <= 0) {
+                continue;
+            }
+            // Keys are sorted, so uids are written as increasing offsets.
+            writeVarLong(entries, uid - lastUid);
+            writeVarLong(entries, drain);
+            lastUid = uid;
+            count++;
+        }
+
+        if (count > 0 || reset) {
+            final long deltaSeconds = (now - state.lastRecordTime) / 1000;
+            final ByteArrayOutputStream record = new ByteArrayOutputStream(entries.size() + 8);
+            // Zigzag encoded, the clock may have gone back.
+            writeVarLong(record, (deltaSeconds << 1) ^ (deltaSeconds >> 63));
+            record.write(reset ? FLAG_RESET : 0);
+            writeVarLong(record, count);
+            record.write(entries.toByteArray(), 0, entries.size());
+            if (!appendRecord(state.logLength, record.toByteArray())) {
+                return;
+            }
+            state.logLength += record.size();
+            state.lastRecordTime += deltaSeconds * 1000;
+        }
+        state.startClockTime = startClockTime;
+        state.powers = powers;
+
+        if (now - state.baseTime > mRetentionMs + DateUtils.DAY_IN_MILLIS) {
+            compact(state, now - mRetentionMs);
+        }
+        writeState(state);
+    }
+
+    /**
+     * @return the length of the log, once restored from its backup if needed, or 0 if it
+     * cannot be read
+     */
+    private long getLogLength() {
+        try {
+            // Opening the log restores it if its last rewrite was interrupted.
+            new LogReader(mLogFile.openRead()).close();
+            return mLogFile.getBaseFile().length();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private boolean appendRecord(long offset, byte[] record) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mLogFile.getBaseFile(), "rw");
+            // Drop whatever is left of a record which could not be written completely.
+            if (file.length() != offset) {
+                file.setLength(offset);
+            }
+            file.seek(offset);
+            file.write(record);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot append to the battery drain log", e);
+            return false;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrite the log without the records older than the given time.
+     */
+    private void compact(State state, long cutoff) {
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        long lastTime = cutoff;
+        try {
+            final LogReader reader = new LogReader(mLogFile.openRead());
+            try {
+                while (reader.next()) {
+                    if (reader.time < cutoff) {
+                        continue;
+                    }
+                    final long deltaSeconds = (reader.time - lastTime) / 1000;
+                    writeVarLong(records, (deltaSeconds << 1) ^ (deltaSeconds >> 63));
+                    records.write(reader.flags);
+                    writeVarLong(records, reader.count);
+                    int lastUid = 0;
+                    for (int i=0; i<reader.count; i++) {
+                        writeVarLong(records, reader.uids[i] - lastUid);
+                        writeVarLong(records, reader.powers[i]);
+                        lastUid = reader.uids[i];
+                    }
+                    lastTime += deltaSeconds * 1000;
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read the battery drain log", e);
+            return;
+        }
+
+        FileOutputStream fos = null;
+        try {
+            fos = mLogFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            writeHeader(out, cutoff);
+            records.writeTo(out);
+            out.flush();
+            mLogFile.finishWrite(fos);
+            state.logLength = HEADER_SIZE + records.size();
+            state.baseTime = cutoff;
+            state.lastRecordTime = lastTime;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write the battery drain log", e);
+            if (fos != null) {
+                mLogFile.failWrite(fos);
+            }
+        }
+    }
+
+    /**
+     * @return the state of the existing log, read again from its records, or of a new log
+     * if there is none
+     */
+    private State recoverState(long now) {
+        final State state = new State();
+        try {
+            final LogReader reader = new LogReader(mLogFile.openRead());
+            try {
+                state.baseTime = reader.baseTime;
+                state.lastRecordTime = reader.baseTime;
+                while (reader.next()) {
+                    state.lastRecordTime = reader.time;
+                }
+                state.logLength = reader.length;
+            } finally {
+                reader.close();
+            }
+            return state;
+        } catch (FileNotFoundException e) {
+            // Nothing recorded yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read the battery drain log, starting a new one", e);
+        }
+
+        FileOutputStream fos = null;
+        try {
+            fos = mLogFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(fos);
+            writeHeader(out, now);
+            out.flush();
+            mLogFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write the battery drain log", e);
+            if (fos != null) {
+                mLogFile.failWrite(fos);
+            }
+            return null;
+        }
+        state.logLength = HEADER_SIZE;
+        state.baseTime = now;
+        state.lastRecordTime = now;
+        return state;
+    }
+
+    History readHistoryLocked(int uid) {
+        final History history = new History();
+        try {
+            final LogReader reader = new LogReader(mLogFile.openRead());
+            try {
+                history.startTime = reader.baseTime;
+                while (reader.next()) {
+                    if ((reader.flags & FLAG_RESET) != 0) {
+                        history.addReset(reader.time);
+                    }
+                    final int index = Arrays.binarySearch(reader.uids, 0, reader.count, uid);
+                    if (index >= 0) {
+                        history.add(reader.time, reader.powers[index] / POWER_UNITS_PER_MAH);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing recorded yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read the battery drain log", e);
+        }
+        return history;
+    }
+
+    private State readState() {
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new AtomicFile(mStateFile).openRead()));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                final State state = new State();
+                state.logLength = in.readLong();
+                state.baseTime = in.readLong();
+                state.lastRecordTime = in.readLong();
+                state.startClockTime = in.readLong();
+                final int count = in.readInt();
+                for (int i=0; i<count; i++) {
+                    final int uid = in.readInt();
+                    state.powers.put(uid, in.readLong());
+                }
+                return state;
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read the battery drain state", e);
+            return null;
+        }
+    }
+
+    private void writeState(State state) {
+        final AtomicFile file = new AtomicFile(mStateFile);
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(state.logLength);
+            out.writeLong(state.baseTime);
+            out.writeLong(state.lastRecordTime);
+            out.writeLong(state.startClockTime);
+            out.writeInt(state.powers.size());
+            for (int i=0; i<state.powers.size(); i++) {
+                out.writeInt(state.powers.keyAt(i));
+                out.writeLong(state.powers.valueAt(i));
+            }
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write the battery drain state", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, long baseTime) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(baseTime);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Reads the records of the log one after the other, stopping at the first one which is
+     * incomplete.
+     */
+    private static class LogReader {
+        private final InputStream mIn;
+
+        final long baseTime;
+        /** Length of the log up to the end of the last record read. */
+        long length;
+
+        long time;
+        int flags;
+        int count;
+        int[] uids = new int[32];
+        long[] powers = new long[32];
+
+        private long mPosition;
+
+        LogReader(FileInputStream fis) throws IOException {
+            mIn = new BufferedInputStream(fis);
+            final DataInputStream in = new DataInputStream(mIn);
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Unknown battery drain log format");
+                }
+                baseTime = in.readLong();
+            } catch (IOException e) {
+                mIn.close();
+                throw e;
+            }
+            mPosition = HEADER_SIZE;
+            length = HEADER_SIZE;
+            time = baseTime;
+        }
+
+        boolean next() throws IOException {
+            try {
+                final long zigzag = readVarLong();
+                final long deltaSeconds = (zigzag >>> 1) ^ -(zigzag & 1);
+                final int recordFlags = readByte();
+                final int recordCount = (int) readVarLong();
+                if (recordCount < 0) {
+                    throw new IOException("Malformed battery drain record");
+                }
+                if (recordCount > uids.length) {
+                    uids = new int[recordCount];
+                    powers = new long[recordCount];
+                }
+                int uid = 0;
+                for (int i=0; i<recordCount; i++) {
+                    uid += (int) readVarLong();
+                    uids[i] = uid;
+                    powers[i] = readVarLong();
+                }
+                time += deltaSeconds * 1000;
+                flags = recordFlags;
+                count = recordCount;
+                length = mPosition;
+                return true;
+            } catch (EOFException e) {
+                // End of the log, or a record which could not be written completely.
+                return false;
+            }
+        }
+
+        void close() throws IOException {
+            mIn.close();
+        }
+
+        private int readByte() throws IOException {
+            final int b = mIn.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            mPosition++;
+            return b;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed battery drain record");
+        }
+    }
+}
@@ -30,13 +30,20 @@ import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.Log;
+import android.util.SparseArray;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.os.BatterySipper;
 import com.android.settings.R;
 import com.android.settings.Utils;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Wraps the power usage data of a BatterySipper with information about package name
@@ -46,54 +53,110 @@ public class BatteryEntry {
     public static final int MSG_UPDATE_NAME_ICON = 1;
     public static final int MSG_REPORT_FULLY_DRAWN = 2;
 
-    static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
+    private static final int MAX_LOADER_THREADS = 2;
+    private static final int MAX_CACHED_UIDS = 64;
 
-    static final ArrayList<BatteryEntry> mRequestQueue = new ArrayList<BatteryEntry>();
+    @GuardedBy("sUidCache")
+    static final LinkedHashMap<Integer,UidToDetail> sUidCache =
+            new LinkedHashMap<Integer,UidToDetail>(MAX_CACHED_UIDS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer,UidToDetail> eldest) {
+            return size() > MAX_CACHED_UIDS;
+        }
+    };
+
+    // Uids whose name and icon are to be loaded, in order, each of them only once
+    // however many entries are waiting for it.
+    @GuardedBy("mRequestQueue")
+    static final ArrayDeque<Integer> mRequestQueue = new ArrayDeque<Integer>();
+    // Entries waiting for the name and icon of each uid, queued or being loaded.
+    @GuardedBy("mRequestQueue")
+    static final SparseArray<ArrayList<BatteryEntry>> sPendingEntries =
+            new SparseArray<ArrayList<BatteryEntry>>();
+    @GuardedBy("mRequestQueue")
+    static boolean sRequestsRunning;
+    @GuardedBy("mRequestQueue")
+    static int sActiveLoaders;
     static Handler sHandler;
 
-    static private class NameAndIconLoader extends Thread {
-        private boolean mAbort = false;
+    private static final ThreadPoolExecutor sLoaderExecutor = new ThreadPoolExecutor(
+            MAX_LOADER_THREADS, MAX_LOADER_THREADS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
 
-        public NameAndIconLoader() {
-            super("BatteryUsage Icon Loader");
-        }
-
-        public void abort() {
-            mAbort = true;
-        }
+    static {
+        sLoaderExecutor.allowCoreThreadTimeOut(true);
+    }
 
+    private static final Runnable sNameAndIconLoader = new Runnable() {
         @Override
         public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
             while (true) {
-                BatteryEntry be;
+                final int uid;
+                final ArrayList<BatteryEntry> pending;
+                final BatteryEntry be;
                 synchronized (mRequestQueue) {
-                    if (mRequestQueue.isEmpty() || mAbort) {
-                        if (sHandler != null) {
-                            sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
+                    if (mRequestQueue.isEmpty() || !sRequestsRunning) {
+                        sActiveLoaders--;
+                        if (sActiveLoaders == 0) {
+                            if (sHandler != null) {
+                                sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
+                            }
                         }
-                        mRequestQueue.clear();
                         return;
                     }
-                    be = mRequestQueue.remove(0);
+                    uid = mRequestQueue.pollFirst();
+                    pending = sPendingEntries.get(uid);
+                    if (pending == null || pending.isEmpty()) {
+                        // Nothing waits for this uid anymore.
+                        continue;
+                    }
+                    be = pending.get(0);
+                }
+
+                UidToDetail utd;
+                synchronized (sUidCache) {
+                    utd = sUidCache.get(uid);
+                }
+                if (utd != null) {
+                    // Loaded since it was queued.
+                    be.setDetail(utd);
+                } else {
+                    be.loadNameAndIcon();
+                    utd = new UidToDetail();
+                    utd.name = be.name;
+                    utd.icon = be.icon;
+                    utd.packageName = be.defaultPackageName;
+                }
+
+                final ArrayList<BatteryEntry> entries;
+                synchronized (mRequestQueue) {
+                    if (sPendingEntries.get(uid) != pending) {
+                        // The requests have been stopped meanwhile, and maybe started again
+                        // with other entries, which are loaded from the cache.
+                        continue;
+                    }
+                    sPendingEntries.remove(uid);
+                    entries = new ArrayList<BatteryEntry>(pending);
+                }
+                for (int i = 0; i < entries.size(); i++) {
+                    final BatteryEntry entry = entries.get(i);
+                    if (entry != be) {
+                        entry.setDetail(utd);
+                    }
                 }
-                be.loadNameAndIcon();
             }
         }
-    }
-
-    private static NameAndIconLoader mRequestThread;
+    };
 
     public static void startRequestQueue() {
         if (sHandler != null) {
             synchronized (mRequestQueue) {
-                if (!mRequestQueue.isEmpty()) {
-                    if (mRequestThread != null) {
-                        mRequestThread.abort();
-                    }
-                    mRequestThread = new NameAndIconLoader();
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                    mRequestQueue.notify();
+                sRequestsRunning = true;
+                final int loaders = Math.min(MAX_LOADER_THREADS, mRequestQueue.size());
+                while (sActiveLoaders < loaders) {
+                    sActiveLoaders++;
+                    sLoaderExecutor.execute(sNameAndIconLoader);
                 }
             }
         }
@@ -101,16 +164,33 @@ public class BatteryEntry {
 
     public static void stopRequestQueue() {
         synchronized (mRequestQueue) {
-            if (mRequestThread != null) {
-                mRequestThread.abort();
-                mRequestThread = null;
-                sHandler = null;
+            sRequestsRunning = false;
+            mRequestQueue.clear();
+            sPendingEntries.clear();
+            sHandler = null;
+        }
+    }
+
+    /**
+     * Load the name and icon of the given entry before those of the other entries, since it
+     * is being displayed.
+     */
+    static void prioritize(BatteryEntry entry) {
+        if (entry == null || entry.sipper.uidObj == null) {
+            return;
+        }
+        final Integer uid = entry.sipper.uidObj.getUid();
+        synchronized (mRequestQueue) {
+            if (mRequestQueue.removeFirstOccurrence(uid)) {
+                mRequestQueue.addFirst(uid);
             }
         }
     }
 
     public static void clearUidCache() {
-        sUidCache.clear();
+        synchronized (sUidCache) {
+            sUidCache.clear();
+        }
     }
 
     public final Context context;
@@ -121,6 +201,9 @@ public class BatteryEntry {
     public int iconId; // For passing to the detail screen.
     public String defaultPackageName;
 
+    // Whether the name and icon have been queued and not loaded yet.
+    private volatile boolean mNameAndIconPending;
+
     static class UidToDetail {
         String name;
         String packageName;
@@ -207,14 +290,30 @@ public class BatteryEntry {
         return name;
     }
 
+    /**
+     * Use the name and icon loaded for another entry of the same uid, and tell the handler.
+     */
+    void setDetail(UidToDetail utd) {
+        defaultPackageName = utd.packageName;
+        name = utd.name;
+        icon = utd.icon;
+        mNameAndIconPending = false;
+        final Handler handler = sHandler;
+        if (handler != null) {
+            handler.sendMessage(handler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
+        }
+    }
+
     void getQuickNameIconForUid(BatteryStats.Uid uidObj) {
         final int uid = uidObj.getUid();
-        final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
+        final UidToDetail cached;
+        synchronized (sUidCache) {
+            cached = sUidCache.get(uid);
+        }
+        if (cached != null) {
+            defaultPackageName = cached.packageName;
+            name = cached.name;
+            icon = cached.icon;
             return;
         }
         PackageManager pm = context.getPackageManager();
@@ -234,9 +333,34 @@ public class BatteryEntry {
             //name = packages[0];
         }
         if (sHandler != null) {
-            synchronized (mRequestQueue) {
-                mRequestQueue.add(this);
+            queueNameAndIcon(uid);
+        }
+    }
+
+    /**
+     * Queue the entry again if its name and icon were still to be loaded when the requests
+     * were stopped, so that it does not keep its fallback name and icon.
+     */
+    void requeueIfPending(Handler handler) {
+        if (!mNameAndIconPending || sipper.uidObj == null) {
+            return;
+        }
+        sHandler = handler;
+        queueNameAndIcon(sipper.uidObj.getUid());
+    }
+
+    private void queueNameAndIcon(int uid) {
+        synchronized (mRequestQueue) {
+            ArrayList<BatteryEntry> entries = sPendingEntries.get(uid);
+            if (entries == null) {
+                entries = new ArrayList<BatteryEntry>();
+                sPendingEntries.put(uid, entries);
+                mRequestQueue.addLast(uid);
             }
+            if (!entries.contains(this)) {
+                entries.add(this);
+            }
+            mNameAndIconPending = true;
         }
     }
 
@@ -254,6 +378,7 @@ public class BatteryEntry {
         sipper.mPackages = pm.getPackagesForUid(uid);
         if (sipper.mPackages == null) {
             name = Integer.toString(uid);
+            mNameAndIconPending = false;
             return;
         }
 
@@ -320,14 +445,17 @@ public class BatteryEntry {
                 }
             }
         }
-        final String uidString = Integer.toString(sipper.uidObj.getUid());
         UidToDetail utd = new UidToDetail();
         utd.name = name;
         utd.icon = icon;
         utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
-        if (sHandler != null) {
-            sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
+        synchronized (sUidCache) {
+            sUidCache.put(uid, utd);
+        }
+        mNameAndIconPending = false;
+        final Handler handler = sHandler;
+        if (handler != null) {
+            handler.sendMessage(handler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
         }
     }
 }
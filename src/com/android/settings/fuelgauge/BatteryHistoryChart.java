@@ -35,6 +35,7 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Typeface;
+import android.os.AsyncTask;
 import android.os.BatteryStats;
 import android.os.SystemClock;
 import android.os.BatteryStats.HistoryItem;
@@ -153,8 +154,11 @@ public class BatteryHistoryChart extends View {
     final Path mDateLinePath = new Path();
     
     BatteryStats mStats;
+    BatteryHistoryData mHistory = BatteryHistoryData.EMPTY;
+    DecodeTask mDecodeTask;
     Intent mBatteryBroadcast;
     long mStatsPeriod;
+    long mRemainingTimeUs;
     int mBatteryLevel;
     String mMaxPercentLabelString;
     String mMinPercentLabelString;
@@ -473,6 +477,13 @@ public class BatteryHistoryChart extends View {
     }
 
     void setStats(BatteryStats stats, Intent broadcast) {
+        setStats(stats, broadcast, stats);
+    }
+
+    /**
+     * @param lock the lock held by everyone else using the stats
+     */
+    void setStats(BatteryStats stats, Intent broadcast, Object lock) {
         mStats = stats;
         mBatteryBroadcast = broadcast;
 
@@ -540,64 +551,71 @@ public class BatteryHistoryChart extends View {
         mChargeDurationString = "";
         setContentDescription(mChargeLabelString);
 
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
-        mBatLow = 0;
-        mBatHigh = 100;
-        mStartWallTime = 0;
-        mEndDataWallTime = 0;
-        mEndWallTime = 0;
-        mHistStart = 0;
-        mHistEnd = 0;
-        long lastWallTime = 0;
-        long lastRealtime = 0;
-        int aggrStates = 0;
-        int aggrStates2 = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (first) {
-                    first = false;
-                    mHistStart = rec.time;
-                }
-                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                        || rec.cmd == HistoryItem.CMD_RESET) {
-                    // If there is a ridiculously large jump in time, then we won't be
-                    // able to create a good chart with that data, so just ignore the
-                    // times we got before and pretend like our data extends back from
-                    // the time we have now.
-                    // Also, if we are getting a time change and we are less than 5 minutes
-                    // since the start of the history real time, then also use this new
-                    // time to compute the base time, since whatever time we had before is
-                    // pretty much just noise.
-                    if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
-                            || rec.time < (mHistStart+(5*60*1000L))) {
-                        mStartWallTime = 0;
-                    }
-                    lastWallTime = rec.currentTime;
-                    lastRealtime = rec.time;
-                    if (mStartWallTime == 0) {
-                        mStartWallTime = lastWallTime - (lastRealtime-mHistStart);
-                    }
-                }
-                if (rec.isDeltaData()) {
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistDataEnd = rec.time;
-                    aggrStates |= rec.states;
-                    aggrStates2 |= rec.states2;
-                }
+        mRemainingTimeUs = remainingTimeUs;
+
+        if (mDecodeTask != null && mDecodeTask.mDecodedStats != stats) {
+            mDecodeTask.cancel(false);
+            mDecodeTask = null;
+        }
+        final BatteryHistoryData history = BatteryHistoryData.getCached(stats);
+        if (history != null) {
+            setHistory(history);
+        } else {
+            // Chart the current level only until the history has been decoded.
+            setHistory(BatteryHistoryData.EMPTY);
+            if (mDecodeTask == null) {
+                mDecodeTask = new DecodeTask(stats, lock);
+                mDecodeTask.execute();
+            }
+        }
+    }
+
+    /**
+     * Decodes the history of the stats in the background, then rebuilds the chart.
+     */
+    class DecodeTask extends AsyncTask<Void, Void, BatteryHistoryData> {
+        final BatteryStats mDecodedStats;
+        final Object mLock;
+
+        DecodeTask(BatteryStats stats, Object lock) {
+            mDecodedStats = stats;
+            mLock = lock;
+        }
+
+        @Override
+        protected BatteryHistoryData doInBackground(Void... params) {
+            return BatteryHistoryData.decode(mDecodedStats, mLock);
+        }
+
+        @Override
+        protected void onPostExecute(BatteryHistoryData result) {
+            if (mDecodeTask != this || mStats != mDecodedStats) {
+                return;
+            }
+            mDecodeTask = null;
+            setHistory(result);
+            if (mLastWidth > 0 && mLastHeight > 0) {
+                buildChart(mLastWidth, mLastHeight);
+                mBitmap = null;
+                mCanvas = null;
+                invalidate();
             }
         }
-        mHistEnd = mHistDataEnd + (remainingTimeUs/1000);
-        mEndDataWallTime = lastWallTime + mHistDataEnd - lastRealtime;
-        mEndWallTime = mEndDataWallTime + (remainingTimeUs/1000);
-        mNumHist = lastInteresting;
+    }
+
+    void setHistory(BatteryHistoryData history) {
+        mHistory = history;
+        mBatLow = 0;
+        mBatHigh = 100;
+        mHistStart = history.histStart;
+        mHistDataEnd = history.histDataEnd;
+        mStartWallTime = history.startWallTime;
+        mHistEnd = mHistDataEnd + (mRemainingTimeUs/1000);
+        mEndDataWallTime = history.lastWallTime + mHistDataEnd - history.lastRealtime;
+        mEndWallTime = mEndDataWallTime + (mRemainingTimeUs/1000);
+        mNumHist = history.size;
+        final int aggrStates = history.aggrStates;
+        final int aggrStates2 = history.aggrStates2;
         mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
         mHaveWifi = (aggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
                 || (aggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
@@ -714,6 +732,14 @@ public class BatteryHistoryChart extends View {
         mBitmap = null;
         mCanvas = null;
 
+        buildChart(w, h);
+    }
+
+    /**
+     * Build the paths and labels of the chart for the given size, from the decoded
+     * {@link #mHistory}.
+     */
+    void buildChart(int w, int h) {
         int textHeight = mTextDescent - mTextAscent;
         if (h > ((textHeight*10)+mChartMinHeight)) {
             mLargeMode = true;
@@ -796,19 +822,23 @@ public class BatteryHistoryChart extends View {
         mLevelBottom = mLevelTop + levelh;
 
         int x = mLevelLeft, y = 0, startX = mLevelLeft, lastX = -1, lastY = -1;
-        int i = 0;
         Path curLevelPath = null;
         Path lastLinePath = null;
         boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
         boolean lastWifiRunning = false, lastWifiSupplRunning = false, lastCpuRunning = false;
         int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
+        final BatteryHistoryData history = mHistory;
         final int N = mNumHist;
-        if (mEndDataWallTime > mStartWallTime && mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.isDeltaData()) {
-                    curWalltime += rec.time-lastRealtime;
-                    lastRealtime = rec.time;
+        if (mEndDataWallTime > mStartWallTime) {
+            for (int i=0; i<N; i++) {
+                final byte cmd = history.cmds[i];
+                final long time = history.times[i];
+                if (cmd == HistoryItem.CMD_UPDATE) {
+                    final byte batteryLevel = history.levels[i];
+                    final int states = history.states[i];
+                    final int states2 = history.states2[i];
+                    curWalltime += time-lastRealtime;
+                    lastRealtime = time;
                     x = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
                     if (x < 0) {
                         x = 0;
@@ -823,14 +853,14 @@ public class BatteryHistoryChart extends View {
                         sb.append(x);
                         Log.d("foo", sb.toString());
                     }
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
+                    y = mLevelTop + levelh - ((batteryLevel-batLow)*(levelh-1))/batChange;
 
                     if (lastX != x) {
                         // We have moved by at least a pixel.
                         if (lastY != y) {
                             // Don't plot changes within a pixel.
                             Path path;
-                            byte value = rec.batteryLevel;
+                            byte value = batteryLevel;
                             if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
                             else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
                             else path = null; //mBatGoodPath;
@@ -861,7 +891,7 @@ public class BatteryHistoryChart extends View {
 
                     if (mLargeMode) {
                         final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
+                            (states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
                         if (charging != lastCharging) {
                             if (charging) {
                                 mChargingPath.moveTo(x, h-mChargingOffset);
@@ -872,7 +902,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
                         if (screenOn != lastScreenOn) {
                             if (screenOn) {
                                 mScreenOnPath.moveTo(x, h-mScreenOnOffset);
@@ -883,7 +913,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
                         if (gpsOn != lastGpsOn) {
                             if (gpsOn) {
                                 mGpsOnPath.moveTo(x, h-mGpsOnOffset);
@@ -894,7 +924,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final int wifiSupplState =
-                            ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
+                            ((states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
                                     >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
                         boolean wifiRunning;
                         if (lastWifiSupplState != wifiSupplState) {
@@ -915,7 +945,7 @@ public class BatteryHistoryChart extends View {
                         } else {
                             wifiRunning = lastWifiSupplRunning;
                         }
-                        if ((rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                        if ((states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
                                 |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
                                 |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
                             wifiRunning = true;
@@ -930,7 +960,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean cpuRunning =
-                            (rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
+                            (states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
                         if (cpuRunning != lastCpuRunning) {
                             if (cpuRunning) {
                                 mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
@@ -942,14 +972,14 @@ public class BatteryHistoryChart extends View {
 
                         if (mLargeMode && mHavePhoneSignal) {
                             int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
+                            if (((states&HistoryItem.STATE_PHONE_STATE_MASK)
                                     >> HistoryItem.STATE_PHONE_STATE_SHIFT)
                                     == ServiceState.STATE_POWER_OFF) {
                                 bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                            } else if ((states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
                                 bin = 1;
                             } else {
-                                bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
+                                bin = (states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
                                         >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
                                 bin += 2;
                             }
@@ -959,18 +989,19 @@ public class BatteryHistoryChart extends View {
 
                 } else {
                     long lastWalltime = curWalltime;
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        if (rec.currentTime >= mStartWallTime) {
-                            curWalltime = rec.currentTime;
+                    if (cmd == HistoryItem.CMD_CURRENT_TIME
+                            || cmd == HistoryItem.CMD_RESET) {
+                        final long currentTime = history.currentTimes[i];
+                        if (currentTime >= mStartWallTime) {
+                            curWalltime = currentTime;
                         } else {
-                            curWalltime = mStartWallTime + (rec.time-mHistStart);
+                            curWalltime = mStartWallTime + (time-mHistStart);
                         }
-                        lastRealtime = rec.time;
+                        lastRealtime = time;
                     }
 
-                    if (rec.cmd != HistoryItem.CMD_OVERFLOW
-                            && (rec.cmd != HistoryItem.CMD_CURRENT_TIME
+                    if (cmd != HistoryItem.CMD_OVERFLOW
+                            && (cmd != HistoryItem.CMD_CURRENT_TIME
                                     || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
                         if (curLevelPath != null) {
                             finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
@@ -983,10 +1014,7 @@ public class BatteryHistoryChart extends View {
                         }
                     }
                 }
-                
-                i++;
             }
-            mStats.finishIteratingHistoryLocked();
         }
 
         if (lastY < 0 || lastX < 0) {
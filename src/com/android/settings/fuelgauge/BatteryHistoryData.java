@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+/**
+ * The history of a {@link BatteryStats} decoded once into primitive arrays, one entry per
+ * history record up to the last one carrying data, so that {@link BatteryHistoryChart} can
+ * build its paths for any size without iterating the history again.
+ *
+ * Decoding a full history buffer is slow: do it off the UI thread. The decoded history of a
+ * given {@link BatteryStats} is kept for as long as that object is alive.
+ */
+final class BatteryHistoryData {
+    static final BatteryHistoryData EMPTY = new BatteryHistoryData();
+
+    private static final WeakHashMap<BatteryStats, BatteryHistoryData> sCache =
+            new WeakHashMap<BatteryStats, BatteryHistoryData>();
+
+    int size;
+    byte[] cmds;
+    long[] times;
+    byte[] levels;
+    int[] states;
+    int[] states2;
+    /** Wall clock time of the {@link HistoryItem#CMD_CURRENT_TIME} and reset records. */
+    long[] currentTimes;
+
+    long histStart;
+    long histDataEnd;
+    long startWallTime;
+    long lastWallTime;
+    long lastRealtime;
+    int aggrStates;
+    int aggrStates2;
+
+    private BatteryHistoryData() {
+        allocate(0);
+    }
+
+    /**
+     * @return the decoded history of the given stats if it has been decoded already,
+     * otherwise null
+     */
+    static BatteryHistoryData getCached(BatteryStats stats) {
+        synchronized (sCache) {
+            return sCache.get(stats);
+        }
+    }
+
+    /**
+     * Decode the history of the given stats, unless it has been decoded already.
+     *
+     * @param lock the lock held by everyone else using the stats, iterating the history
+     *             not being thread safe
+     */
+    static BatteryHistoryData decode(BatteryStats stats, Object lock) {
+        BatteryHistoryData data = getCached(stats);
+        if (data != null) {
+            return data;
+        }
+
+        synchronized (lock) {
+            data = new BatteryHistoryData();
+            data.decodeLocked(stats);
+        }
+        synchronized (sCache) {
+            sCache.put(stats, data);
+        }
+        return data;
+    }
+
+    private void decodeLocked(BatteryStats stats) {
+        allocate(256);
+
+        int pos = 0;
+        int lastInteresting = 0;
+        boolean first = true;
+        if (stats.startIteratingHistoryLocked()) {
+            final HistoryItem rec = new HistoryItem();
+            while (stats.getNextHistoryLocked(rec)) {
+                if (pos == cmds.length) {
+                    grow();
+                }
+                cmds[pos] = rec.cmd;
+                times[pos] = rec.time;
+                pos++;
+                if (first) {
+                    first = false;
+                    histStart = rec.time;
+                }
+                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
+                        || rec.cmd == HistoryItem.CMD_RESET) {
+                    // If there is a ridiculously large jump in time, then we won't be
+                    // able to create a good chart with that data, so just ignore the
+                    // times we got before and pretend like our data extends back from
+                    // the time we have now.
+                    // Also, if we are getting a time change and we are less than 5 minutes
+                    // since the start of the history real time, then also use this new
+                    // time to compute the base time, since whatever time we had before is
+                    // pretty much just noise.
+                    if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
+                            || rec.time < (histStart+(5*60*1000L))) {
+                        startWallTime = 0;
+                    }
+                    lastWallTime = rec.currentTime;
+                    lastRealtime = rec.time;
+                    if (startWallTime == 0) {
+                        startWallTime = lastWallTime - (lastRealtime-histStart);
+                    }
+                    currentTimes[pos-1] = rec.currentTime;
+                }
+                if (rec.isDeltaData()) {
+                    levels[pos-1] = rec.batteryLevel;
+                    states[pos-1] = rec.states;
+                    states2[pos-1] = rec.states2;
+                    lastInteresting = pos;
+                    histDataEnd = rec.time;
+                    aggrStates |= rec.states;
+                    aggrStates2 |= rec.states2;
+                }
+            }
+            stats.finishIteratingHistoryLocked();
+        }
+
+        // Nothing after the last data record is ever drawn.
+        size = lastInteresting;
+        if (size < cmds.length) {
+            cmds = Arrays.copyOf(cmds, size);
+            times = Arrays.copyOf(times, size);
+            levels = Arrays.copyOf(levels, size);
+            states = Arrays.copyOf(states, size);
+            states2 = Arrays.copyOf(states2, size);
+            currentTimes = Arrays.copyOf(currentTimes, size);
+        }
+    }
+
+    private void allocate(int capacity) {
+        cmds = new byte[capacity];
+        times = new long[capacity];
+        levels = new byte[capacity];
+        states = new int[capacity];
+        states2 = new int[capacity];
+        currentTimes = new long[capacity];
+    }
+
+    private void grow() {
+        final int capacity = cmds.length * 2;
+        cmds = Arrays.copyOf(cmds, capacity);
+        times = Arrays.copyOf(times, capacity);
+        levels = Arrays.copyOf(levels, capacity);
+        states = Arrays.copyOf(states, capacity);
+        states2 = Arrays.copyOf(states2, capacity);
+        currentTimes = Arrays.copyOf(currentTimes, capacity);
+    }
+}
@@ -37,16 +37,26 @@ public class BatteryHistoryPreference extends Preference {
 
     final private BatteryStats mStats;
     final private Intent mBatteryBroadcast;
+    final private Object mStatsLock;
 
     private boolean mHideLabels;
     private View mLabelHeader;
     private BatteryHistoryChart mChart;
 
     public BatteryHistoryPreference(Context context, BatteryStats stats, Intent batteryBroadcast) {
+        this(context, stats, batteryBroadcast, stats);
+    }
+
+    /**
+     * @param statsLock the lock held by everyone else using the stats
+     */
+    public BatteryHistoryPreference(Context context, BatteryStats stats, Intent batteryBroadcast,
+            Object statsLock) {
         super(context);
         setLayoutResource(R.layout.preference_batteryhistory);
         mStats = stats;
         mBatteryBroadcast = batteryBroadcast;
+        mStatsLock = statsLock;
     }
 
     BatteryStats getStats() {
@@ -70,7 +80,7 @@ public class BatteryHistoryPreference extends Preference {
                 R.id.battery_history_chart);
         if (mChart == null) {
             // First time: use and initialize this chart.
-            chart.setStats(mStats, mBatteryBroadcast);
+            chart.setStats(mStats, mBatteryBroadcast, mStatsLock);
             mChart = chart;
         } else {
             // All future times: forget the newly inflated chart, re-use the
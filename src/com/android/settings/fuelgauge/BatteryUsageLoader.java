@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.drawable.Drawable;
+import android.os.BatteryStats;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.preference.PreferenceManager;
+
+import com.android.internal.os.BatterySipper;
+import com.android.internal.os.BatteryStatsHelper;
+import com.android.internal.os.PowerProfile;
+import com.android.settings.DevelopmentSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loader for the power usage of each app and subsystem, computed through a shared
+ * {@link BatteryStatsHelper} into a {@link BatteryUsageSnapshot}.
+ *
+ * The previous snapshot is returned as is when the stats have not changed since it was
+ * computed, so that nothing has to be computed or updated while the battery is charging.
+ * Everyone else using the helper must synchronize on it.
+ */
+class BatteryUsageLoader extends AsyncTaskLoader<BatteryUsageSnapshot> {
+    private static final String KEY_STATS_TYPE = "statsType";
+    private static final String KEY_CLEAR_STATS = "clearStats";
+
+    private static final int MIN_POWER_THRESHOLD_MILLI_AMP = 5;
+    private static final int MAX_ITEMS_TO_LIST = 10;
+    private static final int MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP = 10;
+    private static final int SECONDS_IN_HOUR = 60 * 60;
+
+    private final BatteryStatsHelper mStatsHelper;
+    private final Handler mHandler;
+    private final BatteryUsageSnapshot mPrevious;
+    private final Bundle mArgs;
+
+    static Bundle buildArgs(int statsType, boolean clearStats) {
+        final Bundle args = new Bundle();
+        args.putInt(KEY_STATS_TYPE, statsType);
+        args.putBoolean(KEY_CLEAR_STATS, clearStats);
+        return args;
+    }
+
+    /**
+     * @param handler handler of the {@link BatteryEntry} names and icons loaded later on
+     * @param previous the snapshot currently displayed, if any
+     */
+    BatteryUsageLoader(Context context, BatteryStatsHelper statsHelper, Handler handler,
+            BatteryUsageSnapshot previous, Bundle args) {
+        super(context);
+        mStatsHelper = statsHelper;
+        mHandler = handler;
+        mPrevious = previous;
+        mArgs = args;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+        forceLoad();
+    }
+
+    @Override
+    public BatteryUsageSnapshot loadInBackground() {
+        final int statsType = mArgs.getInt(KEY_STATS_TYPE);
+        final Context context = getContext();
+        final SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean showUnacAndOvercounted = sp.getBoolean(
+                DevelopmentSettings.SHOW_UNAC_AND_OVERCOUNTED_STATS, false);
+        final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
+
+        synchronized (mStatsHelper) {
+            if (mArgs.getBoolean(KEY_CLEAR_STATS)) {
+                mStatsHelper.clearStats();
+            }
+            final BatteryStats stats = mStatsHelper.getStats();
+            if (mPrevious != null
+                    && mPrevious.isUpToDate(stats, statsType, showUnacAndOvercounted)) {
+                // The names and icons still loading when the requests were stopped would
+                // otherwise never be loaded.
+                for (int i = 0; i < mPrevious.items.size(); i++) {
+                    mPrevious.items.get(i).entry.requeueIfPending(mHandler);
+                }
+                return mPrevious;
+            }
+
+            final ArrayList<BatteryUsageSnapshot.Item> items =
+                    new ArrayList<BatteryUsageSnapshot.Item>();
+            final PowerProfile powerProfile = mStatsHelper.getPowerProfile();
+            final double averagePower = powerProfile.getAveragePower(
+                    PowerProfile.POWER_SCREEN_FULL);
+            if (averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP) {
+                final List<UserHandle> profiles = um.getUserProfiles();
+
+                mStatsHelper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, profiles);
+
+                final List<BatterySipper> usageList = mStatsHelper.getUsageList();
+
+                final int dischargeAmount = stats != null
+                        ? stats.getDischargeAmount(statsType) : 0;
+                final int numSippers = usageList.size();
+                for (int i = 0; i < numSippers; i++) {
+                    final BatterySipper sipper = usageList.get(i);
+                    if ((sipper.value * SECONDS_IN_HOUR) < MIN_POWER_THRESHOLD_MILLI_AMP) {
+                        continue;
+                    }
+                    final double percentOfTotal =
+                            ((sipper.value / mStatsHelper.getTotalPower()) * dischargeAmount);
+                    if (((int) (percentOfTotal + .5)) < 1) {
+                        continue;
+                    }
+                    if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
+                        // Don't show over-counted unless it is at least 2/3 the size of
+                        // the largest real entry, and its percent of total is more significant
+                        if (sipper.value < ((mStatsHelper.getMaxRealPower()*2)/3)) {
+                            continue;
+                        }
+                        if (percentOfTotal < 10) {
+                            continue;
+                        }
+                        if (!showUnacAndOvercounted) {
+                            continue;
+                        }
+                    }
+                    if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
+                        // Don't show unacccounted unless it is at least 1/2 the size of
+                        // the largest real entry, and its percent of total is more significant
+                        if (sipper.value < (mStatsHelper.getMaxRealPower()/2)) {
+                            continue;
+                        }
+                        if (percentOfTotal < 5) {
+                            continue;
+                        }
+                        if (!showUnacAndOvercounted) {
+                            continue;
+                        }
+                    }
+                    final UserHandle userHandle =
+                            new UserHandle(UserHandle.getUserId(sipper.getUid()));
+                    final BatteryEntry entry = new BatteryEntry(context, mHandler, um, sipper);
+                    final Drawable badgedIcon = um.getBadgedIconForUser(entry.getIcon(),
+                            userHandle);
+                    final CharSequence contentDescription = um.getBadgedLabelForUser(
+                            entry.getLabel(), userHandle);
+
+                    final double percentOfMax = (sipper.value * 100) / mStatsHelper.getMaxPower();
+                    sipper.percent = percentOfTotal;
+                    items.add(new BatteryUsageSnapshot.Item(BatteryUsageSnapshot.getKey(sipper),
+                            entry, badgedIcon, contentDescription, percentOfMax,
+                            percentOfTotal, i + 1));
+                    if (items.size() > MAX_ITEMS_TO_LIST) {
+                        break;
+                    }
+                }
+            }
+
+            return new BatteryUsageSnapshot(stats, mStatsHelper.getBatteryBroadcast(),
+                    statsType, showUnacAndOvercounted, items);
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        super.onStopLoading();
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        cancelLoad();
+    }
+}
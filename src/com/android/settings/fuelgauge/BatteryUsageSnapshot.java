@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.Intent;
+import android.graphics.drawable.Drawable;
+import android.os.BatteryStats;
+
+import com.android.internal.os.BatterySipper;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The power usage shown by {@link PowerUsageSummary}, computed by a {@link BatteryUsageLoader}
+ * in the background. Immutable once built, so that it can be compared with the previous one
+ * to only update the preferences that have changed.
+ */
+final class BatteryUsageSnapshot {
+    /**
+     * One entry of the list, with the values it is displayed with.
+     */
+    static final class Item {
+        final String key;
+        final BatteryEntry entry;
+        final Drawable badgedIcon;
+        final CharSequence contentDescription;
+        final double percentOfMax;
+        final double percentOfTotal;
+        final int order;
+
+        Item(String key, BatteryEntry entry, Drawable badgedIcon,
+                CharSequence contentDescription, double percentOfMax, double percentOfTotal,
+                int order) {
+            this.key = key;
+            this.entry = entry;
+            this.badgedIcon = badgedIcon;
+            this.contentDescription = contentDescription;
+            this.percentOfMax = percentOfMax;
+            this.percentOfTotal = percentOfTotal;
+            this.order = order;
+        }
+
+        /**
+         * @return whether the other item is displayed the same way, as far as its usage
+         * is concerned
+         */
+        boolean hasSameUsage(Item other) {
+            return order == other.order
+                    && (int) Math.ceil(percentOfMax) == (int) Math.ceil(other.percentOfMax)
+                    && (int) (percentOfTotal + .5) == (int) (other.percentOfTotal + .5);
+        }
+    }
+
+    final BatteryStats stats;
+    final Intent batteryBroadcast;
+    final int statsType;
+    final int dischargeAmount;
+    final int historySize;
+    final boolean showUnacAndOvercounted;
+    final List<Item> items;
+
+    BatteryUsageSnapshot(BatteryStats stats, Intent batteryBroadcast, int statsType,
+            boolean showUnacAndOvercounted, List<Item> items) {
+        this.stats = stats;
+        this.batteryBroadcast = batteryBroadcast;
+        this.statsType = statsType;
+        this.dischargeAmount = getDischargeAmount(stats, statsType);
+        this.historySize = getHistorySize(stats);
+        this.showUnacAndOvercounted = showUnacAndOvercounted;
+        this.items = Collections.unmodifiableList(items);
+    }
+
+    /**
+     * @return whether this snapshot would be computed again the same from the given stats:
+     * the battery has not discharged further and no history has been recorded since
+     */
+    boolean isUpToDate(BatteryStats stats, int statsType, boolean showUnacAndOvercounted) {
+        return this.statsType == statsType
+                && this.showUnacAndOvercounted == showUnacAndOvercounted
+                && dischargeAmount == getDischargeAmount(stats, statsType)
+                && historySize == getHistorySize(stats);
+    }
+
+    static String getKey(BatterySipper sipper) {
+        if (sipper.uidObj != null) {
+            // Also used to find the preference once its name and icon are loaded.
+            return Integer.toString(sipper.uidObj.getUid());
+        } else if (sipper.drainType == BatterySipper.DrainType.USER) {
+            return sipper.drainType.name() + ":" + sipper.userId;
+        }
+        return sipper.drainType.name();
+    }
+
+    private static int getDischargeAmount(BatteryStats stats, int statsType) {
+        return stats != null ? stats.getDischargeAmount(statsType) : 0;
+    }
+
+    private static int getHistorySize(BatteryStats stats) {
+        return stats != null ? stats.getHistoryUsedSize() : 0;
+    }
+}
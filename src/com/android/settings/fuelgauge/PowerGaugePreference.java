@@ -56,10 +56,17 @@ public class PowerGaugePreference extends Preference {
         return mInfo;
     }
 
+    void setInfo(BatteryEntry info) {
+        mInfo = info;
+    }
+
     @Override
     protected void onBindView(View view) {
         super.onBindView(view);
 
+        // Shown: load its name and icon first, if not loaded yet.
+        BatteryEntry.prioritize(mInfo);
+
         final ProgressBar progress = (ProgressBar) view.findViewById(android.R.id.progress);
         progress.setProgress(mProgress);
 
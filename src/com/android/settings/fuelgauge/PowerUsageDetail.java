@@ -34,11 +34,13 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.BatteryStats;
 import android.os.Bundle;
 import android.os.Process;
 import android.os.UserHandle;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -312,6 +314,7 @@ public class PowerUsageDetail extends Fragment implements Button.OnClickListener
     private ViewGroup mDetailsParent;
     private ViewGroup mControlsParent;
     private ViewGroup mMessagesParent;
+    private AsyncTask<Void, Void, BatteryDrainRecorder.History> mDrainHistoryTask;
     private long mStartTime;
     private BatterySipper.DrainType mDrainType;
     private Drawable mAppIcon;
@@ -356,6 +359,15 @@ public class PowerUsageDetail extends Fragment implements Button.OnClickListener
         super.onPause();
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (mDrainHistoryTask != null) {
+            mDrainHistoryTask.cancel(false);
+            mDrainHistoryTask = null;
+        }
+    }
+
     private void createDetails() {
         final Bundle args = getArguments();
         mTitle = args.getString(EXTRA_TITLE);
@@ -415,6 +427,7 @@ public class PowerUsageDetail extends Fragment implements Button.OnClickListener
         mMessagesParent = (ViewGroup)mRootView.findViewById(R.id.messages);
 
         fillDetailsSection();
+        fillDrainHistorySection(mUid);
         fillPackagesSection(mUid);
         fillControlsSection(mUid);
         fillMessagesSection(mUid);
@@ -541,6 +554,45 @@ public class PowerUsageDetail extends Fragment implements Button.OnClickListener
         }
     }
 
+    private void fillDrainHistorySection(final int uid) {
+        if (mDrainType != BatterySipper.DrainType.APP) {
+            return;
+        }
+        final Context context = getActivity().getApplicationContext();
+        BatteryDrainRecordReceiver.schedule(context);
+        mDrainHistoryTask = new AsyncTask<Void, Void, BatteryDrainRecorder.History>() {
+            @Override
+            protected BatteryDrainRecorder.History doInBackground(Void... params) {
+                return BatteryDrainRecorder.readHistory(context, uid);
+            }
+
+            @Override
+            protected void onPostExecute(BatteryDrainRecorder.History history) {
+                mDrainHistoryTask = null;
+                if (getActivity() == null || history.size == 0) {
+                    return;
+                }
+                // Show the whole retention once it has been recorded, the days recorded so far
+                // until then.
+                final long now = System.currentTimeMillis();
+                final int retentionDays = context.getResources().getInteger(
+                        R.integer.config_batteryDrainRetentionDays);
+                final int days = (int) Math.min(retentionDays,
+                        Math.max(1, (now - history.startTime + DateUtils.DAY_IN_MILLIS - 1)
+                                / DateUtils.DAY_IN_MILLIS));
+                final BatteryDrainChart chart = (BatteryDrainChart) mRootView.findViewById(
+                        R.id.drain_history_chart);
+                chart.setHistory(history, now, days);
+                final TextView summary = (TextView) mRootView.findViewById(
+                        R.id.drain_history_summary);
+                summary.setText(getResources().getQuantityString(
+                        R.plurals.battery_drain_history_summary, days,
+                        getString(R.string.mah, (int) Math.ceil(chart.getTotalDrain())), days));
+                mRootView.findViewById(R.id.drain_history_section).setVisibility(View.VISIBLE);
+            }
+        }.execute();
+    }
+
     private void fillControlsSection(int uid) {
         PackageManager pm = getActivity().getPackageManager();
         String[] packages = pm.getPackagesForUid(uid);
@@ -17,12 +17,12 @@
 package com.android.settings.fuelgauge;
 
 import android.app.Activity;
+import android.app.LoaderManager.LoaderCallbacks;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
-import android.graphics.drawable.Drawable;
+import android.content.Loader;
 import android.os.BatteryStats;
 import android.os.Bundle;
 import android.os.Handler;
@@ -32,22 +32,18 @@ import android.os.UserManager;
 import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceGroup;
-import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
 import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 
-import com.android.internal.os.BatterySipper;
 import com.android.internal.os.BatteryStatsHelper;
-import com.android.internal.os.PowerProfile;
-import com.android.settings.DevelopmentSettings;
 import com.android.settings.HelpUtils;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 
-import java.util.List;
+import java.util.HashSet;
 
 /**
  * Displays a list of apps and subsystems that consume power, ordered by how much power was
@@ -68,20 +64,19 @@ public class PowerUsageSummary extends PreferenceFragment {
     private static final int MENU_BATTERY_SAVER = Menu.FIRST + 2;
     private static final int MENU_HELP = Menu.FIRST + 3;
 
+    private static final int LOADER_USAGE = 1;
+
     private UserManager mUm;
 
     private BatteryHistoryPreference mHistPref;
+    private Preference mNotAvailablePref;
     private PreferenceGroup mAppListGroup;
+    private BatteryUsageSnapshot mSnapshot;
     private String mBatteryLevel;
     private String mBatteryStatus;
 
     private int mStatsType = BatteryStats.STATS_SINCE_CHARGED;
 
-    private static final int MIN_POWER_THRESHOLD_MILLI_AMP = 5;
-    private static final int MAX_ITEMS_TO_LIST = 10;
-    private static final int MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP = 10;
-    private static final int SECONDS_IN_HOUR = 60 * 60;
-
     private BatteryStatsHelper mStatsHelper;
 
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
@@ -112,13 +107,10 @@ public class PowerUsageSummary extends PreferenceFragment {
 
         addPreferencesFromResource(R.xml.power_usage_summary);
         mAppListGroup = (PreferenceGroup) findPreference(KEY_APP_LIST);
+        mAppListGroup.setOrderingAsAdded(false);
         setHasOptionsMenu(true);
-    }
 
-    @Override
-    public void onStart() {
-        super.onStart();
-        mStatsHelper.clearStats();
+        BatteryDrainRecordReceiver.schedule(getActivity().getApplicationContext());
     }
 
     @Override
@@ -127,11 +119,8 @@ public class PowerUsageSummary extends PreferenceFragment {
         BatteryStatsHelper.dropFile(getActivity(), BATTERY_HISTORY_FILE);
         updateBatteryStatus(getActivity().registerReceiver(mBatteryInfoReceiver,
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
-        if (mHandler.hasMessages(MSG_REFRESH_STATS)) {
-            mHandler.removeMessages(MSG_REFRESH_STATS);
-            mStatsHelper.clearStats();
-        }
-        refreshStats();
+        mHandler.removeMessages(MSG_REFRESH_STATS);
+        refreshStats(true);
     }
 
     @Override
@@ -152,7 +141,9 @@ public class PowerUsageSummary extends PreferenceFragment {
     public void onDestroy() {
         super.onDestroy();
         if (getActivity().isChangingConfigurations()) {
-            mStatsHelper.storeState();
+            synchronized (mStatsHelper) {
+                mStatsHelper.storeState();
+            }
             BatteryEntry.clearUidCache();
         }
     }
@@ -160,7 +151,9 @@ public class PowerUsageSummary extends PreferenceFragment {
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (preference instanceof BatteryHistoryPreference) {
-            mStatsHelper.storeStatsHistoryInFile(BATTERY_HISTORY_FILE);
+            synchronized (mStatsHelper) {
+                mStatsHelper.storeStatsHistoryInFile(BATTERY_HISTORY_FILE);
+            }
             Bundle args = new Bundle();
             args.putString(BatteryHistoryDetail.EXTRA_STATS, BATTERY_HISTORY_FILE);
             args.putParcelable(BatteryHistoryDetail.EXTRA_BROADCAST,
@@ -175,8 +168,10 @@ public class PowerUsageSummary extends PreferenceFragment {
         }
         PowerGaugePreference pgp = (PowerGaugePreference) preference;
         BatteryEntry entry = pgp.getInfo();
-        PowerUsageDetail.startBatteryDetailPage((SettingsActivity) getActivity(), mStatsHelper,
-                mStatsType, entry, true);
+        synchronized (mStatsHelper) {
+            PowerUsageDetail.startBatteryDetailPage((SettingsActivity) getActivity(),
+                    mStatsHelper, mStatsType, entry, true);
+        }
         return super.onPreferenceTreeClick(preferenceScreen, preference);
     }
 
@@ -212,11 +207,10 @@ public class PowerUsageSummary extends PreferenceFragment {
                 } else {
                     mStatsType = BatteryStats.STATS_SINCE_CHARGED;
                 }
-                refreshStats();
+                refreshStats(false);
                 return true;
             case MENU_STATS_REFRESH:
-                mStatsHelper.clearStats();
-                refreshStats();
+                refreshStats(true);
                 mHandler.removeMessages(MSG_REFRESH_STATS);
                 return true;
             case MENU_BATTERY_SAVER:
@@ -229,13 +223,6 @@ public class PowerUsageSummary extends PreferenceFragment {
         }
     }
 
-    private void addNotAvailableMessage() {
-        Preference notAvailable = new Preference(getActivity());
-        notAvailable.setTitle(R.string.power_usage_not_available);
-        mHistPref.setHideLabels(true);
-        mAppListGroup.addPreference(notAvailable);
-    }
-
     private boolean updateBatteryStatus(Intent intent) {
         if (intent != null) {
             String batteryLevel = com.android.settings.Utils.getBatteryPercentage(intent);
@@ -250,96 +237,142 @@ public class PowerUsageSummary extends PreferenceFragment {
         return false;
     }
 
-    private void refreshStats() {
-        mAppListGroup.removeAll();
-        mAppListGroup.setOrderingAsAdded(false);
-        mHistPref = new BatteryHistoryPreference(getActivity(), mStatsHelper.getStats(),
-                mStatsHelper.getBatteryBroadcast());
-        mHistPref.setOrder(-1);
-        mAppListGroup.addPreference(mHistPref);
-        boolean addedSome = false;
-
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(getActivity());
-        final boolean showUnacAndOvercounted = sp.getBoolean(
-                DevelopmentSettings.SHOW_UNAC_AND_OVERCOUNTED_STATS, false);
-
-        final PowerProfile powerProfile = mStatsHelper.getPowerProfile();
-        final BatteryStats stats = mStatsHelper.getStats();
-        final double averagePower = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
-        if (averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP) {
-            final List<UserHandle> profiles = mUm.getUserProfiles();
-
-            mStatsHelper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, profiles);
-
-            final List<BatterySipper> usageList = mStatsHelper.getUsageList();
-
-            final int dischargeAmount = stats != null ? stats.getDischargeAmount(mStatsType) : 0;
-            final int numSippers = usageList.size();
-            for (int i = 0; i < numSippers; i++) {
-                final BatterySipper sipper = usageList.get(i);
-                if ((sipper.value * SECONDS_IN_HOUR) < MIN_POWER_THRESHOLD_MILLI_AMP) {
-                    continue;
-                }
-                final double percentOfTotal =
-                        ((sipper.value / mStatsHelper.getTotalPower()) * dischargeAmount);
-                if (((int) (percentOfTotal + .5)) < 1) {
-                    continue;
-                }
-                if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
-                    // Don't show over-counted unless it is at least 2/3 the size of
-                    // the largest real entry, and its percent of total is more significant
-                    if (sipper.value < ((mStatsHelper.getMaxRealPower()*2)/3)) {
-                        continue;
-                    }
-                    if (percentOfTotal < 10) {
-                        continue;
-                    }
-                    if (!showUnacAndOvercounted) {
-                        continue;
-                    }
-                }
-                if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
-                    // Don't show unacccounted unless it is at least 1/2 the size of
-                    // the largest real entry, and its percent of total is more significant
-                    if (sipper.value < (mStatsHelper.getMaxRealPower()/2)) {
-                        continue;
-                    }
-                    if (percentOfTotal < 5) {
-                        continue;
-                    }
-                    if (!showUnacAndOvercounted) {
-                        continue;
-                    }
-                }
-                final UserHandle userHandle = new UserHandle(UserHandle.getUserId(sipper.getUid()));
-                final BatteryEntry entry = new BatteryEntry(getActivity(), mHandler, mUm, sipper);
-                final Drawable badgedIcon = mUm.getBadgedIconForUser(entry.getIcon(),
-                        userHandle);
-                final CharSequence contentDescription = mUm.getBadgedLabelForUser(entry.getLabel(),
-                        userHandle);
-                final PowerGaugePreference pref = new PowerGaugePreference(getActivity(),
-                        badgedIcon, contentDescription, entry);
-
-                final double percentOfMax = (sipper.value * 100) / mStatsHelper.getMaxPower();
-                sipper.percent = percentOfTotal;
-                pref.setTitle(entry.getLabel());
-                pref.setOrder(i + 1);
-                pref.setPercent(percentOfMax, percentOfTotal);
-                if (sipper.uidObj != null) {
-                    pref.setKey(Integer.toString(sipper.uidObj.getUid()));
+    /**
+     * Compute the usage again in the background, from fresh stats if asked to.
+     */
+    private void refreshStats(boolean clearStats) {
+        getLoaderManager().restartLoader(LOADER_USAGE,
+                BatteryUsageLoader.buildArgs(mStatsType, clearStats), mUsageCallbacks);
+    }
+
+    private final LoaderCallbacks<BatteryUsageSnapshot> mUsageCallbacks =
+            new LoaderCallbacks<BatteryUsageSnapshot>() {
+        @Override
+        public Loader<BatteryUsageSnapshot> onCreateLoader(int id, Bundle args) {
+            return new BatteryUsageLoader(getActivity(), mStatsHelper, mHandler, mSnapshot,
+                    args);
+        }
+
+        @Override
+        public void onLoadFinished(Loader<BatteryUsageSnapshot> loader,
+                BatteryUsageSnapshot data) {
+            bindSnapshot(data);
+            if (isResumed()) {
+                BatteryEntry.startRequestQueue();
+            }
+        }
+
+        @Override
+        public void onLoaderReset(Loader<BatteryUsageSnapshot> loader) {
+            // Keep showing the last snapshot.
+        }
+    };
+
+    /**
+     * Update the list to show the given snapshot, only touching the preferences whose
+     * usage has changed since the previous one.
+     */
+    private void bindSnapshot(BatteryUsageSnapshot snapshot) {
+        final BatteryUsageSnapshot previous = mSnapshot;
+        if (snapshot == previous) {
+            // Nothing has changed, but names and icons may have been loaded while paused,
+            // their updates being dropped.
+            for (int i = 0; i < snapshot.items.size(); i++) {
+                final BatteryUsageSnapshot.Item item = snapshot.items.get(i);
+                final PowerGaugePreference pref =
+                        (PowerGaugePreference) mAppListGroup.findPreference(item.key);
+                if (pref != null && !TextUtils.equals(pref.getTitle(), item.entry.getLabel())) {
+                    updateNameAndIcon(pref, item.entry);
                 }
-                addedSome = true;
+            }
+            return;
+        }
+        mSnapshot = snapshot;
+
+        if (mHistPref == null || mHistPref.getStats() != snapshot.stats) {
+            if (mHistPref != null) {
+                mAppListGroup.removePreference(mHistPref);
+            }
+            // Its history is decoded holding the same lock as the loader.
+            mHistPref = new BatteryHistoryPreference(getActivity(), snapshot.stats,
+                    snapshot.batteryBroadcast, mStatsHelper);
+            mHistPref.setOrder(-1);
+            mAppListGroup.addPreference(mHistPref);
+        }
+
+        final HashSet<String> keys = new HashSet<String>(snapshot.items.size());
+        for (int i = 0; i < snapshot.items.size(); i++) {
+            final BatteryUsageSnapshot.Item item = snapshot.items.get(i);
+            keys.add(item.key);
+            PowerGaugePreference pref = (PowerGaugePreference) mAppListGroup.findPreference(
+                    item.key);
+            if (pref == null) {
+                pref = new PowerGaugePreference(getActivity(), item.badgedIcon,
+                        item.contentDescription, item.entry);
+                pref.setKey(item.key);
+                pref.setTitle(item.entry.getLabel());
+                pref.setOrder(item.order);
+                pref.setPercent(item.percentOfMax, item.percentOfTotal);
                 mAppListGroup.addPreference(pref);
-                if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST + 1)) {
-                    break;
+                continue;
+            }
+
+            final BatteryEntry oldEntry = pref.getInfo();
+            pref.setInfo(item.entry);
+            if (!TextUtils.equals(oldEntry.getLabel(), item.entry.getLabel())) {
+                pref.setTitle(item.entry.getLabel());
+            }
+            if (oldEntry.getIcon() != item.entry.getIcon()) {
+                pref.setIcon(item.badgedIcon);
+            }
+            final BatteryUsageSnapshot.Item oldItem = findItem(previous, item.key);
+            if (oldItem == null || !oldItem.hasSameUsage(item)) {
+                pref.setOrder(item.order);
+                pref.setPercent(item.percentOfMax, item.percentOfTotal);
+            }
+        }
+        if (previous != null) {
+            for (int i = 0; i < previous.items.size(); i++) {
+                final String key = previous.items.get(i).key;
+                if (!keys.contains(key)) {
+                    final Preference pref = mAppListGroup.findPreference(key);
+                    if (pref != null) {
+                        mAppListGroup.removePreference(pref);
+                    }
                 }
             }
         }
-        if (!addedSome) {
-            addNotAvailableMessage();
+
+        final boolean addedSome = !snapshot.items.isEmpty();
+        if (!addedSome && mNotAvailablePref == null) {
+            mNotAvailablePref = new Preference(getActivity());
+            mNotAvailablePref.setTitle(R.string.power_usage_not_available);
+            mAppListGroup.addPreference(mNotAvailablePref);
+        } else if (addedSome && mNotAvailablePref != null) {
+            mAppListGroup.removePreference(mNotAvailablePref);
+            mNotAvailablePref = null;
         }
+        mHistPref.setHideLabels(!addedSome);
+    }
+
+    private void updateNameAndIcon(PowerGaugePreference pref, BatteryEntry entry) {
+        final int userId = UserHandle.getUserId(entry.sipper.getUid());
+        final UserHandle userHandle = new UserHandle(userId);
+        pref.setIcon(mUm.getBadgedIconForUser(entry.getIcon(), userHandle));
+        pref.setTitle(entry.name);
+    }
 
-        BatteryEntry.startRequestQueue();
+    private static BatteryUsageSnapshot.Item findItem(BatteryUsageSnapshot snapshot,
+            String key) {
+        if (snapshot != null) {
+            for (int i = 0; i < snapshot.items.size(); i++) {
+                final BatteryUsageSnapshot.Item item = snapshot.items.get(i);
+                if (item.key.equals(key)) {
+                    return item;
+                }
+            }
+        }
+        return null;
     }
 
     static final int MSG_REFRESH_STATS = 100;
@@ -355,10 +388,7 @@ public class PowerUsageSummary extends PreferenceFragment {
                             (PowerGaugePreference) findPreference(
                                     Integer.toString(entry.sipper.uidObj.getUid()));
                     if (pgp != null) {
-                        final int userId = UserHandle.getUserId(entry.sipper.getUid());
-                        final UserHandle userHandle = new UserHandle(userId);
-                        pgp.setIcon(mUm.getBadgedIconForUser(entry.getIcon(), userHandle));
-                        pgp.setTitle(entry.name);
+                        updateNameAndIcon(pgp, entry);
                     }
                     break;
                 case BatteryEntry.MSG_REPORT_FULLY_DRAWN:
@@ -368,8 +398,7 @@ public class PowerUsageSummary extends PreferenceFragment {
                     }
                     break;
                 case MSG_REFRESH_STATS:
-                    mStatsHelper.clearStats();
-                    refreshStats();
+                    refreshStats(true);
             }
             super.handleMessage(msg);
         }
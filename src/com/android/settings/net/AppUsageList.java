@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.os.UserHandle;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The data usage of a cycle collapsed into the items of the data usage app list, sorted by
+ * category then total usage descending. Immutable once built, so it can be built in the
+ * background and simply swapped into the list adapter.
+ */
+public class AppUsageList {
+    public static final AppUsageList EMPTY = new AppUsageList(
+            Collections.<AppItem>emptyList(), 0);
+
+    public final List<AppItem> items;
+    public final long largest;
+
+    private AppUsageList(List<AppItem> items, long largest) {
+        this.items = items;
+        this.largest = largest;
+    }
+
+    /**
+     * Collapse the usage of each uid into the items of the list: apps of the current user
+     * and of its profiles, other users, and the system.
+     *
+     * @param restrictedUids uids whose background data is restricted, which get an item
+     *            even without usage
+     * @param profiles the current user and its profiles
+     */
+    public static AppUsageList build(CycleSummary summary, int[] restrictedUids,
+            int currentUserId, List<UserHandle> profiles) {
+        final BitSet profileUsers = new BitSet();
+        for (int i = 0; i < profiles.size(); i++) {
+            profileUsers.set(profiles.get(i).getIdentifier());
+        }
+
+        // Decide how to collapse items together, accumulating totals by
+        // collapse key and remembering which uid went to which key.
+        final SparseLongArray totals = new SparseLongArray();
+        final SparseIntArray categories = new SparseIntArray();
+        final int size = summary != null ? summary.size() : 0;
+        final int[] collapsedUids = new int[size * 2];
+        final int[] collapsedKeys = new int[size * 2];
+        int collapsed = 0;
+        for (int i = 0; i < size; i++) {
+            final int uid = summary.getUid(i);
+            final long total = summary.getTotal(i);
+
+            final int collapseKey;
+            final int category;
+            final int userId = UserHandle.getUserId(uid);
+            if (UserHandle.isApp(uid)) {
+                if (profileUsers.get(userId)) {
+                    if (userId != currentUserId) {
+                        // Add to a managed user item.
+                        final int managedKey = UidDetailProvider.buildKeyForUser(userId);
+                        accumulate(totals, categories, managedKey, total,
+                                AppItem.CATEGORY_USER);
+                        collapsedUids[collapsed] = uid;
+                        collapsedKeys[collapsed] = managedKey;
+                        collapsed++;
+                    }
+                    // Add to app item.
+                    collapseKey = uid;
+                    category = AppItem.CATEGORY_APP;
+                } else {
+                    // Add to other user item.
+                    collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                    category = AppItem.CATEGORY_USER;
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
+                collapseKey = uid;
+                category = AppItem.CATEGORY_APP;
+            } else {
+                collapseKey = android.os.Process.SYSTEM_UID;
+                category = AppItem.CATEGORY_APP;
+            }
+            accumulate(totals, categories, collapseKey, total, category);
+            collapsedUids[collapsed] = uid;
+            collapsedKeys[collapsed] = collapseKey;
+            collapsed++;
+        }
+
+        // Only now create the items.
+        final ArrayList<AppItem> items = new ArrayList<AppItem>(totals.size() + 1);
+        final SparseArray<AppItem> knownItems = new SparseArray<AppItem>(totals.size());
+        long largest = 0;
+        for (int i = 0; i < totals.size(); i++) {
+            final AppItem item = new AppItem(totals.keyAt(i));
+            item.category = categories.valueAt(i);
+            item.total = totals.valueAt(i);
+            largest = Math.max(largest, item.total);
+            items.add(item);
+            knownItems.put(item.key, item);
+        }
+        for (int i = 0; i < collapsed; i++) {
+            knownItems.get(collapsedKeys[i]).addUid(collapsedUids[i]);
+        }
+
+        final int restrictedUidsMax = restrictedUids != null ? restrictedUids.length : 0;
+        for (int i = 0; i < restrictedUidsMax; ++i) {
+            final int uid = restrictedUids[i];
+            // Only splice in restricted state for current user or managed users
+            if (!profileUsers.get(UserHandle.getUserId(uid))) {
+                continue;
+            }
+
+            AppItem item = knownItems.get(uid);
+            if (item == null) {
+                item = new AppItem(uid);
+                item.total = -1;
+                items.add(item);
+                knownItems.put(item.key, item);
+            }
+            item.restricted = true;
+        }
+
+        if (!items.isEmpty()) {
+            final AppItem title = new AppItem();
+            title.category = AppItem.CATEGORY_APP_TITLE;
+            items.add(title);
+        }
+
+        Collections.sort(items);
+        return new AppUsageList(Collections.unmodifiableList(items), largest);
+    }
+
+    private static void accumulate(SparseLongArray totals, SparseIntArray categories,
+            int collapseKey, long total, int category) {
+        final int index = totals.indexOfKey(collapseKey);
+        if (index < 0) {
+            totals.put(collapseKey, total);
+            categories.put(collapseKey, category);
+        } else {
+            totals.put(collapseKey, totals.valueAt(index) + total);
+        }
+    }
+}
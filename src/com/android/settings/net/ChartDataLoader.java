@@ -18,14 +18,12 @@ package com.android.settings.net;
 
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.SET_FOREGROUND;
-import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
 import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 
 import android.content.AsyncTaskLoader;
 import android.content.Context;
-import android.net.INetworkStatsSession;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
@@ -41,7 +39,9 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private static final String KEY_APP = "app";
     private static final String KEY_FIELDS = "fields";
 
-    private final INetworkStatsSession mSession;
+    private static final int[] UID_SETS = new int[] { SET_DEFAULT, SET_FOREGROUND };
+
+    private final NetworkHistoryCache mCache;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, AppItem app) {
@@ -56,9 +56,9 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         return args;
     }
 
-    public ChartDataLoader(Context context, INetworkStatsSession session, Bundle args) {
+    public ChartDataLoader(Context context, NetworkHistoryCache cache, Bundle args) {
         super(context);
-        mSession = session;
+        mCache = cache;
         mArgs = args;
     }
 
@@ -86,20 +86,21 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private ChartData loadInBackground(NetworkTemplate template, AppItem app, int fields)
             throws RemoteException {
         final ChartData data = new ChartData();
-        data.network = mSession.getHistoryForNetwork(template, fields);
+        data.network = mCache.getHistoryForNetwork(template, fields);
 
         if (app != null) {
             // load stats for current uid and template
             final int size = app.uids.size();
+            final int[] uids = new int[size];
             for (int i = 0; i < size; i++) {
-                final int uid = app.uids.keyAt(i);
-                data.detailDefault = collectHistoryForUid(
-                        template, uid, SET_DEFAULT, data.detailDefault);
-                data.detailForeground = collectHistoryForUid(
-                        template, uid, SET_FOREGROUND, data.detailForeground);
+                uids[i] = app.uids.keyAt(i);
             }
 
             if (size > 0) {
+                final NetworkStatsHistory[][] histories = mCache.getHistoryForUids(
+                        template, uids, UID_SETS, FIELD_RX_BYTES | FIELD_TX_BYTES);
+                data.detailDefault = combineHistories(histories[0]);
+                data.detailForeground = combineHistories(histories[1]);
                 data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
                 data.detail.recordEntireHistory(data.detailDefault);
                 data.detail.recordEntireHistory(data.detailForeground);
@@ -126,20 +127,18 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     }
 
     /**
-     * Collect {@link NetworkStatsHistory} for the requested UID, combining with
-     * an existing {@link NetworkStatsHistory} if provided.
+     * Combine the {@link NetworkStatsHistory} of several UIDs. The cached
+     * histories are shared, so they are combined into a new one.
      */
-    private NetworkStatsHistory collectHistoryForUid(
-            NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
-            throws RemoteException {
-        final NetworkStatsHistory history = mSession.getHistoryForUid(
-                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
-
-        if (existing != null) {
-            existing.recordEntireHistory(history);
-            return existing;
-        } else {
-            return history;
+    private static NetworkStatsHistory combineHistories(NetworkStatsHistory[] histories) {
+        if (histories.length == 1) {
+            return histories[0];
+        }
+        final NetworkStatsHistory combined = new NetworkStatsHistory(
+                histories[0].getBucketDuration());
+        for (NetworkStatsHistory history : histories) {
+            combined.recordEntireHistory(history);
         }
+        return combined;
     }
 }
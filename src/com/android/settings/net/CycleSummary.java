@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.NetworkStats;
+import android.util.SparseLongArray;
+
+/**
+ * Total data usage of each uid over a range of time, summed over all the sets, tags and
+ * interfaces of a {@link NetworkStats}. Immutable, with the uids in ascending order.
+ */
+public class CycleSummary {
+    public static final CycleSummary EMPTY = new CycleSummary(new int[0], new long[0]);
+
+    private final int[] mUids;
+    private final long[] mTotals;
+
+    private CycleSummary(int[] uids, long[] totals) {
+        mUids = uids;
+        mTotals = totals;
+    }
+
+    public static CycleSummary fromStats(NetworkStats stats) {
+        if (stats == null) {
+            return EMPTY;
+        }
+        final SparseLongArray totals = new SparseLongArray();
+        NetworkStats.Entry entry = null;
+        final int size = stats.size();
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+            totals.put(entry.uid, totals.get(entry.uid) + entry.rxBytes + entry.txBytes);
+        }
+
+        final int count = totals.size();
+        final int[] uids = new int[count];
+        final long[] bytes = new long[count];
+        for (int i = 0; i < count; i++) {
+            uids[i] = totals.keyAt(i);
+            bytes[i] = totals.valueAt(i);
+        }
+        return new CycleSummary(uids, bytes);
+    }
+
+    public int size() {
+        return mUids.length;
+    }
+
+    public int getUid(int index) {
+        return mUids[index];
+    }
+
+    public long getTotal(int index) {
+        return mTotals[index];
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the {@link CycleSummary} of the data usage cycles, so that switching between
+ * cycles does not read and aggregate their stats again. Once the cycles are known, they can
+ * be {@link #prefetch prefetched} in the background.
+ *
+ * A summary being computed is shared by everyone asking for it: a cycle that has been
+ * prefetched but not computed yet is computed right away by the first thread needing it.
+ * Call {@link #invalidate()} when the stats, the template or the policy change.
+ */
+public class CycleSummaryCache {
+    private static final int MAX_ENTRIES = 24;
+    private static final int MAX_PREFETCH = 12;
+
+    private static class Key {
+        final NetworkTemplate template;
+        final long start;
+        final long end;
+
+        Key(NetworkTemplate template, long start, long end) {
+            this.template = template;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return start == other.start && end == other.end && template.equals(other.template);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = template.hashCode();
+            result = 31 * result + (int) (start ^ (start >>> 32));
+            result = 31 * result + (int) (end ^ (end >>> 32));
+            return result;
+        }
+    }
+
+    private final INetworkStatsSession mSession;
+
+    @GuardedBy("this")
+    private final LinkedHashMap<Key, FutureTask<CycleSummary>> mSummaries =
+            new LinkedHashMap<Key, FutureTask<CycleSummary>>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, FutureTask<CycleSummary>> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final ThreadPoolExecutor mExecutor;
+
+    public CycleSummaryCache(INetworkStatsSession session) {
+        mSession = session;
+        mExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Drop all the cached summaries. Those being computed are not cached.
+     */
+    public synchronized void invalidate() {
+        mSummaries.clear();
+        mExecutor.getQueue().clear();
+    }
+
+    /**
+     * Compute in the background the summaries of the given cycles, newest first, that are
+     * not cached yet.
+     */
+    public void prefetch(NetworkTemplate template, long[] starts, long[] ends) {
+        final int count = Math.min(starts.length, MAX_PREFETCH);
+        for (int i = 0; i < count; i++) {
+            final FutureTask<CycleSummary> task;
+            synchronized (this) {
+                final Key key = new Key(template, starts[i], ends[i]);
+                if (mSummaries.containsKey(key)) {
+                    continue;
+                }
+                task = newTask(key);
+                mSummaries.put(key, task);
+            }
+            mExecutor.execute(task);
+        }
+    }
+
+    /**
+     * @return the summary of the given range of time, computed on the calling thread unless
+     * it is cached or already being computed
+     */
+    public CycleSummary getSummary(NetworkTemplate template, long start, long end)
+            throws RemoteException {
+        final Key key = new Key(template, start, end);
+        final FutureTask<CycleSummary> task;
+        synchronized (this) {
+            FutureTask<CycleSummary> cached = mSummaries.get(key);
+            if (cached == null) {
+                cached = newTask(key);
+                mSummaries.put(key, cached);
+            }
+            task = cached;
+        }
+
+        try {
+            return FutureTasks.runAndGet(task);
+        } catch (ExecutionException e) {
+            // Do not keep the failure around.
+            synchronized (this) {
+                if (mSummaries.get(key) == task) {
+                    mSummaries.remove(key);
+                }
+            }
+            throw FutureTasks.rethrowCause(e);
+        }
+    }
+
+    private FutureTask<CycleSummary> newTask(final Key key) {
+        return new FutureTask<CycleSummary>(new Callable<CycleSummary>() {
+            @Override
+            public CycleSummary call() throws RemoteException {
+                return CycleSummary.fromStats(
+                        mSession.getSummaryForAllUid(key.template, key.start, key.end, false));
+            }
+        });
+    }
+}
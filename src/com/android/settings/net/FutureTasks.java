@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.os.RemoteException;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Helpers for the {@link FutureTask}s shared by all the threads needing their result, whether
+ * they have been queued on a pool or not.
+ */
+final class FutureTasks {
+    private FutureTasks() {
+    }
+
+    /**
+     * Run a task on the calling thread, unless it has been run already or is running, and wait
+     * for its result. Interrupts are deferred until the result is there.
+     */
+    static <T> T runAndGet(FutureTask<T> task) throws ExecutionException {
+        // Does nothing if it has been run already, or is running.
+        task.run();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Throw the cause of the failure of a task if it is a {@link RemoteException}.
+     *
+     * @return the unchecked exception to throw otherwise
+     */
+    static RuntimeException rethrowCause(ExecutionException e) throws RemoteException {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RemoteException) {
+            throw (RemoteException) cause;
+        } else if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return new RuntimeException(cause);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.SET_ALL;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStats.UID_ALL;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the {@link NetworkStatsHistory} read from an {@link INetworkStatsSession}, keyed by
+ * template, uid, set and fields, so that selecting again a cycle or an app does not read its
+ * history again. The histories of several uids are read concurrently.
+ *
+ * The cached histories are shared, and must not be modified. Call {@link #invalidate()} once
+ * the stats have been updated, to read them again.
+ */
+public class NetworkHistoryCache {
+    private static final int MAX_ENTRIES = 64;
+    private static final int MAX_THREADS = 4;
+
+    private static class Key {
+        final NetworkTemplate template;
+        final int uid;
+        final int set;
+        final int fields;
+
+        Key(NetworkTemplate template, int uid, int set, int fields) {
+            this.template = template;
+            this.uid = uid;
+            this.set = set;
+            this.fields = fields;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return uid == other.uid && set == other.set && fields == other.fields
+                    && template.equals(other.template);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = template.hashCode();
+            result = 31 * result + uid;
+            result = 31 * result + set;
+            result = 31 * result + fields;
+            return result;
+        }
+    }
+
+    private final INetworkStatsSession mSession;
+
+    @GuardedBy("this")
+    private final LinkedHashMap<Key, NetworkStatsHistory> mHistories =
+            new LinkedHashMap<Key, NetworkStatsHistory>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, NetworkStatsHistory> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // Incremented on each invalidation, so that histories read before it are
+    // not cached after it.
+    @GuardedBy("this")
+    private int mGeneration;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    public NetworkHistoryCache(INetworkStatsSession session) {
+        mSession = session;
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Drop all the cached histories, and the reads not started yet by the pool: those are
+     * then done by the threads waiting for them.
+     */
+    public synchronized void invalidate() {
+        mHistories.clear();
+        mGeneration++;
+        mExecutor.getQueue().clear();
+    }
+
+    public NetworkStatsHistory getHistoryForNetwork(NetworkTemplate template, int fields)
+            throws RemoteException {
+        final Key key = new Key(template, UID_ALL, SET_ALL, fields);
+        final int generation;
+        synchronized (this) {
+            final NetworkStatsHistory history = mHistories.get(key);
+            if (history != null) {
+                return history;
+            }
+            generation = mGeneration;
+        }
+        final NetworkStatsHistory history = mSession.getHistoryForNetwork(template, fields);
+        put(key, history, generation);
+        return history;
+    }
+
+    /**
+     * Read the histories of several uids and sets, those not cached being read concurrently.
+     *
+     * @return the histories, indexed by set then by uid
+     */
+    public NetworkStatsHistory[][] getHistoryForUids(NetworkTemplate template, int[] uids,
+            int[] sets, int fields) throws RemoteException {
+        final NetworkStatsHistory[][] histories = new NetworkStatsHistory[sets.length][];
+        final ArrayList<Key> missing = new ArrayList<Key>();
+        final int generation;
+        synchronized (this) {
+            for (int i = 0; i < sets.length; i++) {
+                histories[i] = new NetworkStatsHistory[uids.length];
+                for (int j = 0; j < uids.length; j++) {
+                    final Key key = new Key(template, uids[j], sets[i], fields);
+                    histories[i][j] = mHistories.get(key);
+                    if (histories[i][j] == null) {
+                        missing.add(key);
+                    }
+                }
+            }
+            generation = mGeneration;
+        }
+        if (missing.isEmpty()) {
+            return histories;
+        }
+
+        // Read the last one on this thread while the others are read by the pool.
+        final ArrayList<FutureTask<NetworkStatsHistory>> futures =
+                new ArrayList<FutureTask<NetworkStatsHistory>>(missing.size() - 1);
+        try {
+            for (int i = 0; i < missing.size() - 1; i++) {
+                final Key key = missing.get(i);
+                final FutureTask<NetworkStatsHistory> task = new FutureTask<NetworkStatsHistory>(
+                        new Callable<NetworkStatsHistory>() {
+                    @Override
+                    public NetworkStatsHistory call() throws RemoteException {
+                        return mSession.getHistoryForUid(key.template, key.uid, key.set,
+                                TAG_NONE, key.fields);
+                    }
+                });
+                futures.add(task);
+                mExecutor.execute(task);
+            }
+            final HashMap<Key, NetworkStatsHistory> read =
+                    new HashMap<Key, NetworkStatsHistory>(missing.size());
+            final Key last = missing.get(missing.size() - 1);
+            read.put(last, mSession.getHistoryForUid(last.template, last.uid, last.set,
+                    TAG_NONE, last.fields));
+            for (int i = 0; i < futures.size(); i++) {
+                read.put(missing.get(i), getResult(futures.get(i)));
+            }
+
+            for (int i = 0; i < sets.length; i++) {
+                for (int j = 0; j < uids.length; j++) {
+                    if (histories[i][j] == null) {
+                        histories[i][j] = read.get(new Key(template, uids[j], sets[i], fields));
+                    }
+                }
+            }
+            for (Map.Entry<Key, NetworkStatsHistory> entry : read.entrySet()) {
+                put(entry.getKey(), entry.getValue(), generation);
+            }
+            return histories;
+        } finally {
+            // Nothing to wait for if one of the reads failed.
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).cancel(false);
+            }
+        }
+    }
+
+    private static NetworkStatsHistory getResult(FutureTask<NetworkStatsHistory> future)
+            throws RemoteException {
+        // Read here if the pool has not started it, or has dropped it.
+        try {
+            return FutureTasks.runAndGet(future);
+        } catch (ExecutionException e) {
+            throw FutureTasks.rethrowCause(e);
+        }
+    }
+
+    private synchronized void put(Key key, NetworkStatsHistory history, int generation) {
+        if (history != null && generation == mGeneration) {
+            mHistories.put(key, history);
+        }
+    }
+}
@@ -16,20 +16,27 @@
 
 package com.android.settings.net;
 
+import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
+
+import android.app.ActivityManager;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
-import android.net.INetworkStatsSession;
-import android.net.NetworkStats;
+import android.net.NetworkPolicyManager;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.UserManager;
 
-public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
+/**
+ * Loader for the data usage of each app over a range of time, read through a
+ * {@link CycleSummaryCache} and collapsed into an {@link AppUsageList}.
+ */
+public class SummaryForAllUidLoader extends AsyncTaskLoader<AppUsageList> {
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_START = "start";
     private static final String KEY_END = "end";
 
-    private final INetworkStatsSession mSession;
+    private final CycleSummaryCache mCache;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, long start, long end) {
@@ -40,9 +47,9 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         return args;
     }
 
-    public SummaryForAllUidLoader(Context context, INetworkStatsSession session, Bundle args) {
+    public SummaryForAllUidLoader(Context context, CycleSummaryCache cache, Bundle args) {
         super(context);
-        mSession = session;
+        mCache = cache;
         mArgs = args;
     }
 
@@ -53,16 +60,24 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     }
 
     @Override
-    public NetworkStats loadInBackground() {
+    public AppUsageList loadInBackground() {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
 
+        CycleSummary summary;
         try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
+            summary = mCache.getSummary(template, start, end);
         } catch (RemoteException e) {
-            return null;
+            summary = null;
         }
+
+        final Context context = getContext();
+        final int[] restrictedUids = NetworkPolicyManager.from(context).getUidsWithPolicy(
+                POLICY_REJECT_METERED_BACKGROUND);
+        final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        return AppUsageList.build(summary, restrictedUids, ActivityManager.getCurrentUser(),
+                um.getUserProfiles());
     }
 
     @Override
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.settings.util.IconDiskCache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * On-disk cache of the {@link UidDetail} of app uids, so that the data usage app list shows
+ * its labels and icons right away after a process restart.
+ *
+ * The labels of all the uids are kept in the index of an {@link IconDiskCache}, and their
+ * icons in its icon files, named after the uid. A cached detail is only used if the packages
+ * of the uid and their update times have not changed since.
+ *
+ * Details are resolved on several threads, the UI thread included: the in-memory state is
+ * guarded by the cache itself, which is never held during file I/O.
+ */
+class UidDetailDiskCache {
+    private static final String TAG = "UidDetailDiskCache";
+
+    private static final int MAGIC = 0x55494443; // "UIDC"
+    private static final int VERSION = 1;
+
+    private static final String INDEX_FILE_NAME = "uid_details";
+    private static final String ICONS_DIR_NAME = "uid_detail_icons";
+
+    private static class Record {
+        final int uid;
+        final String[] packageNames;
+        final long[] updateTimes;
+
+        String label;
+        String contentDescription;
+        String[] detailLabels;
+        String[] detailContentDescriptions;
+        boolean hasIcon;
+
+        Record(int uid, String[] packageNames, long[] updateTimes) {
+            this.uid = uid;
+            this.packageNames = packageNames;
+            this.updateTimes = updateTimes;
+        }
+
+        boolean isValidFor(String[] packageNames, long[] updateTimes) {
+            return Arrays.equals(this.packageNames, packageNames)
+                    && Arrays.equals(this.updateTimes, updateTimes);
+        }
+    }
+
+    private final IconDiskCache mFiles;
+
+    /** Serializes the writes of the index. */
+    private final Object mSaveLock = new Object();
+
+    @GuardedBy("this")
+    private SparseArray<Record> mRecords;
+    @GuardedBy("this")
+    private String mConfigKey;
+    @GuardedBy("this")
+    private boolean mDirty;
+
+    UidDetailDiskCache(Context context) {
+        mFiles = new IconDiskCache(context, TAG, INDEX_FILE_NAME, ICONS_DIR_NAME, MAGIC,
+                VERSION);
+    }
+
+    /**
+     * @return the cached detail of a uid, or null if there is none or if its packages have
+     * changed since it was cached
+     */
+    UidDetail get(int uid, String[] packageNames, long[] updateTimes) {
+        ensureLoaded();
+        final Record record;
+        synchronized (this) {
+            record = mRecords.get(uid);
+        }
+        if (record == null || !record.isValidFor(packageNames, updateTimes)) {
+            return null;
+        }
+
+        final UidDetail detail = new UidDetail();
+        detail.label = record.label;
+        detail.contentDescription = record.contentDescription;
+        detail.detailLabels = record.detailLabels;
+        detail.detailContentDescriptions = record.detailContentDescriptions;
+        if (record.hasIcon) {
+            detail.icon = mFiles.loadIcon(Integer.toString(uid));
+            if (detail.icon == null) {
+                // Missing icon: build the detail again.
+                return null;
+            }
+        }
+        return detail;
+    }
+
+    /**
+     * Cache the detail of a uid, writing its icon right away. The index is only written by
+     * {@link #save()}.
+     */
+    void put(int uid, String[] packageNames, long[] updateTimes, UidDetail detail) {
+        final String configKey = ensureLoaded();
+        final Record record = new Record(uid, packageNames, updateTimes);
+        record.label = toString(detail.label);
+        record.contentDescription = toString(detail.contentDescription);
+        record.detailLabels = toStrings(detail.detailLabels);
+        record.detailContentDescriptions = toStrings(detail.detailContentDescriptions);
+        record.hasIcon = detail.icon != null
+                && mFiles.writeIcon(Integer.toString(uid), detail.icon);
+        synchronized (this) {
+            if (configKey.equals(mConfigKey)) {
+                mRecords.put(uid, record);
+                mDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Write the index if something has changed.
+     */
+    void save() {
+        synchronized (mSaveLock) {
+            final SparseArray<Record> records;
+            final String configKey;
+            synchronized (this) {
+                if (mRecords == null || !mDirty) {
+                    return;
+                }
+                records = mRecords.clone();
+                configKey = mConfigKey;
+                mDirty = false;
+            }
+            if (!writeIndex(records, configKey)) {
+                synchronized (this) {
+                    mDirty = true;
+                }
+                return;
+            }
+            deleteStaleIcons();
+        }
+    }
+
+    /**
+     * Read the index the first time, and drop the records when the configuration changes.
+     *
+     * @return the current configuration key
+     */
+    private String ensureLoaded() {
+        final String configKey = mFiles.getConfigKey();
+        synchronized (this) {
+            if (mRecords != null) {
+                if (!configKey.equals(mConfigKey)) {
+                    mRecords.clear();
+                    mConfigKey = configKey;
+                    mDirty = true;
+                }
+                return configKey;
+            }
+        }
+
+        // Read without the lock: if several threads do it at once, the first one to finish wins.
+        final SparseArray<Record> records = new SparseArray<Record>();
+        boolean dirty;
+        try {
+            dirty = !readIndex(records, configKey);
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet.
+            dirty = false;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read the cached uid details", e);
+            records.clear();
+            dirty = true;
+        }
+        synchronized (this) {
+            if (mRecords == null) {
+                mRecords = records;
+                mConfigKey = configKey;
+                mDirty = dirty;
+            }
+        }
+        return configKey;
+    }
+
+    /**
+     * @return false if the index has another format or configuration, and was ignored
+     */
+    private boolean readIndex(SparseArray<Record> records, String configKey)
+            throws IOException {
+        final DataInputStream in = mFiles.openIndex(configKey);
+        if (in == null) {
+            return false;
+        }
+        try {
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final int uid = in.readInt();
+                final int packageCount = in.readInt();
+                final String[] packageNames = new String[packageCount];
+                final long[] updateTimes = new long[packageCount];
+                for (int j = 0; j < packageCount; j++) {
+                    packageNames[j] = in.readUTF();
+                    updateTimes[j] = in.readLong();
+                }
+                final Record record = new Record(uid, packageNames, updateTimes);
+                record.label = readString(in);
+                record.contentDescription = readString(in);
+                record.detailLabels = readStrings(in);
+                record.detailContentDescriptions = readStrings(in);
+                record.hasIcon = in.readBoolean();
+                records.put(uid, record);
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    private boolean writeIndex(final SparseArray<Record> records, String configKey) {
+        return mFiles.writeIndex(configKey, new IconDiskCache.IndexWriter() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(records.size());
+                for (int i = 0; i < records.size(); i++) {
+                    final Record record = records.valueAt(i);
+                    out.writeInt(record.uid);
+                    out.writeInt(record.packageNames.length);
+                    for (int j = 0; j < record.packageNames.length; j++) {
+                        out.writeUTF(record.packageNames[j]);
+                        out.writeLong(record.updateTimes[j]);
+                    }
+                    writeString(out, record.label);
+                    writeString(out, record.contentDescription);
+                    writeStrings(out, record.detailLabels);
+                    writeStrings(out, record.detailContentDescriptions);
+                    out.writeBoolean(record.hasIcon);
+                }
+            }
+        });
+    }
+
+    private void deleteStaleIcons() {
+        // Kept as of now rather than as of the index written: an icon being written is only
+        // recorded once done though, and if deleted, get() builds its detail again.
+        final HashSet<String> names;
+        synchronized (this) {
+            names = new HashSet<String>(mRecords.size());
+            for (int i = 0; i < mRecords.size(); i++) {
+                final Record record = mRecords.valueAt(i);
+                if (record.hasIcon) {
+                    names.add(Integer.toString(record.uid));
+                }
+            }
+        }
+        mFiles.deleteStaleIcons(names);
+    }
+
+    private static String toString(CharSequence text) {
+        return text != null ? text.toString() : null;
+    }
+
+    private static String[] toStrings(CharSequence[] texts) {
+        if (texts == null) {
+            return null;
+        }
+        final String[] strings = new String[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            strings[i] = toString(texts[i]);
+        }
+        return strings;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        final String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            strings[i] = readString(in);
+        }
+        return strings;
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings)
+            throws IOException {
+        out.writeInt(strings != null ? strings.length : -1);
+        if (strings != null) {
+            for (String string : strings) {
+                writeString(out, string);
+            }
+        }
+    }
+}
@@ -35,17 +35,50 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.settings.R;
 import com.android.settings.Utils;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Return details about a specific UID, handling special cases like
  * {@link TrafficStats#UID_TETHERING} and {@link UserInfo}.
+ *
+ * Details are kept in a bounded in-memory cache, and those of apps also in a
+ * {@link UidDetailDiskCache} that survives the process. A detail being built is shared by
+ * everyone asking for it, and the details of a whole list can be {@link #prefetch prefetched}
+ * in one batch.
  */
 public class UidDetailProvider {
     private static final String TAG = "DataUsage";
+
+    private static final int MAX_CACHED_DETAILS = 256;
+
     private final Context mContext;
-    private final SparseArray<UidDetail> mUidDetailCache;
+
+    @GuardedBy("mUidDetailCache")
+    private final LinkedHashMap<Integer, UidDetail> mUidDetailCache =
+            new LinkedHashMap<Integer, UidDetail>(MAX_CACHED_DETAILS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, UidDetail> eldest) {
+            return size() > MAX_CACHED_DETAILS;
+        }
+    };
+
+    @GuardedBy("mUidDetailCache")
+    private final SparseArray<FutureTask<UidDetail>> mPendingDetails =
+            new SparseArray<FutureTask<UidDetail>>();
+
+    private final UidDetailDiskCache mDiskCache;
+    private final ThreadPoolExecutor mExecutor;
 
     public static final int OTHER_USER_RANGE_START = -2000;
 
@@ -63,13 +96,43 @@ public class UidDetailProvider {
 
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
-        mUidDetailCache = new SparseArray<UidDetail>();
+        mDiskCache = new UidDetailDiskCache(mContext);
+        mExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
     }
 
+    /**
+     * Drop the details cached in memory, and write those built since the last time to disk.
+     */
     public void clearCache() {
         synchronized (mUidDetailCache) {
             mUidDetailCache.clear();
         }
+        mExecutor.getQueue().clear();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mDiskCache.save();
+            }
+        });
+    }
+
+    /**
+     * Resolve in the background, in one batch, the details of the given UIDs that are not
+     * cached yet, then write them to disk.
+     */
+    public void prefetch(final int[] uids) {
+        mExecutor.getQueue().clear();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < uids.length; i++) {
+                    getUidDetail(uids[i], true);
+                }
+                mDiskCache.save();
+            }
+        });
     }
 
     /**
@@ -88,12 +151,75 @@ public class UidDetailProvider {
             return null;
         }
 
-        detail = buildUidDetail(uid);
-
+        final FutureTask<UidDetail> task;
         synchronized (mUidDetailCache) {
-            mUidDetailCache.put(uid, detail);
+            FutureTask<UidDetail> pending = mPendingDetails.get(uid);
+            if (pending == null) {
+                pending = newTask(uid);
+                mPendingDetails.put(uid, pending);
+            }
+            task = pending;
         }
 
+        try {
+            return FutureTasks.runAndGet(task);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private FutureTask<UidDetail> newTask(final int uid) {
+        return new FutureTask<UidDetail>(new Callable<UidDetail>() {
+            @Override
+            public UidDetail call() {
+                try {
+                    final UidDetail detail = loadUidDetail(uid);
+                    synchronized (mUidDetailCache) {
+                        mUidDetailCache.put(uid, detail);
+                    }
+                    return detail;
+                } finally {
+                    synchronized (mUidDetailCache) {
+                        mPendingDetails.remove(uid);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Read the detail of an app UID from disk if its packages have not been updated since it
+     * was cached, otherwise build it and cache it on disk.
+     */
+    private UidDetail loadUidDetail(int uid) {
+        if (!UserHandle.isApp(uid)) {
+            return buildUidDetail(uid);
+        }
+
+        final PackageManager pm = mContext.getPackageManager();
+        final String[] packageNames = pm.getPackagesForUid(uid);
+        if (packageNames == null || packageNames.length == 0) {
+            return buildUidDetail(uid);
+        }
+        final long[] updateTimes = new long[packageNames.length];
+        for (int i = 0; i < packageNames.length; i++) {
+            try {
+                updateTimes[i] = pm.getPackageInfo(packageNames[i], 0).lastUpdateTime;
+            } catch (NameNotFoundException e) {
+                // Being removed: do not cache it.
+                return buildUidDetail(uid);
+            }
+        }
+
+        UidDetail detail = mDiskCache.get(uid, packageNames, updateTimes);
+        if (detail == null) {
+            detail = buildUidDetail(uid);
+            mDiskCache.put(uid, packageNames, updateTimes, detail);
+        }
         return detail;
     }
 
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable in-memory copy of the Index rows of one locale, used for answering as-you-type
+ * queries without going through SQLite.
+ *
+ * Tokens are extracted the same way as the FTS "simple" tokenizer does (ASCII alphanumeric
+ * characters and any non ASCII character, ASCII case folded), and are kept sorted so that all
+ * the tokens starting with a prefix are found with a binary search. Each token has a posting
+ * list of (row, matched columns) entries.
+ *
+ * Only single term queries are handled, as they are the only ones for which the result can be
+ * guaranteed to be the same as the FTS one: {@link #search(String)} returns null for any other
+ * query and the caller should then use the database.
+ */
+class InMemoryIndex {
+
+    private static final int MATCH_PRIMARY = 1;
+    private static final int MATCH_SECONDARY = 2;
+    private static final int MATCH_BITS = 2;
+    private static final int MATCH_MASK = (1 << MATCH_BITS) - 1;
+
+    private static final int[] EMPTY_POSTINGS = new int[0];
+
+    private final String mLocale;
+    private final String[] mColumnNames;
+    private final Object[][] mRows;
+    private final int[] mRanks;
+    private final String[] mTitles;
+
+    // Sorted tokens and, for each of them, the rows containing it as (row << MATCH_BITS | match)
+    private final String[] mTokens;
+    private final int[][] mPostings;
+
+    private InMemoryIndex(String locale, String[] columnNames, Object[][] rows, int[] ranks,
+            String[] titles, String[] tokens, int[][] postings) {
+        mLocale = locale;
+        mColumnNames = columnNames;
+        mRows = rows;
+        mRanks = ranks;
+        mTitles = titles;
+        mTokens = tokens;
+        mPostings = postings;
+    }
+
+    /**
+     * @return the projection to use for the cursor given to
+     * {@link #build(String, Cursor, String[], String[], String[], String, String)}
+     */
+    public static String[] getProjection(String[] resultColumns, String[] primaryColumns,
+            String[] secondaryColumns) {
+        final List<String> projection = new ArrayList<String>(Arrays.asList(resultColumns));
+        addMissing(projection, primaryColumns);
+        addMissing(projection, secondaryColumns);
+        return projection.toArray(new String[projection.size()]);
+    }
+
+    private static void addMissing(List<String> projection, String[] columns) {
+        for (int n = 0; n < columns.length; n++) {
+            if (!projection.contains(columns[n])) {
+                projection.add(columns[n]);
+            }
+        }
+    }
+
+    /**
+     * Build an in-memory index from the rows of a cursor.
+     *
+     * @param locale the locale of the rows
+     * @param cursor the rows, with the columns from
+     *               {@link #getProjection(String[], String[], String[])}
+     * @param resultColumns the columns of the cursors returned by {@link #search(String)}
+     * @param primaryColumns the columns for which a match ranks first
+     * @param secondaryColumns the columns for which a match ranks after the primary ones
+     * @param rankColumn the column used for ordering the results
+     * @param titleColumn the column used for ordering the secondary results of the same rank
+     */
+    public static InMemoryIndex build(String locale, Cursor cursor, String[] resultColumns,
+            String[] primaryColumns, String[] secondaryColumns, String rankColumn,
+            String titleColumn) {
+        final int rowCount = cursor.getCount();
+        final int resultColumnCount = resultColumns.length;
+        final Object[][] rows = new Object[rowCount][];
+        final int[] ranks = new int[rowCount];
+        final String[] titles = new String[rowCount];
+
+        final int[] primaryIndexes = getColumnIndexes(cursor, primaryColumns);
+        final int[] secondaryIndexes = getColumnIndexes(cursor, secondaryColumns);
+        final int[] resultIndexes = getColumnIndexes(cursor, resultColumns);
+        final int rankIndex = cursor.getColumnIndexOrThrow(rankColumn);
+        final int titleIndex = cursor.getColumnIndexOrThrow(titleColumn);
+
+        final Map<String, PostingsBuilder> postings = new HashMap<String, PostingsBuilder>();
+        final StringBuilder token = new StringBuilder();
+
+        int row = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext() && row < rowCount) {
+            final Object[] values = new Object[resultColumnCount];
+            for (int n = 0; n < resultColumnCount; n++) {
+                values[n] = cursor.getString(resultIndexes[n]);
+            }
+            rows[row] = values;
+            ranks[row] = cursor.getInt(rankIndex);
+            titles[row] = cursor.getString(titleIndex);
+
+            for (int n = 0; n < primaryIndexes.length; n++) {
+                addTokens(postings, token, cursor.getString(primaryIndexes[n]), row,
+                        MATCH_PRIMARY);
+            }
+            for (int n = 0; n < secondaryIndexes.length; n++) {
+                addTokens(postings, token, cursor.getString(secondaryIndexes[n]), row,
+                        MATCH_SECONDARY);
+            }
+            row++;
+        }
+
+        final String[] tokens = postings.keySet().toArray(new String[postings.size()]);
+        Arrays.sort(tokens);
+        final int[][] tokenPostings = new int[tokens.length][];
+        for (int n = 0; n < tokens.length; n++) {
+            tokenPostings[n] = postings.get(tokens[n]).toArray();
+        }
+
+        return new InMemoryIndex(locale, resultColumns, rows, ranks, titles, tokens,
+                tokenPostings);
+    }
+
+    private static int[] getColumnIndexes(Cursor cursor, String[] columns) {
+        final int[] indexes = new int[columns.length];
+        for (int n = 0; n < columns.length; n++) {
+            indexes[n] = cursor.getColumnIndexOrThrow(columns[n]);
+        }
+        return indexes;
+    }
+
+    private static void addTokens(Map<String, PostingsBuilder> postings, StringBuilder token,
+            String text, int row, int match) {
+        if (text == null) {
+            return;
+        }
+        final int length = text.length();
+        for (int n = 0; n <= length; n++) {
+            final char c = (n < length) ? text.charAt(n) : ' ';
+            if (isTokenChar(c)) {
+                token.append(toLowerCaseAscii(c));
+            } else if (token.length() > 0) {
+                final String value = token.toString();
+                PostingsBuilder builder = postings.get(value);
+                if (builder == null) {
+                    builder = new PostingsBuilder();
+                    postings.put(value, builder);
+                }
+                builder.add(row, match);
+                token.setLength(0);
+            }
+        }
+    }
+
+    private static boolean isTokenChar(char c) {
+        return c >= 0x80 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')
+                || (c >= 'A' && c <= 'Z');
+    }
+
+    private static char toLowerCaseAscii(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * @return the single token of a query, or null if the query has none or more than one.
+     */
+    private static String getSingleToken(String query) {
+        String result = null;
+        final StringBuilder token = new StringBuilder();
+        final int length = query.length();
+        for (int n = 0; n <= length; n++) {
+            final char c = (n < length) ? query.charAt(n) : ' ';
+            if (isTokenChar(c)) {
+                token.append(toLowerCaseAscii(c));
+            } else if (token.length() > 0) {
+                if (result != null) {
+                    return null;
+                }
+                result = token.toString();
+                token.setLength(0);
+            }
+        }
+        return result;
+    }
+
+    public String getLocale() {
+        return mLocale;
+    }
+
+    public int getRowCount() {
+        return mRows.length;
+    }
+
+    /**
+     * Search the rows having a token starting with the query. Rows matching on a primary column
+     * come first ordered by rank, followed by the ones matching only on a secondary column,
+     * ordered by rank and title.
+     *
+     * @return a cursor over the result columns, or null if the query cannot be handled
+     */
+    public Cursor search(String query) {
+        if (query == null) {
+            return null;
+        }
+        final String prefix = getSingleToken(query);
+        if (prefix == null) {
+            return null;
+        }
+
+        final int[] matches = new int[mRows.length];
+        final int first = lowerBound(prefix);
+        for (int n = first; n < mTokens.length && mTokens[n].startsWith(prefix); n++) {
+            final int[] postings = mPostings[n];
+            for (int i = 0; i < postings.length; i++) {
+                matches[postings[i] >>> MATCH_BITS] |= (postings[i] & MATCH_MASK);
+            }
+        }
+
+        final List<Integer> primary = new ArrayList<Integer>();
+        final List<Integer> secondary = new ArrayList<Integer>();
+        for (int row = 0; row < matches.length; row++) {
+            if ((matches[row] & MATCH_PRIMARY) != 0) {
+                primary.add(row);
+            } else if ((matches[row] & MATCH_SECONDARY) != 0) {
+                secondary.add(row);
+            }
+        }
+        Collections.sort(primary, mRankComparator);
+        Collections.sort(secondary, mRankAndTitleComparator);
+
+        final MatrixCursor cursor =
+                new MatrixCursor(mColumnNames, primary.size() + secondary.size());
+        for (int n = 0; n < primary.size(); n++) {
+            cursor.addRow(mRows[primary.get(n)]);
+        }
+        for (int n = 0; n < secondary.size(); n++) {
+            cursor.addRow(mRows[secondary.get(n)]);
+        }
+        return cursor;
+    }
+
+    private int lowerBound(String prefix) {
+        int low = 0;
+        int high = mTokens.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mTokens[mid].compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private final Comparator<Integer> mRankComparator = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer lhs, Integer rhs) {
+            return compareInts(mRanks[lhs], mRanks[rhs]);
+        }
+    };
+
+    private final Comparator<Integer> mRankAndTitleComparator = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer lhs, Integer rhs) {
+            final int result = compareInts(mRanks[lhs], mRanks[rhs]);
+            if (result != 0) {
+                return result;
+            }
+            final String lhsTitle = mTitles[lhs];
+            final String rhsTitle = mTitles[rhs];
+            if (lhsTitle == null || rhsTitle == null) {
+                return (lhsTitle == null) ? ((rhsTitle == null) ? 0 : -1) : 1;
+            }
+            return lhsTitle.compareTo(rhsTitle);
+        }
+    };
+
+    private static int compareInts(int lhs, int rhs) {
+        return (lhs < rhs) ? -1 : ((lhs == rhs) ? 0 : 1);
+    }
+
+    /**
+     * Growable posting list of a token while building the index.
+     */
+    private static class PostingsBuilder {
+        private int[] mEntries = EMPTY_POSTINGS;
+        private int mSize;
+
+        public void add(int row, int match) {
+            // Rows are added in order, so the same row can only be the last one
+            if (mSize > 0 && (mEntries[mSize - 1] >>> MATCH_BITS) == row) {
+                mEntries[mSize - 1] |= match;
+                return;
+            }
+            if (mSize == mEntries.length) {
+                mEntries = Arrays.copyOf(mEntries, Math.max(4, mSize * 2));
+            }
+            mEntries[mSize++] = (row << MATCH_BITS) | match;
+        }
+
+        public int[] toArray() {
+            return Arrays.copyOf(mEntries, mSize);
+        }
+    }
+}
@@ -32,6 +32,8 @@ import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.CancellationSignal;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
@@ -48,13 +50,20 @@ import java.io.IOException;
 import java.lang.reflect.Field;
 import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
@@ -84,6 +93,7 @@ import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INT
 
 import static com.android.settings.search.IndexDatabaseHelper.Tables;
 import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.SourceFingerprintsColumns;
 
 public class Index {
 
@@ -141,7 +151,7 @@ public class Index {
     };
 
     // Max number of saved search queries (who will be used for proposing suggestions)
-    private static long MAX_SAVED_SEARCH_QUERY = 64;
+    private static final int MAX_SAVED_SEARCH_QUERY = 64;
     // Max number of proposed suggestions
     private static final int MAX_PROPOSED_SUGGESTIONS = 5;
 
@@ -160,6 +170,15 @@ public class Index {
 
     private static final List<String> EMPTY_LIST = Collections.<String>emptyList();
 
+    private static final String SOURCE_TYPE_RESOURCE = "res";
+    private static final String SOURCE_TYPE_RAW = "raw";
+    private static final String SOURCE_TYPE_PROVIDER_RAW = "praw";
+    private static final char SOURCE_KEY_SEPARATOR = '|';
+
+    // Max number of sources being parsed ahead of the Index database writer
+    private static final int MAX_PENDING_INDEX_JOBS =
+            2 * Runtime.getRuntime().availableProcessors();
+
     private static Index sInstance;
 
     private static final Pattern REMOVE_DIACRITICALS_PATTERN
@@ -172,20 +191,32 @@ public class Index {
         public List<SearchIndexableData> dataToUpdate;
         public List<SearchIndexableData> dataToDelete;
         public Map<String, List<String>> nonIndexableKeys;
+        // The data returned by the providers, and the packages whose provider answered
+        public Set<SearchIndexableData> providerData;
+        public Set<String> providerPackages;
 
         public boolean forceUpdate = false;
+        public boolean fullUpdate = false;
 
         public UpdateData() {
             dataToUpdate = new ArrayList<SearchIndexableData>();
             dataToDelete = new ArrayList<SearchIndexableData>();
             nonIndexableKeys = new HashMap<String, List<String>>();
+            providerData = Collections.newSetFromMap(
+                    new IdentityHashMap<SearchIndexableData, Boolean>());
+            providerPackages = new HashSet<String>();
         }
 
         public UpdateData(UpdateData other) {
             dataToUpdate = new ArrayList<SearchIndexableData>(other.dataToUpdate);
             dataToDelete = new ArrayList<SearchIndexableData>(other.dataToDelete);
             nonIndexableKeys = new HashMap<String, List<String>>(other.nonIndexableKeys);
+            providerData = Collections.newSetFromMap(
+                    new IdentityHashMap<SearchIndexableData, Boolean>());
+            providerData.addAll(other.providerData);
+            providerPackages = new HashSet<String>(other.providerPackages);
             forceUpdate = other.forceUpdate;
+            fullUpdate = other.fullUpdate;
         }
 
         public UpdateData copy() {
@@ -196,7 +227,46 @@ public class Index {
             dataToUpdate.clear();
             dataToDelete.clear();
             nonIndexableKeys.clear();
+            providerData.clear();
+            providerPackages.clear();
             forceUpdate = false;
+            fullUpdate = false;
+        }
+    }
+
+    /**
+     * A private class to describe what has been indexed for a given source of indexable data
+     */
+    private static class SourceFingerprint {
+        public final String packageName;
+        public final String packageVersion;
+        public final String fingerprint;
+
+        public SourceFingerprint(String packageName, String packageVersion, String fingerprint) {
+            this.packageName = packageName;
+            this.packageVersion = packageVersion;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * A private class describing a source that needs to be indexed, and the rows produced for it
+     */
+    private static class IndexJob {
+        public final SearchIndexableData data;
+        public final String sourceKey;
+        public final String packageName;
+        public final String packageVersion;
+        public final String fingerprint;
+        public FutureTask<List<IndexRowWriter.Row>> rows;
+
+        public IndexJob(SearchIndexableData data, String sourceKey, String packageName,
+                String packageVersion, String fingerprint) {
+            this.data = data;
+            this.sourceKey = sourceKey;
+            this.packageName = packageName;
+            this.packageVersion = packageVersion;
+            this.fingerprint = fingerprint;
         }
     }
 
@@ -204,6 +274,11 @@ public class Index {
     private final UpdateData mDataToProcess = new UpdateData();
     private Context mContext;
     private final String mBaseAuthority;
+    private final IndexDatabaseHelper mDatabaseHelper;
+
+    private volatile boolean mInMemorySearchEnabled = true;
+    private volatile InMemoryIndex mInMemoryIndex;
+    private SavedQueryStore mSavedQueryStore;
 
     /**
      * A basic singleton
@@ -218,8 +293,16 @@ public class Index {
     }
 
     public Index(Context context, String baseAuthority) {
+        this(context, baseAuthority, null);
+    }
+
+    /**
+     * @param databaseHelper the helper of the Index database, or null for the default one
+     */
+    Index(Context context, String baseAuthority, IndexDatabaseHelper databaseHelper) {
         mContext = context;
         mBaseAuthority = baseAuthority;
+        mDatabaseHelper = databaseHelper;
     }
 
     public void setContext(Context context) {
@@ -230,13 +313,40 @@ public class Index {
         return mIsAvailable.get();
     }
 
+    /**
+     * Enable or disable answering search queries from an in-memory copy of the Index. When
+     * enabled, the copy is (re)loaded after each update of the Index.
+     */
+    public void setInMemorySearchEnabled(boolean enabled) {
+        mInMemorySearchEnabled = enabled;
+        if (!enabled) {
+            mInMemoryIndex = null;
+        }
+    }
+
     public Cursor search(String query) {
+        return search(query, null);
+    }
+
+    /**
+     * @param cancellationSignal a signal to cancel the operation in progress, or null if none
+     */
+    public Cursor search(String query, CancellationSignal cancellationSignal) {
+        final InMemoryIndex inMemoryIndex = mInMemoryIndex;
+        if (mInMemorySearchEnabled && inMemoryIndex != null &&
+                inMemoryIndex.getLocale().equals(Locale.getDefault().toString())) {
+            final Cursor cursor = inMemoryIndex.search(query);
+            if (cursor != null) {
+                return cursor;
+            }
+        }
+
         final SQLiteDatabase database = getReadableDatabase();
         final Cursor[] cursors = new Cursor[2];
 
         final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
         Log.d(LOG_TAG, "Search primary query: " + primarySql);
-        cursors[0] = database.rawQuery(primarySql, null);
+        cursors[0] = database.rawQuery(primarySql, null, cancellationSignal);
 
         // We need to use an EXCEPT operator as negate MATCH queries do not work.
         StringBuilder sql = new StringBuilder(
@@ -246,55 +356,68 @@ public class Index {
 
         final String secondarySql = sql.toString();
         Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
-        cursors[1] = database.rawQuery(secondarySql, null);
+        try {
+            cursors[1] = database.rawQuery(secondarySql, null, cancellationSignal);
+        } catch (RuntimeException e) {
+            cursors[0].close();
+            throw e;
+        }
 
         return new MergeCursor(cursors);
     }
 
     public Cursor getSuggestions(String query) {
-        final String sql = buildSuggestionsSQL(query);
-        Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
+        return getSuggestions(query, null);
     }
 
-    private String buildSuggestionsSQL(String query) {
-        StringBuilder sb = new StringBuilder();
+    /**
+     * @param cancellationSignal a signal to cancel the operation in progress, or null if none
+     */
+    public Cursor getSuggestions(String query, CancellationSignal cancellationSignal) {
+        return getSavedQueryStore().getSuggestions(query, cancellationSignal);
+    }
 
-        sb.append("SELECT ");
-        sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-        sb.append(" FROM ");
-        sb.append(Tables.TABLE_SAVED_QUERIES);
+    private void loadInMemoryIndex(SQLiteDatabase database, String localeStr) {
+        final long current = System.currentTimeMillis();
 
-        if (TextUtils.isEmpty(query)) {
-            sb.append(" ORDER BY rowId DESC");
-        } else {
-            sb.append(" WHERE ");
-            sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-            sb.append(" LIKE ");
-            sb.append("'");
-            sb.append(query);
-            sb.append("%");
-            sb.append("'");
+        final String[] projection = InMemoryIndex.getProjection(SELECT_COLUMNS,
+                MATCH_COLUMNS_PRIMARY, MATCH_COLUMNS_SECONDARY);
+        final Cursor cursor = database.query(Tables.TABLE_PREFS_INDEX, projection,
+                IndexColumns.LOCALE + " = ? AND " + IndexColumns.ENABLED + " = 1",
+                new String[] { localeStr }, null, null, null);
+        final InMemoryIndex inMemoryIndex;
+        try {
+            inMemoryIndex = InMemoryIndex.build(localeStr, cursor, SELECT_COLUMNS,
+                    MATCH_COLUMNS_PRIMARY, MATCH_COLUMNS_SECONDARY, IndexColumns.DATA_RANK,
+                    IndexColumns.DATA_TITLE);
+        } finally {
+            cursor.close();
+        }
+        if (mInMemorySearchEnabled) {
+            mInMemoryIndex = inMemoryIndex;
         }
 
-        sb.append(" LIMIT ");
-        sb.append(MAX_PROPOSED_SUGGESTIONS);
+        final long now = System.currentTimeMillis();
+        Log.d(LOG_TAG, "Loading in-memory Index for locale '" + localeStr + "' took " +
+                (now - current) + " millis (" + inMemoryIndex.getRowCount() + " rows)");
+    }
 
-        return sb.toString();
+    /**
+     * Save a Search query for proposing it as a suggestion. This does not wait for the query to
+     * be written to the database.
+     *
+     * @return the future row id of the saved query
+     */
+    public Future<Long> addSavedQuery(String query) {
+        return getSavedQueryStore().add(query);
     }
 
-    public long addSavedQuery(String query){
-        final SaveSearchQueryTask task = new SaveSearchQueryTask();
-        task.execute(query);
-        try {
-            return task.get();
-        } catch (InterruptedException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1 ;
-        } catch (ExecutionException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1;
+    private synchronized SavedQueryStore getSavedQueryStore() {
+        if (mSavedQueryStore == null) {
+            mSavedQueryStore = new SavedQueryStore(getDatabaseHelper(), MAX_SAVED_SEARCH_QUERY,
+                    MAX_PROPOSED_SUGGESTIONS);
         }
+        return mSavedQueryStore;
     }
 
     public void update() {
@@ -311,10 +434,19 @@ public class Index {
             final String authority = info.providerInfo.authority;
             final String packageName = info.providerInfo.packageName;
 
-            addIndexablesFromRemoteProvider(packageName, authority);
+            if (addIndexablesFromRemoteProvider(packageName, authority)) {
+                synchronized (mDataToProcess) {
+                    mDataToProcess.providerPackages.add(packageName);
+                }
+            }
             addNonIndexablesKeysFromRemoteProvider(packageName, authority);
         }
 
+        // All the well known providers have been queried, so any source of a package whose
+        // provider answered that is not part of this update can be removed from the Index.
+        synchronized (mDataToProcess) {
+            mDataToProcess.fullUpdate = true;
+        }
         updateInternal();
     }
 
@@ -326,13 +458,14 @@ public class Index {
                     mContext : mContext.createPackageContext(packageName, 0);
 
             final Uri uriForResources = buildUriForXmlResources(authority);
-            addIndexablesForXmlResourceUri(context, packageName, uriForResources,
-                    SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS, baseRank);
+            final boolean resourcesAdded = addIndexablesForXmlResourceUri(context, packageName,
+                    uriForResources, SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS,
+                    baseRank);
 
             final Uri uriForRawData = buildUriForRawData(authority);
-            addIndexablesForRawDataUri(context, packageName, uriForRawData,
-                    SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank);
-            return true;
+            final boolean rawDataAdded = addIndexablesForRawDataUri(context, packageName,
+                    uriForRawData, SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank);
+            return resourcesAdded && rawDataAdded;
         } catch (PackageManager.NameNotFoundException e) {
             Log.w(LOG_TAG, "Could not create context for " + packageName + ": "
                     + Log.getStackTraceString(e));
@@ -394,6 +527,13 @@ public class Index {
         }
     }
 
+    private void addProviderIndexableData(SearchIndexableData data) {
+        synchronized (mDataToProcess) {
+            mDataToProcess.dataToUpdate.add(data);
+            mDataToProcess.providerData.add(data);
+        }
+    }
+
     public void addIndexableData(SearchIndexableResource[] array) {
         synchronized (mDataToProcess) {
             final int count = array.length;
@@ -495,12 +635,17 @@ public class Index {
         updateInternal();
     }
 
+    private IndexDatabaseHelper getDatabaseHelper() {
+        return (mDatabaseHelper != null) ?
+                mDatabaseHelper : IndexDatabaseHelper.getInstance(mContext);
+    }
+
     private SQLiteDatabase getReadableDatabase() {
-        return IndexDatabaseHelper.getInstance(mContext).getReadableDatabase();
+        return getDatabaseHelper().getReadableDatabase();
     }
 
     private SQLiteDatabase getWritableDatabase() {
-        return IndexDatabaseHelper.getInstance(mContext).getWritableDatabase();
+        return getDatabaseHelper().getWritableDatabase();
     }
 
     private static Uri buildUriForXmlResources(String authority) {
@@ -518,7 +663,11 @@ public class Index {
                 SearchIndexablesContract.NON_INDEXABLES_KEYS_PATH);
     }
 
-    private void updateInternal() {
+    /**
+     * Process the data added so far. Unless forced, only the sources that have changed since
+     * they were last indexed are indexed again.
+     */
+    void updateInternal() {
         synchronized (mDataToProcess) {
             final UpdateIndexTask task = new UpdateIndexTask();
             UpdateData copy = mDataToProcess.copy();
@@ -527,7 +676,7 @@ public class Index {
         }
     }
 
-    private void addIndexablesForXmlResourceUri(Context packageContext, String packageName,
+    private boolean addIndexablesForXmlResourceUri(Context packageContext, String packageName,
             Uri uri, String[] projection, int baseRank) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
@@ -535,7 +684,7 @@ public class Index {
 
         if (cursor == null) {
             Log.w(LOG_TAG, "Cannot add index data for Uri: " + uri.toString());
-            return;
+            return false;
         }
 
         try {
@@ -566,15 +715,16 @@ public class Index {
                     sir.intentTargetPackage = targetPackage;
                     sir.intentTargetClass = targetClass;
 
-                    addIndexableData(sir);
+                    addProviderIndexableData(sir);
                 }
             }
+            return true;
         } finally {
             cursor.close();
         }
     }
 
-    private void addIndexablesForRawDataUri(Context packageContext, String packageName,
+    private boolean addIndexablesForRawDataUri(Context packageContext, String packageName,
             Uri uri, String[] projection, int baseRank) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
@@ -582,7 +732,7 @@ public class Index {
 
         if (cursor == null) {
             Log.w(LOG_TAG, "Cannot add index data for Uri: " + uri.toString());
-            return;
+            return false;
         }
 
         try {
@@ -629,9 +779,10 @@ public class Index {
                     data.key = key;
                     data.userId = userId;
 
-                    addIndexableData(data);
+                    addProviderIndexableData(data);
                 }
             }
+            return true;
         } finally {
             cursor.close();
         }
@@ -694,23 +845,25 @@ public class Index {
         return sb.toString();
     }
 
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
-            SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
+    private void indexOneSearchIndexableData(List<IndexRowWriter.Row> rows, String localeStr,
+            SearchIndexableData data, Map<String, List<String>> nonIndexableKeys,
+            String sourceKey) {
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            indexOneResource(rows, localeStr, (SearchIndexableResource) data, nonIndexableKeys,
+                    sourceKey);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            indexOneRaw(rows, localeStr, (SearchIndexableRaw) data, sourceKey);
         }
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
-                             SearchIndexableRaw raw) {
+    private void indexOneRaw(List<IndexRowWriter.Row> rows, String localeStr,
+                             SearchIndexableRaw raw, String sourceKey) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(rows, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -725,7 +878,8 @@ public class Index {
                 raw.intentTargetClass,
                 raw.enabled,
                 raw.key,
-                raw.userId);
+                raw.userId,
+                sourceKey);
     }
 
     private static boolean isIndexableClass(final Class<?> clazz) {
@@ -743,8 +897,9 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
-            SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
+    private void indexOneResource(List<IndexRowWriter.Row> rows, String localeStr,
+            SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource,
+            String sourceKey) {
 
         if (sir == null) {
             Log.e(LOG_TAG, "Cannot index a null resource!");
@@ -759,10 +914,10 @@ public class Index {
                 nonIndexableKeys.addAll(resNonIndxableKeys);
             }
 
-            indexFromResource(sir.context, database, localeStr,
+            indexFromResource(sir.context, rows, localeStr,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
-                    nonIndexableKeys);
+                    nonIndexableKeys, sourceKey);
         } else {
             if (TextUtils.isEmpty(sir.className)) {
                 Log.w(LOG_TAG, "Cannot index an empty Search Provider name!");
@@ -785,8 +940,8 @@ public class Index {
                     nonIndexableKeys.addAll(providerNonIndexableKeys);
                 }
 
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
-                        sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
+                indexFromProvider(mContext, rows, localeStr, provider, sir.className,
+                        sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys, sourceKey);
             }
         }
     }
@@ -811,10 +966,10 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromResource(Context context, List<IndexRowWriter.Row> rows, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
-           List<String> nonIndexableKeys) {
+           List<String> nonIndexableKeys, String sourceKey) {
 
         XmlResourceParser parser = null;
         try {
@@ -851,10 +1006,10 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(rows, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
-                        key, -1 /* default user id */);
+                        key, -1 /* default user id */, sourceKey);
             }
 
             while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
@@ -883,10 +1038,10 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
-                            true, key, -1 /* default user id */);
+                            true, key, -1 /* default user id */, sourceKey);
                 } else {
                     String summaryOn = getDataSummaryOn(context, attrs);
                     String summaryOff = getDataSummaryOff(context, attrs);
@@ -895,10 +1050,10 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
-                            true, key, -1 /* default user id */);
+                            true, key, -1 /* default user id */, sourceKey);
                 }
             }
 
@@ -911,9 +1066,9 @@ public class Index {
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromProvider(Context context, List<IndexRowWriter.Row> rows, String localeStr,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
-            boolean enabled, List<String> nonIndexableKeys) {
+            boolean enabled, List<String> nonIndexableKeys, String sourceKey) {
 
         if (provider == null) {
             Log.w(LOG_TAG, "Cannot find provider: " + className);
@@ -936,7 +1091,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(rows, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -951,7 +1106,8 @@ public class Index {
                         raw.intentTargetClass,
                         raw.enabled,
                         raw.key,
-                        raw.userId);
+                        raw.userId,
+                        sourceKey);
             }
         }
 
@@ -972,20 +1128,20 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                indexFromResource(context, rows, localeStr,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
-                        item.intentTargetClass, nonIndexableKeys);
+                        item.intentTargetClass, nonIndexableKeys, sourceKey);
             }
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(List<IndexRowWriter.Row> rows, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
             String intentAction, String intentTargetPackage, String intentTargetClass,
-            boolean enabled, String key, int userId) {
+            boolean enabled, String key, int userId, String sourceKey) {
 
         final String updatedTitle = normalizeHyphen(title);
         final String updatedSummaryOn = normalizeHyphen(summaryOn);
@@ -995,12 +1151,12 @@ public class Index {
         final String normalizedSummaryOn = normalizeString(updatedSummaryOn);
         final String normalizedSummaryOff = normalizeString(updatedSummaryOff);
 
-        updateOneRow(database, locale,
+        updateOneRow(rows, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries,
                 className, screenTitle, iconResId,
                 rank, keywords, intentAction, intentTargetPackage, intentTargetClass, enabled,
-                key, userId);
+                key, userId, sourceKey);
     }
 
     private static String normalizeHyphen(String input) {
@@ -1014,47 +1170,42 @@ public class Index {
         return REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale,
+    private void updateOneRow(List<IndexRowWriter.Row> rows, String locale,
             String updatedTitle, String normalizedTitle,
             String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries,
             String className, String screenTitle, int iconResId, int rank, String keywords,
             String intentAction, String intentTargetPackage, String intentTargetClass,
-            boolean enabled, String key, int userId) {
+            boolean enabled, String key, int userId, String sourceKey) {
 
         if (TextUtils.isEmpty(updatedTitle)) {
             return;
         }
 
-        // The DocID should contains more than the title string itself (you may have two settings
-        // with the same title). So we need to use a combination of the title and the screenTitle.
-        StringBuilder sb = new StringBuilder(updatedTitle);
-        sb.append(screenTitle);
-        int docId = sb.toString().hashCode();
-
-        ContentValues values = new ContentValues();
-        values.put(IndexColumns.DOCID, docId);
-        values.put(IndexColumns.LOCALE, locale);
-        values.put(IndexColumns.DATA_RANK, rank);
-        values.put(IndexColumns.DATA_TITLE, updatedTitle);
-        values.put(IndexColumns.DATA_TITLE_NORMALIZED, normalizedTitle);
-        values.put(IndexColumns.DATA_SUMMARY_ON, updatedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED, normalizedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_OFF, updatedSummaryOff);
-        values.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, normalizedSummaryOff);
-        values.put(IndexColumns.DATA_ENTRIES, entries);
-        values.put(IndexColumns.DATA_KEYWORDS, keywords);
-        values.put(IndexColumns.CLASS_NAME, className);
-        values.put(IndexColumns.SCREEN_TITLE, screenTitle);
-        values.put(IndexColumns.INTENT_ACTION, intentAction);
-        values.put(IndexColumns.INTENT_TARGET_PACKAGE, intentTargetPackage);
-        values.put(IndexColumns.INTENT_TARGET_CLASS, intentTargetClass);
-        values.put(IndexColumns.ICON, iconResId);
-        values.put(IndexColumns.ENABLED, enabled);
-        values.put(IndexColumns.DATA_KEY_REF, key);
-        values.put(IndexColumns.USER_ID, userId);
-
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        final IndexRowWriter.Row row = IndexRowWriter.Row.obtain();
+        row.docId = IndexRowWriter.getDocId(updatedTitle, screenTitle);
+        row.locale = locale;
+        row.rank = rank;
+        row.title = updatedTitle;
+        row.normalizedTitle = normalizedTitle;
+        row.summaryOn = updatedSummaryOn;
+        row.normalizedSummaryOn = normalizedSummaryOn;
+        row.summaryOff = updatedSummaryOff;
+        row.normalizedSummaryOff = normalizedSummaryOff;
+        row.entries = entries;
+        row.keywords = keywords;
+        row.className = className;
+        row.screenTitle = screenTitle;
+        row.intentAction = intentAction;
+        row.intentTargetPackage = intentTargetPackage;
+        row.intentTargetClass = intentTargetClass;
+        row.iconResId = iconResId;
+        row.enabled = enabled;
+        row.key = key;
+        row.userId = userId;
+        row.sourceKey = sourceKey;
+
+        rows.add(row);
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1145,6 +1296,104 @@ public class Index {
         }
    }
 
+    private String getSourcePackageName(SearchIndexableData data) {
+        return (data.packageName != null) ? data.packageName : mContext.getPackageName();
+    }
+
+    /**
+     * The key identifying a source of indexable data. All the rows produced by a source are
+     * tagged with this key so that they can be replaced when the source has changed. A raw
+     * data is keyed by the docid of its row, so that each title of a screen is replaced on its
+     * own, and data sharing the same key are told apart by
+     * {@link UpdateIndexTask#processDataToUpdate} with their rank among them. Raw data coming
+     * from a provider has its own type, as only those can be removed by a full update.
+     */
+    private String getSourceKey(SearchIndexableData data, boolean fromProvider) {
+        final StringBuilder sb = new StringBuilder();
+        if (data instanceof SearchIndexableResource) {
+            final SearchIndexableResource sir = (SearchIndexableResource) data;
+            sb.append(SOURCE_TYPE_RESOURCE);
+            sb.append(SOURCE_KEY_SEPARATOR);
+            sb.append(getSourcePackageName(data));
+            sb.append(SOURCE_KEY_SEPARATOR);
+            sb.append(sir.className);
+            sb.append(SOURCE_KEY_SEPARATOR);
+            sb.append(sir.xmlResId);
+        } else {
+            sb.append(fromProvider ? SOURCE_TYPE_PROVIDER_RAW : SOURCE_TYPE_RAW);
+            sb.append(SOURCE_KEY_SEPARATOR);
+            sb.append(getSourcePackageName(data));
+            sb.append(SOURCE_KEY_SEPARATOR);
+            sb.append(data.className);
+            sb.append(SOURCE_KEY_SEPARATOR);
+            sb.append(data.key);
+            if (data instanceof SearchIndexableRaw) {
+                final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+                sb.append(SOURCE_KEY_SEPARATOR);
+                sb.append(IndexRowWriter.getDocId(String.valueOf(raw.title), raw.screenTitle));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The fingerprint of the content of a source of indexable data. Package updates are tracked
+     * separately by {@link #getPackageVersion(String, Map)}.
+     */
+    private static String getSourceFingerprint(SearchIndexableData data,
+            List<String> nonIndexableKeys) {
+        final int hash;
+        if (data instanceof SearchIndexableRaw) {
+            final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+            hash = Arrays.hashCode(new Object[] {
+                    raw.rank, raw.enabled, raw.iconResId, raw.userId, raw.className, raw.key,
+                    raw.intentAction, raw.intentTargetPackage, raw.intentTargetClass,
+                    raw.title, raw.summaryOn, raw.summaryOff, raw.entries, raw.keywords,
+                    raw.screenTitle, nonIndexableKeys });
+        } else {
+            final int xmlResId = (data instanceof SearchIndexableResource) ?
+                    ((SearchIndexableResource) data).xmlResId : 0;
+            hash = Arrays.hashCode(new Object[] {
+                    data.rank, data.enabled, data.iconResId, data.userId, data.className,
+                    data.key, data.intentAction, data.intentTargetPackage,
+                    data.intentTargetClass, xmlResId, nonIndexableKeys });
+        }
+        return Integer.toHexString(hash);
+    }
+
+    /**
+     * The version of a package as seen by the Index: its version code and last update time. The
+     * packages coming with the system image are also bound to the build, as their resources can
+     * change with an OTA without any version code change.
+     *
+     * @return the package version or an empty string if the package is no more installed
+     */
+    private String getPackageVersion(String packageName, Map<String, String> cache) {
+        String version = cache.get(packageName);
+        if (version != null) {
+            return version;
+        }
+        try {
+            final PackageInfo info =
+                    mContext.getPackageManager().getPackageInfo(packageName, 0);
+            final StringBuilder sb = new StringBuilder();
+            sb.append(info.versionCode);
+            sb.append(SOURCE_KEY_SEPARATOR);
+            sb.append(info.lastUpdateTime);
+            final int flags = info.applicationInfo.flags;
+            if ((flags & ApplicationInfo.FLAG_SYSTEM) != 0 &&
+                    (flags & ApplicationInfo.FLAG_UPDATED_SYSTEM_APP) == 0) {
+                sb.append(SOURCE_KEY_SEPARATOR);
+                sb.append(Build.VERSION.INCREMENTAL);
+            }
+            version = sb.toString();
+        } catch (PackageManager.NameNotFoundException e) {
+            version = EMPTY;
+        }
+        cache.put(packageName, version);
+        return version;
+    }
+
     /**
      * A private class for updating the Index database
      */
@@ -1167,58 +1416,273 @@ public class Index {
             final List<SearchIndexableData> dataToUpdate = params[0].dataToUpdate;
             final List<SearchIndexableData> dataToDelete = params[0].dataToDelete;
             final Map<String, List<String>> nonIndexableKeys = params[0].nonIndexableKeys;
+            final Set<SearchIndexableData> providerData = params[0].providerData;
+            final Set<String> providerPackages = params[0].providerPackages;
 
             final boolean forceUpdate = params[0].forceUpdate;
+            final boolean fullUpdate = params[0].fullUpdate;
 
             final SQLiteDatabase database = getWritableDatabase();
             final String localeStr = Locale.getDefault().toString();
 
+            boolean changed = (dataToDelete.size() > 0);
+            // Number of rows written to the Index database between two commits
+            final int batchSize = mContext.getResources().getInteger(
+                    R.integer.config_searchIndexWriterBatchSize);
+            final IndexRowWriter writer = new IndexRowWriter(database, batchSize);
             try {
-                database.beginTransaction();
+                writer.begin();
                 if (dataToDelete.size() > 0) {
                     processDataToDelete(database, localeStr, dataToDelete);
                 }
                 if (dataToUpdate.size() > 0) {
-                    processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
-                            forceUpdate);
+                    changed |= processDataToUpdate(database, writer, localeStr, dataToUpdate,
+                            nonIndexableKeys, providerData, providerPackages, forceUpdate,
+                            fullUpdate);
                 }
-                database.setTransactionSuccessful();
+                writer.commit();
             } finally {
-                database.endTransaction();
+                writer.close();
+            }
+
+            final InMemoryIndex inMemoryIndex = mInMemoryIndex;
+            if (mInMemorySearchEnabled && (changed || inMemoryIndex == null ||
+                    !inMemoryIndex.getLocale().equals(localeStr))) {
+                try {
+                    loadInMemoryIndex(database, localeStr);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Cannot load in-memory Index for locale: " + localeStr, e);
+                    mInMemoryIndex = null;
+                }
             }
 
             return null;
         }
 
-        private boolean processDataToUpdate(SQLiteDatabase database, String localeStr,
-                List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
-                boolean forceUpdate) {
-
-            if (!forceUpdate && isLocaleAlreadyIndexed(database, localeStr)) {
-                Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
-                return true;
-            }
+        /**
+         * Parse the sources that need to be indexed on the {@link AsyncTask#THREAD_POOL_EXECUTOR}
+         * and write the produced rows from this thread, as it is the one owning the writer
+         * transaction. Rows are written in the order of the sources so that the result is the
+         * same as a serial indexing.
+         *
+         * @return true if the Index content has changed
+         */
+        private boolean processDataToUpdate(SQLiteDatabase database, IndexRowWriter writer,
+                String localeStr, List<SearchIndexableData> dataToUpdate,
+                Map<String, List<String>> nonIndexableKeys, Set<SearchIndexableData> providerData,
+                Set<String> providerPackages, boolean forceUpdate, boolean fullUpdate) {
 
             boolean result = false;
             final long current = System.currentTimeMillis();
 
+            final Map<String, SourceFingerprint> fingerprints =
+                    getSourceFingerprints(database, localeStr);
+            final Map<String, String> packageVersions = new HashMap<String, String>();
+            final Set<String> sourceKeys = new HashSet<String>();
+            final Map<String, Integer> sourceKeyCounts = new HashMap<String, Integer>();
+            final List<IndexJob> jobs = new ArrayList<IndexJob>();
+
             final int count = dataToUpdate.size();
             for (int n = 0; n < count; n++) {
                 final SearchIndexableData data = dataToUpdate.get(n);
-                try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG,
-                            "Cannot index: " + data.className + " for locale: " + localeStr, e);
+                if (data == null) {
+                    continue;
+                }
+                String sourceKey = getSourceKey(data, providerData.contains(data));
+                final Integer sameKeyCount = sourceKeyCounts.get(sourceKey);
+                sourceKeyCounts.put(sourceKey, sameKeyCount != null ? sameKeyCount + 1 : 1);
+                if (sameKeyCount != null) {
+                    sourceKey = sourceKey + SOURCE_KEY_SEPARATOR + sameKeyCount;
+                }
+                final String packageName = getSourcePackageName(data);
+                final String packageVersion = getPackageVersion(packageName, packageVersions);
+                final String fingerprint =
+                        getSourceFingerprint(data, nonIndexableKeys.get(packageName));
+                sourceKeys.add(sourceKey);
+
+                final SourceFingerprint known = fingerprints.get(sourceKey);
+                if (!forceUpdate && known != null && packageVersion.equals(known.packageVersion)
+                        && fingerprint.equals(known.fingerprint)) {
+                    continue;
+                }
+                jobs.add(new IndexJob(data, sourceKey, packageName, packageVersion,
+                        fingerprint));
+            }
+
+            int indexedCount = 0;
+            try {
+                final int jobCount = jobs.size();
+                int submittedCount = 0;
+                for (int n = 0; n < jobCount; n++) {
+                    while (submittedCount < jobCount &&
+                            submittedCount - n < MAX_PENDING_INDEX_JOBS) {
+                        submitIndexJob(jobs.get(submittedCount++), localeStr, nonIndexableKeys);
+                    }
+
+                    final IndexJob job = jobs.get(n);
+                    final List<IndexRowWriter.Row> rows;
+                    try {
+                        rows = job.rows.get();
+                    } catch (ExecutionException e) {
+                        Log.e(LOG_TAG, "Cannot index: " + job.data.className + " for locale: " +
+                                localeStr, e.getCause());
+                        continue;
+                    } catch (InterruptedException e) {
+                        Log.w(LOG_TAG, "Interrupted while indexing locale: " + localeStr);
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+
+                    try {
+                        deleteSource(database, localeStr, job.sourceKey);
+                        final int rowCount = rows.size();
+                        for (int i = 0; i < rowCount; i++) {
+                            writer.write(rows.get(i));
+                        }
+                        saveSourceFingerprint(database, localeStr, job.sourceKey,
+                                job.packageName, job.packageVersion, job.fingerprint);
+                        indexedCount++;
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "Cannot index: " + job.data.className + " for locale: " +
+                                localeStr, e);
+                    }
+                }
+            } finally {
+                for (int n = 0; n < jobs.size(); n++) {
+                    final FutureTask<List<IndexRowWriter.Row>> rows = jobs.get(n).rows;
+                    if (rows != null) {
+                        rows.cancel(false);
+                    }
                 }
             }
 
+            if (fullUpdate) {
+                result |= removeStaleSources(database, localeStr, fingerprints, sourceKeys,
+                        providerPackages);
+            }
+            result |= (indexedCount > 0);
+
             final long now = System.currentTimeMillis();
             Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
-                    (now - current) + " millis");
+                    (now - current) + " millis (" + indexedCount + " out of " + count +
+                    " sources indexed, " + writer.getWrittenCount() + " rows written)");
             return result;
         }
 
+        private void submitIndexJob(final IndexJob job, final String localeStr,
+                final Map<String, List<String>> nonIndexableKeys) {
+            job.rows = new FutureTask<List<IndexRowWriter.Row>>(
+                    new Callable<List<IndexRowWriter.Row>>() {
+                @Override
+                public List<IndexRowWriter.Row> call() throws Exception {
+                    final List<IndexRowWriter.Row> rows = new ArrayList<IndexRowWriter.Row>();
+                    indexOneSearchIndexableData(rows, localeStr, job.data, nonIndexableKeys,
+                            job.sourceKey);
+                    return rows;
+                }
+            });
+            try {
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(job.rows);
+            } catch (RejectedExecutionException e) {
+                // The pool is saturated: do the work on the writer thread
+                job.rows.run();
+            }
+        }
+
+        /**
+         * Remove the sources that have been indexed previously from a provider but are not part
+         * of a full update anymore. Only the packages whose provider answered are considered,
+         * and raw data added at runtime is left alone, as it is never part of a full update.
+         *
+         * @return true if any source has been removed
+         */
+        private boolean removeStaleSources(SQLiteDatabase database, String localeStr,
+                Map<String, SourceFingerprint> fingerprints, Set<String> sourceKeys,
+                Set<String> providerPackages) {
+            final String resourcePrefix = SOURCE_TYPE_RESOURCE + SOURCE_KEY_SEPARATOR;
+            final String providerRawPrefix = SOURCE_TYPE_PROVIDER_RAW + SOURCE_KEY_SEPARATOR;
+            boolean result = false;
+            for (Map.Entry<String, SourceFingerprint> entry : fingerprints.entrySet()) {
+                final String sourceKey = entry.getKey();
+                if (!sourceKey.startsWith(resourcePrefix)
+                        && !sourceKey.startsWith(providerRawPrefix)) {
+                    continue;
+                }
+                if (!sourceKeys.contains(sourceKey)
+                        && providerPackages.contains(entry.getValue().packageName)) {
+                    Log.d(LOG_TAG, "Removing stale source: " + sourceKey);
+                    deleteSource(database, localeStr, sourceKey);
+                    deleteSourceFingerprint(database, localeStr, sourceKey);
+                    result = true;
+                }
+            }
+            return result;
+        }
+
+        private Map<String, SourceFingerprint> getSourceFingerprints(SQLiteDatabase database,
+                String localeStr) {
+            final Map<String, SourceFingerprint> result =
+                    new HashMap<String, SourceFingerprint>();
+            final String[] columns = new String[] {
+                    SourceFingerprintsColumns.SOURCE_KEY,
+                    SourceFingerprintsColumns.PACKAGE,
+                    SourceFingerprintsColumns.PACKAGE_VERSION,
+                    SourceFingerprintsColumns.FINGERPRINT
+            };
+            final Cursor cursor = database.query(Tables.TABLE_SOURCE_FINGERPRINTS, columns,
+                    SourceFingerprintsColumns.LOCALE + " = ?", new String[] { localeStr },
+                    null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getString(0), new SourceFingerprint(cursor.getString(1),
+                            cursor.getString(2), cursor.getString(3)));
+                }
+            } finally {
+                cursor.close();
+            }
+            return result;
+        }
+
+        private void saveSourceFingerprint(SQLiteDatabase database, String localeStr,
+                String sourceKey, String packageName, String packageVersion, String fingerprint) {
+            final ContentValues values = new ContentValues();
+            values.put(SourceFingerprintsColumns.SOURCE_KEY, sourceKey);
+            values.put(SourceFingerprintsColumns.LOCALE, localeStr);
+            values.put(SourceFingerprintsColumns.PACKAGE, packageName);
+            values.put(SourceFingerprintsColumns.PACKAGE_VERSION, packageVersion);
+            values.put(SourceFingerprintsColumns.FINGERPRINT, fingerprint);
+
+            database.replaceOrThrow(Tables.TABLE_SOURCE_FINGERPRINTS, null, values);
+        }
+
+        private int deleteSourceFingerprint(SQLiteDatabase database, String localeStr,
+                String sourceKey) {
+            return database.delete(Tables.TABLE_SOURCE_FINGERPRINTS,
+                    SourceFingerprintsColumns.SOURCE_KEY + " = ? AND " +
+                            SourceFingerprintsColumns.LOCALE + " = ?",
+                    new String[] { sourceKey, localeStr });
+        }
+
+        /**
+         * Delete the fingerprints of a source and of the sources sharing its key.
+         */
+        private int deleteSourceFingerprints(SQLiteDatabase database, String localeStr,
+                String sourceKey) {
+            final String prefix = sourceKey + SOURCE_KEY_SEPARATOR;
+            return database.delete(Tables.TABLE_SOURCE_FINGERPRINTS,
+                    "(" + SourceFingerprintsColumns.SOURCE_KEY + " = ? OR substr(" +
+                            SourceFingerprintsColumns.SOURCE_KEY + ", 1, ?) = ?) AND " +
+                            SourceFingerprintsColumns.LOCALE + " = ?",
+                    new String[] { sourceKey, Integer.toString(prefix.length()), prefix,
+                            localeStr });
+        }
+
+        private int deleteSource(SQLiteDatabase database, String localeStr, String sourceKey) {
+            return database.delete(Tables.TABLE_PREFS_INDEX,
+                    IndexColumns.SOURCE_KEY + " = ? AND " + IndexColumns.LOCALE + " = ?",
+                    new String[] { sourceKey, localeStr });
+        }
+
         private boolean processDataToDelete(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToDelete) {
 
@@ -1231,6 +1695,11 @@ public class Index {
                 if (data == null) {
                     continue;
                 }
+                // Make sure the source will be indexed again on the next update
+                deleteSourceFingerprints(database, localeStr, getSourceKey(data, false));
+                if (data instanceof SearchIndexableRaw) {
+                    deleteSourceFingerprints(database, localeStr, getSourceKey(data, true));
+                }
                 if (!TextUtils.isEmpty(data.className)) {
                     delete(database, IndexColumns.CLASS_NAME, data.className);
                 } else  {
@@ -1255,66 +1724,5 @@ public class Index {
 
             return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
         }
-
-        private boolean isLocaleAlreadyIndexed(SQLiteDatabase database, String locale) {
-            Cursor cursor = null;
-            boolean result = false;
-            final StringBuilder sb = new StringBuilder(IndexColumns.LOCALE);
-            sb.append(" = ");
-            DatabaseUtils.appendEscapedSQLString(sb, locale);
-            try {
-                // We care only for 1 row
-                cursor = database.query(Tables.TABLE_PREFS_INDEX, null,
-                        sb.toString(), null, null, null, null, "1");
-                final int count = cursor.getCount();
-                result = (count >= 1);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
-            }
-            return result;
-        }
-    }
-
-    /**
-     * A basic AsyncTask for saving a Search query into the database
-     */
-    private class SaveSearchQueryTask extends AsyncTask<String, Void, Long> {
-
-        @Override
-        protected Long doInBackground(String... params) {
-            final long now = new Date().getTime();
-
-            final ContentValues values = new ContentValues();
-            values.put(IndexDatabaseHelper.SavedQueriesColums.QUERY, params[0]);
-            values.put(IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP, now);
-
-            final SQLiteDatabase database = getWritableDatabase();
-
-            long lastInsertedRowId = -1;
-            try {
-                // First, delete all saved queries that are the same
-                database.delete(Tables.TABLE_SAVED_QUERIES,
-                        IndexDatabaseHelper.SavedQueriesColums.QUERY + " = ?",
-                        new String[] { params[0] });
-
-                // Second, insert the saved query
-                lastInsertedRowId =
-                        database.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
-
-                // Last, remove "old" saved queries
-                final long delta = lastInsertedRowId - MAX_SAVED_SEARCH_QUERY;
-                if (delta > 0) {
-                    int count = database.delete(Tables.TABLE_SAVED_QUERIES, "rowId <= ?",
-                            new String[] { Long.toString(delta) });
-                    Log.d(LOG_TAG, "Deleted '" + count + "' saved Search query(ies)");
-                }
-            } catch (Exception e) {
-                Log.d(LOG_TAG, "Cannot update saved Search queries", e);
-            }
-
-            return lastInsertedRowId;
-        }
     }
 }
@@ -28,12 +28,13 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 115;
+    private static final int DATABASE_VERSION = 116;
 
     public interface Tables {
         public static final String TABLE_PREFS_INDEX = "prefs_index";
         public static final String TABLE_META_INDEX = "meta_index";
         public static final String TABLE_SAVED_QUERIES = "saved_queries";
+        public static final String TABLE_SOURCE_FINGERPRINTS = "source_fingerprints";
     }
 
     public interface IndexColumns {
@@ -57,6 +58,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String ENABLED = "enabled";
         public static final String DATA_KEY_REF = "data_key_reference";
         public static final String USER_ID = "user_id";
+        public static final String SOURCE_KEY = "source_key";
     }
 
     public interface MetaColumns {
@@ -68,6 +70,14 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String TIME_STAMP = "timestamp";
     }
 
+    public interface SourceFingerprintsColumns {
+        public static final String SOURCE_KEY = "source_key";
+        public static final String LOCALE = "locale";
+        public static final String PACKAGE = "package";
+        public static final String PACKAGE_VERSION = "package_version";
+        public static final String FINGERPRINT = "fingerprint";
+    }
+
     private static final String CREATE_INDEX_TABLE =
             "CREATE VIRTUAL TABLE " + Tables.TABLE_PREFS_INDEX + " USING fts4" +
                     "(" +
@@ -108,6 +118,8 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     IndexColumns.DATA_KEY_REF +
                     ", " +
                     IndexColumns.USER_ID +
+                    ", " +
+                    IndexColumns.SOURCE_KEY +
                     ");";
 
     private static final String CREATE_META_TABLE =
@@ -124,10 +136,30 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     SavedQueriesColums.TIME_STAMP + " INTEGER" +
                     ")";
 
+    private static final String CREATE_SOURCE_FINGERPRINTS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_SOURCE_FINGERPRINTS +
+                    "(" +
+                    SourceFingerprintsColumns.SOURCE_KEY + " TEXT NOT NULL" +
+                    ", " +
+                    SourceFingerprintsColumns.LOCALE + " TEXT NOT NULL" +
+                    ", " +
+                    SourceFingerprintsColumns.PACKAGE + " TEXT" +
+                    ", " +
+                    SourceFingerprintsColumns.PACKAGE_VERSION + " TEXT" +
+                    ", " +
+                    SourceFingerprintsColumns.FINGERPRINT + " TEXT NOT NULL" +
+                    ", " +
+                    "PRIMARY KEY (" + SourceFingerprintsColumns.SOURCE_KEY + ", " +
+                    SourceFingerprintsColumns.LOCALE + ")" +
+                    ")";
+
     private static final String INSERT_BUILD_VERSION =
             "INSERT INTO " + Tables.TABLE_META_INDEX +
                     " VALUES ('" + Build.VERSION.INCREMENTAL + "');";
 
+    private static final String DELETE_BUILD_VERSION =
+            "DELETE FROM " + Tables.TABLE_META_INDEX + ";";
+
     private static final String SELECT_BUILD_VERSION =
             "SELECT " + MetaColumns.BUILD + " FROM " + Tables.TABLE_META_INDEX + " LIMIT 1;";
 
@@ -141,7 +173,14 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     }
 
     public IndexDatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * @param name the name of the database file, for using another database than the default one
+     */
+    IndexDatabaseHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
     }
 
     @Override
@@ -153,6 +192,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_INDEX_TABLE);
         db.execSQL(CREATE_META_TABLE);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
+        db.execSQL(CREATE_SOURCE_FINGERPRINTS_TABLE);
         db.execSQL(INSERT_BUILD_VERSION);
         Log.i(TAG, "Bootstrapped database");
     }
@@ -164,9 +204,10 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         Log.i(TAG, "Using schema version: " + db.getVersion());
 
         if (!Build.VERSION.INCREMENTAL.equals(getBuildVersion(db))) {
-            Log.w(TAG, "Index needs to be rebuilt as build-version is not the same");
-            // We need to drop the tables and recreate them
-            reconstruct(db);
+            // The source fingerprints of the packages coming with the system image include the
+            // build version, so only the sources that actually changed will be re-indexed.
+            Log.w(TAG, "Index needs to be refreshed as build-version is not the same");
+            updateBuildVersion(db);
         } else {
             Log.i(TAG, "Index is fine");
         }
@@ -195,6 +236,17 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         bootstrapDB(db);
     }
 
+    private void updateBuildVersion(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL(DELETE_BUILD_VERSION);
+            db.execSQL(INSERT_BUILD_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     private String getBuildVersion(SQLiteDatabase db) {
         String version = null;
         Cursor cursor = null;
@@ -219,5 +271,6 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SOURCE_FINGERPRINTS);
     }
 }
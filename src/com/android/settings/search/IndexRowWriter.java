@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+
+/**
+ * Batch writer for the rows of the Index database.
+ *
+ * Rows are inserted through a single compiled statement with positional bindings, and the
+ * writer transaction is committed every N rows so that readers are not blocked for the whole
+ * duration of an Index build. Rows are pooled, see {@link Row#obtain()}.
+ *
+ * A writer must be used from one thread only: the one that called {@link #begin()}.
+ */
+class IndexRowWriter {
+
+    // If you change the order of columns here, you SHOULD change the bindings in write()
+    private static final String INSERT_ROW_SQL =
+            "INSERT OR REPLACE INTO " + Tables.TABLE_PREFS_INDEX + "(" +
+                    IndexColumns.DOCID + ", " +                        // 1
+                    IndexColumns.LOCALE + ", " +                       // 2
+                    IndexColumns.DATA_RANK + ", " +                    // 3
+                    IndexColumns.DATA_TITLE + ", " +                   // 4
+                    IndexColumns.DATA_TITLE_NORMALIZED + ", " +        // 5
+                    IndexColumns.DATA_SUMMARY_ON + ", " +              // 6
+                    IndexColumns.DATA_SUMMARY_ON_NORMALIZED + ", " +   // 7
+                    IndexColumns.DATA_SUMMARY_OFF + ", " +             // 8
+                    IndexColumns.DATA_SUMMARY_OFF_NORMALIZED + ", " +  // 9
+                    IndexColumns.DATA_ENTRIES + ", " +                 // 10
+                    IndexColumns.DATA_KEYWORDS + ", " +                // 11
+                    IndexColumns.CLASS_NAME + ", " +                   // 12
+                    IndexColumns.SCREEN_TITLE + ", " +                 // 13
+                    IndexColumns.INTENT_ACTION + ", " +                // 14
+                    IndexColumns.INTENT_TARGET_PACKAGE + ", " +        // 15
+                    IndexColumns.INTENT_TARGET_CLASS + ", " +          // 16
+                    IndexColumns.ICON + ", " +                         // 17
+                    IndexColumns.ENABLED + ", " +                      // 18
+                    IndexColumns.DATA_KEY_REF + ", " +                 // 19
+                    IndexColumns.USER_ID + ", " +                      // 20
+                    IndexColumns.SOURCE_KEY +                          // 21
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * One row of the Index database.
+     */
+    static class Row {
+        private static final int MAX_POOL_SIZE = 256;
+
+        private static final Object sPoolSync = new Object();
+        private static Row sPool;
+        private static int sPoolSize = 0;
+
+        private Row next;
+
+        public int docId;
+        public String locale;
+        public int rank;
+        public String title;
+        public String normalizedTitle;
+        public String summaryOn;
+        public String normalizedSummaryOn;
+        public String summaryOff;
+        public String normalizedSummaryOff;
+        public String entries;
+        public String keywords;
+        public String className;
+        public String screenTitle;
+        public String intentAction;
+        public String intentTargetPackage;
+        public String intentTargetClass;
+        public int iconResId;
+        public boolean enabled;
+        public String key;
+        public int userId;
+        public String sourceKey;
+
+        private Row() {
+        }
+
+        /**
+         * Return a Row from the global pool, or a new one if the pool is empty. Rows are given
+         * back to the pool once written by {@link IndexRowWriter#write(Row)}.
+         */
+        public static Row obtain() {
+            synchronized (sPoolSync) {
+                if (sPool != null) {
+                    final Row row = sPool;
+                    sPool = row.next;
+                    row.next = null;
+                    sPoolSize--;
+                    return row;
+                }
+            }
+            return new Row();
+        }
+
+        void recycle() {
+            locale = null;
+            title = null;
+            normalizedTitle = null;
+            summaryOn = null;
+            normalizedSummaryOn = null;
+            summaryOff = null;
+            normalizedSummaryOff = null;
+            entries = null;
+            keywords = null;
+            className = null;
+            screenTitle = null;
+            intentAction = null;
+            intentTargetPackage = null;
+            intentTargetClass = null;
+            key = null;
+            sourceKey = null;
+
+            synchronized (sPoolSync) {
+                if (sPoolSize < MAX_POOL_SIZE) {
+                    next = sPool;
+                    sPool = this;
+                    sPoolSize++;
+                }
+            }
+        }
+    }
+
+    /**
+     * The DocID should contains more than the title string itself (you may have two settings
+     * with the same title). So we need to use a combination of the title and the screenTitle.
+     *
+     * This is the hash code of the concatenation of both strings, computed without building it.
+     */
+    static int getDocId(String title, String screenTitle) {
+        final String suffix = String.valueOf(screenTitle);
+        int hash = title.hashCode();
+        final int length = suffix.length();
+        for (int n = 0; n < length; n++) {
+            hash = 31 * hash + suffix.charAt(n);
+        }
+        return hash;
+    }
+
+    private final SQLiteDatabase mDatabase;
+    private final int mBatchSize;
+
+    private SQLiteStatement mStatement;
+    private int mPendingCount;
+    private int mWrittenCount;
+
+    /**
+     * @param database the Index database
+     * @param batchSize the number of rows after which the transaction is committed, 0 meaning
+     *                  that all the rows are committed at once by {@link #commit()}
+     */
+    public IndexRowWriter(SQLiteDatabase database, int batchSize) {
+        mDatabase = database;
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Begin the writer transaction. Any other statement executed on the database by the calling
+     * thread will be part of it.
+     */
+    public void begin() {
+        if (mStatement == null) {
+            mStatement = mDatabase.compileStatement(INSERT_ROW_SQL);
+        }
+        mDatabase.beginTransaction();
+        mPendingCount = 0;
+    }
+
+    /**
+     * Write one row and give it back to the pool.
+     */
+    public void write(Row row) {
+        final SQLiteStatement statement = mStatement;
+        try {
+            statement.clearBindings();
+            statement.bindLong(1, row.docId);
+            bindString(statement, 2, row.locale);
+            statement.bindLong(3, row.rank);
+            bindString(statement, 4, row.title);
+            bindString(statement, 5, row.normalizedTitle);
+            bindString(statement, 6, row.summaryOn);
+            bindString(statement, 7, row.normalizedSummaryOn);
+            bindString(statement, 8, row.summaryOff);
+            bindString(statement, 9, row.normalizedSummaryOff);
+            bindString(statement, 10, row.entries);
+            bindString(statement, 11, row.keywords);
+            bindString(statement, 12, row.className);
+            bindString(statement, 13, row.screenTitle);
+            bindString(statement, 14, row.intentAction);
+            bindString(statement, 15, row.intentTargetPackage);
+            bindString(statement, 16, row.intentTargetClass);
+            statement.bindLong(17, row.iconResId);
+            statement.bindLong(18, row.enabled ? 1 : 0);
+            bindString(statement, 19, row.key);
+            statement.bindLong(20, row.userId);
+            bindString(statement, 21, row.sourceKey);
+            statement.executeInsert();
+        } finally {
+            row.recycle();
+        }
+
+        mWrittenCount++;
+        if (mBatchSize > 0 && ++mPendingCount >= mBatchSize) {
+            mDatabase.setTransactionSuccessful();
+            mDatabase.endTransaction();
+            mDatabase.beginTransaction();
+            mPendingCount = 0;
+        }
+    }
+
+    /**
+     * Commit the writer transaction.
+     */
+    public void commit() {
+        mDatabase.setTransactionSuccessful();
+        mDatabase.endTransaction();
+        mPendingCount = 0;
+    }
+
+    /**
+     * Roll back whatever has not been committed yet if needed, and release the statement.
+     */
+    public void close() {
+        if (mDatabase.inTransaction()) {
+            mDatabase.endTransaction();
+        }
+        if (mStatement != null) {
+            mStatement.close();
+            mStatement = null;
+        }
+    }
+
+    /**
+     * @return the number of rows written so far
+     */
+    public int getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+}
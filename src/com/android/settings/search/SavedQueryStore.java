@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import static com.android.settings.search.IndexDatabaseHelper.SavedQueriesColums;
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+
+/**
+ * The saved Search queries, used for proposing suggestions.
+ *
+ * The most recent queries are kept in memory in a ring buffer so that suggestions never wait on
+ * the database once it has been loaded. New queries are added to it immediately and written
+ * behind on a background thread: the queries saved meanwhile are inserted in a single
+ * transaction, followed by one trim of the old ones. Their row ids are only reported once the
+ * transaction has been committed.
+ */
+class SavedQueryStore {
+
+    private static final String LOG_TAG = "SavedQueryStore";
+
+    private static final String[] SUGGESTION_COLUMNS = new String[] {
+            SavedQueriesColums.QUERY
+    };
+
+    private final IndexDatabaseHelper mDatabaseHelper;
+    private final int mMaxSavedQueries;
+    private final int mMaxSuggestions;
+
+    // The saved queries, the most recent one being at mHead - 1
+    private final String[] mRecentQueries;
+    private int mHead;
+    private int mSize;
+    private boolean mLoaded;
+    private final List<String> mQueriesSavedBeforeLoad = new ArrayList<String>();
+
+    private final List<PendingWrite> mPendingWrites = new ArrayList<PendingWrite>();
+    private Handler mWriterHandler;
+
+    private final Runnable mFlushPendingWrites = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingWrites();
+        }
+    };
+
+    public SavedQueryStore(IndexDatabaseHelper databaseHelper, int maxSavedQueries,
+            int maxSuggestions) {
+        mDatabaseHelper = databaseHelper;
+        mMaxSavedQueries = maxSavedQueries;
+        mMaxSuggestions = maxSuggestions;
+        mRecentQueries = new String[maxSavedQueries];
+    }
+
+    /**
+     * The row id of a saved query, set by the writer once the query has been committed. It is
+     * never run.
+     */
+    private static class PendingWrite extends FutureTask<Long> {
+        private static final Runnable NO_OP = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        final String query;
+        Exception insertFailure;
+        long rowId;
+
+        PendingWrite(String query) {
+            super(NO_OP, null);
+            this.query = query;
+        }
+
+        void complete(Exception transactionFailure) {
+            final Exception failure = (transactionFailure != null)
+                    ? transactionFailure : insertFailure;
+            if (failure != null) {
+                setException(failure);
+            } else {
+                set(rowId);
+            }
+        }
+    }
+
+    /**
+     * Save a query. It is immediately part of the suggestions and written to the database
+     * in the background.
+     *
+     * @return the future row id of the saved query, set once it has been committed; getting it
+     * throws an {@link java.util.concurrent.ExecutionException} if the query cannot be saved
+     */
+    public Future<Long> add(String query) {
+        final PendingWrite write = new PendingWrite(query);
+
+        synchronized (this) {
+            if (mLoaded) {
+                addRecentLocked(query);
+            } else {
+                mQueriesSavedBeforeLoad.add(query);
+            }
+            mPendingWrites.add(write);
+            if (mPendingWrites.size() == 1) {
+                getWriterHandler().post(mFlushPendingWrites);
+            }
+        }
+        return write;
+    }
+
+    /**
+     * @return a cursor over the most recent saved queries starting with the given query, or
+     * over the most recent ones if the query is empty
+     */
+    public Cursor getSuggestions(String query, CancellationSignal cancellationSignal) {
+        synchronized (this) {
+            if (mLoaded) {
+                return getSuggestionsLocked(query);
+            }
+        }
+
+        // Not loaded yet: load the saved queries in the background and ask the database
+        getWriterHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded();
+            }
+        });
+        return queryDatabase(query, cancellationSignal);
+    }
+
+    private Cursor getSuggestionsLocked(String query) {
+        final MatrixCursor cursor = new MatrixCursor(SUGGESTION_COLUMNS, mMaxSuggestions);
+        final boolean matchAll = TextUtils.isEmpty(query);
+        final int length = matchAll ? 0 : query.length();
+        int count = 0;
+        for (int n = 0; n < mSize && count < mMaxSuggestions; n++) {
+            final String saved = mRecentQueries[getIndexLocked(n)];
+            // Same as a SQL "LIKE 'query%'" on the saved query
+            if (matchAll || saved.regionMatches(true, 0, query, 0, length)) {
+                cursor.addRow(new Object[] { saved });
+                count++;
+            }
+        }
+        return cursor;
+    }
+
+    private Cursor queryDatabase(String query, CancellationSignal cancellationSignal) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ");
+        sb.append(SavedQueriesColums.QUERY);
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_SAVED_QUERIES);
+
+        String[] selectionArgs = null;
+        if (!TextUtils.isEmpty(query)) {
+            sb.append(" WHERE ");
+            sb.append(SavedQueriesColums.QUERY);
+            sb.append(" LIKE ? ESCAPE '\\'");
+            selectionArgs = new String[] { escapeLikePattern(query) + "%" };
+        }
+        sb.append(" ORDER BY rowId DESC LIMIT ");
+        sb.append(mMaxSuggestions);
+
+        return getDatabase().rawQuery(sb.toString(), selectionArgs, cancellationSignal);
+    }
+
+    private static String escapeLikePattern(String value) {
+        final StringBuilder sb = new StringBuilder(value.length());
+        for (int n = 0; n < value.length(); n++) {
+            final char c = value.charAt(n);
+            if (c == '%' || c == '_' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private void ensureLoaded() {
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+        }
+
+        final List<String> queries = new ArrayList<String>(mMaxSavedQueries);
+        Cursor cursor = null;
+        try {
+            cursor = getDatabase().query(Tables.TABLE_SAVED_QUERIES, SUGGESTION_COLUMNS,
+                    null, null, null, null, "rowId DESC", Integer.toString(mMaxSavedQueries));
+            while (cursor.moveToNext()) {
+                queries.add(cursor.getString(0));
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Cannot load saved Search queries", e);
+            return;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        synchronized (this) {
+            // Oldest first, then the queries saved meanwhile
+            for (int n = queries.size() - 1; n >= 0; n--) {
+                addRecentLocked(queries.get(n));
+            }
+            for (int n = 0; n < mQueriesSavedBeforeLoad.size(); n++) {
+                addRecentLocked(mQueriesSavedBeforeLoad.get(n));
+            }
+            mQueriesSavedBeforeLoad.clear();
+            mLoaded = true;
+        }
+    }
+
+    private void flushPendingWrites() {
+        ensureLoaded();
+
+        final List<PendingWrite> writes;
+        synchronized (this) {
+            writes = new ArrayList<PendingWrite>(mPendingWrites);
+            mPendingWrites.clear();
+        }
+        if (writes.isEmpty()) {
+            return;
+        }
+
+        final int count = writes.size();
+        Exception transactionFailure = null;
+        try {
+            final SQLiteDatabase database = getDatabase();
+            database.beginTransaction();
+            try {
+                for (int n = 0; n < count; n++) {
+                    final PendingWrite write = writes.get(n);
+                    try {
+                        write.rowId = insert(write.query);
+                    } catch (Exception e) {
+                        // Only this query is lost, the others can still be committed
+                        write.insertFailure = e;
+                    }
+                }
+                trim(database);
+                database.setTransactionSuccessful();
+            } finally {
+                // Commits, and throws if it cannot
+                database.endTransaction();
+            }
+        } catch (Exception e) {
+            Log.d(LOG_TAG, "Cannot update saved Search queries", e);
+            transactionFailure = e;
+        }
+
+        // Nothing can be reported before the commit: a failure of the trim rolls back the
+        // inserts too
+        for (int n = 0; n < count; n++) {
+            writes.get(n).complete(transactionFailure);
+        }
+    }
+
+    private long insert(String query) {
+        final SQLiteDatabase database = getDatabase();
+
+        // First, delete all saved queries that are the same
+        database.delete(Tables.TABLE_SAVED_QUERIES, SavedQueriesColums.QUERY + " = ?",
+                new String[] { query });
+
+        // Second, insert the saved query
+        final ContentValues values = new ContentValues();
+        values.put(SavedQueriesColums.QUERY, query);
+        values.put(SavedQueriesColums.TIME_STAMP, System.currentTimeMillis());
+        return database.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
+    }
+
+    private void trim(SQLiteDatabase database) {
+        // Last, remove "old" saved queries
+        final Cursor cursor = database.rawQuery("SELECT MAX(rowId) FROM " +
+                Tables.TABLE_SAVED_QUERIES, null);
+        long lastRowId = -1;
+        try {
+            if (cursor.moveToFirst()) {
+                lastRowId = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        final long delta = lastRowId - mMaxSavedQueries;
+        if (delta > 0) {
+            int count = database.delete(Tables.TABLE_SAVED_QUERIES, "rowId <= ?",
+                    new String[] { Long.toString(delta) });
+            Log.d(LOG_TAG, "Deleted '" + count + "' saved Search query(ies)");
+        }
+    }
+
+    private void addRecentLocked(String query) {
+        int previous = -1;
+        for (int n = 0; n < mSize; n++) {
+            if (mRecentQueries[getIndexLocked(n)].equals(query)) {
+                previous = n;
+                break;
+            }
+        }
+        if (previous < 0) {
+            pushLocked(query);
+            return;
+        }
+        // Move the previous occurrence to the front, keeping the order of the others
+        for (int n = previous; n > 0; n--) {
+            mRecentQueries[getIndexLocked(n)] = mRecentQueries[getIndexLocked(n - 1)];
+        }
+        mRecentQueries[getIndexLocked(0)] = query;
+    }
+
+    private void pushLocked(String query) {
+        mRecentQueries[mHead] = query;
+        mHead = (mHead + 1) % mRecentQueries.length;
+        if (mSize < mRecentQueries.length) {
+            mSize++;
+        }
+    }
+
+    /**
+     * @param n 0 for the most recent query
+     */
+    private int getIndexLocked(int n) {
+        final int length = mRecentQueries.length;
+        return (mHead - 1 - n + length) % length;
+    }
+
+    private synchronized Handler getWriterHandler() {
+        if (mWriterHandler == null) {
+            final HandlerThread thread = new HandlerThread(LOG_TAG,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mWriterHandler = new Handler(thread.getLooper());
+        }
+        return mWriterHandler;
+    }
+
+    private SQLiteDatabase getDatabase() {
+        return mDatabaseHelper.getWritableDatabase();
+    }
+}
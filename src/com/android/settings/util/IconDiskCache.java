@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.util;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The files of an on-disk cache of labels and icons, kept in the cache dir.
+ *
+ * The labels are kept in a single index file, read once, whose header holds its format and
+ * the configuration it was written for; the icons are downscaled to the app icon size and kept
+ * in one PNG file each, read only when needed. The whole cache is dropped when the locale or
+ * the density changes.
+ *
+ * Holds no state but its files: callers serialize the writes of the index themselves.
+ */
+public class IconDiskCache {
+    private static final String ICON_FILE_SUFFIX = ".png";
+
+    /**
+     * Writes the records of an index, after its header.
+     */
+    public interface IndexWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final String mTag;
+    private final Context mContext;
+    private final File mIndexFile;
+    private final File mIconsDir;
+    private final int mMagic;
+    private final int mVersion;
+    private final int mIconSize;
+
+    public IconDiskCache(Context context, String tag, String indexFileName, String iconsDirName,
+            int magic, int version) {
+        mTag = tag;
+        mContext = context;
+        mIndexFile = new File(context.getCacheDir(), indexFileName);
+        mIconsDir = new File(context.getCacheDir(), iconsDirName);
+        mMagic = magic;
+        mVersion = version;
+        mIconSize = context.getResources().getDimensionPixelSize(android.R.dimen.app_icon_size);
+    }
+
+    /**
+     * @return the key of the configuration the cached labels and icons depend on
+     */
+    public String getConfigKey() {
+        final Resources res = mContext.getResources();
+        final Locale locale = res.getConfiguration().locale;
+        return String.valueOf(locale) + "|" + res.getDisplayMetrics().densityDpi
+                + "|" + mIconSize;
+    }
+
+    /**
+     * @return the index positioned after its header, or null if it has another format or
+     * configuration
+     * @throws java.io.FileNotFoundException if nothing has been cached yet
+     */
+    public DataInputStream openIndex(String configKey) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new AtomicFile(mIndexFile).openRead()));
+        boolean success = false;
+        try {
+            if (in.readInt() != mMagic || in.readInt() != mVersion
+                    || !configKey.equals(in.readUTF())) {
+                // Other format or configuration: start again from scratch.
+                return null;
+            }
+            success = true;
+            return in;
+        } finally {
+            if (!success) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * @return true if the index has been written
+     */
+    public boolean writeIndex(String configKey, IndexWriter writer) {
+        final AtomicFile file = new AtomicFile(mIndexFile);
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(mMagic);
+            out.writeInt(mVersion);
+            out.writeUTF(configKey);
+            writer.write(out);
+            out.flush();
+            file.finishWrite(fos);
+            return true;
+        } catch (IOException e) {
+            Log.w(mTag, "Cannot write the cache index", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the cached icon of the given name, or null if it cannot be read
+     */
+    public Drawable loadIcon(String name) {
+        final Bitmap bitmap = BitmapFactory.decodeFile(getIconFile(name).getPath());
+        if (bitmap == null) {
+            return null;
+        }
+        return new BitmapDrawable(mContext.getResources(), bitmap);
+    }
+
+    /**
+     * @return true if the icon has been written under the given name
+     */
+    public boolean writeIcon(String name, Drawable icon) {
+        // Draw a copy, the icon itself may be displayed at the same time.
+        final Drawable.ConstantState state = icon.getConstantState();
+        if (state == null || (!mIconsDir.isDirectory() && !mIconsDir.mkdirs())) {
+            return false;
+        }
+        final Drawable copy = state.newDrawable(mContext.getResources());
+        final Bitmap bitmap = Bitmap.createBitmap(mIconSize, mIconSize,
+                Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        copy.setBounds(0, 0, mIconSize, mIconSize);
+        copy.draw(canvas);
+
+        final AtomicFile file = new AtomicFile(getIconFile(name));
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, fos);
+            file.finishWrite(fos);
+            return true;
+        } catch (IOException e) {
+            Log.w(mTag, "Cannot write the cached icon of " + name, e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+            return false;
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Delete the icons whose name is not in the given set.
+     */
+    public void deleteStaleIcons(Set<String> names) {
+        final File[] files = mIconsDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String fileName = file.getName();
+            if (!fileName.endsWith(ICON_FILE_SUFFIX) || !names.contains(fileName.substring(0,
+                    fileName.length() - ICON_FILE_SUFFIX.length()))) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getIconFile(String name) {
+        return new File(mIconsDir, name + ICON_FILE_SUFFIX);
+    }
+}
@@ -36,6 +36,10 @@ import android.view.View;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * {@link NetworkStatsHistory} series to render inside a {@link ChartView},
  * using {@link ChartAxis} to map into screen coordinates.
@@ -46,6 +50,90 @@ public class ChartNetworkSeriesView extends View {
 
     private static final boolean ESTIMATE_ENABLED = false;
 
+    /** Number of {@link ReducedSeries} kept, to switch back and forth between ranges. */
+    private static final int MAX_REDUCED_SERIES = 4;
+
+    private static class ReducedKey {
+        final NetworkStatsHistory stats;
+        final long start;
+        final long end;
+        final long endTime;
+        final int width;
+
+        ReducedKey(NetworkStatsHistory stats, long start, long end, long endTime, int width) {
+            this.stats = stats;
+            this.start = start;
+            this.end = end;
+            this.endTime = endTime;
+            this.width = width;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ReducedKey)) {
+                return false;
+            }
+            final ReducedKey other = (ReducedKey) o;
+            // Histories are shared and never modified once bound.
+            return stats == other.stats && start == other.start && end == other.end
+                    && endTime == other.endTime && width == other.width;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(stats);
+            result = 31 * result + (int) (start ^ (start >>> 32));
+            result = 31 * result + (int) (end ^ (end >>> 32));
+            result = 31 * result + (int) (endTime ^ (endTime >>> 32));
+            result = 31 * result + width;
+            return result;
+        }
+    }
+
+    /**
+     * Cumulative usage of a {@link NetworkStatsHistory} over a range, reduced to at most two
+     * points per horizontal pixel. Points are kept in screen coordinates horizontally but in
+     * bytes vertically, so that a change of the vertical axis, such as while dragging a sweep,
+     * only needs to map them again instead of walking all the buckets.
+     */
+    private static class ReducedSeries {
+        float[] xs = new float[64];
+        long[] values = new long[64];
+        int size;
+
+        /** Pixel column of the point at {@link #columnStart}, and following ones. */
+        int column = Integer.MIN_VALUE;
+        int columnStart;
+
+        long total;
+        long lastTime;
+        float lastX;
+
+        /**
+         * Add a point, merging it with the others of its pixel column. The series being
+         * cumulative, the minimum and maximum of a column are its first and last points.
+         */
+        void add(float x, long value) {
+            final int column = (int) x;
+            if (column == this.column && size - columnStart == 2) {
+                xs[size - 1] = x;
+                values[size - 1] = value;
+                return;
+            }
+            if (column != this.column) {
+                this.column = column;
+                columnStart = size;
+            }
+            if (size == xs.length) {
+                xs = Arrays.copyOf(xs, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            xs[size] = x;
+            values[size] = value;
+            size++;
+        }
+    }
+
     private ChartAxis mHoriz;
     private ChartAxis mVert;
 
@@ -68,6 +156,14 @@ public class ChartNetworkSeriesView extends View {
     /** Series will be extended to reach this end time. */
     private long mEndTime = Long.MIN_VALUE;
 
+    private final LinkedHashMap<ReducedKey, ReducedSeries> mReducedSeries =
+            new LinkedHashMap<ReducedKey, ReducedSeries>(MAX_REDUCED_SERIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ReducedKey, ReducedSeries> eldest) {
+            return size() > MAX_REDUCED_SERIES;
+        }
+    };
+
     private boolean mPathValid = false;
     private boolean mEstimateVisible = false;
     private boolean mSecondary = false;
@@ -142,6 +238,9 @@ public class ChartNetworkSeriesView extends View {
     }
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
+        if (mStats != stats) {
+            mReducedSeries.clear();
+        }
         mStats = stats;
         invalidatePath();
         invalidate();
@@ -183,70 +282,34 @@ public class ChartNetworkSeriesView extends View {
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
-        float lastX = 0;
-        float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
+        final ReducedKey key = new ReducedKey(mStats, mStart, mEnd, mEndTime, width);
+        ReducedSeries series = mReducedSeries.get(key);
+        if (series == null) {
+            series = reduceSeries();
+            mReducedSeries.put(key, series);
+        }
 
         // move into starting position
-        mPathStroke.moveTo(lastX, lastY);
-        mPathFill.moveTo(lastX, lastY);
-
-        // TODO: count fractional data from first bucket crossing start;
-        // currently it only accepts first full bucket.
-
-        long totalData = 0;
-
-        NetworkStatsHistory.Entry entry = null;
-
-        final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
-
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
-
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
-
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
-            if (lastTime != startTime) {
-                // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
-            }
-
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
-
-            lastX = endX;
-            lastY = endY;
-            lastTime = endTime;
+        mPathStroke.moveTo(0, height);
+        mPathFill.moveTo(0, height);
+
+        for (int i = 0; i < series.size; i++) {
+            final float x = series.xs[i];
+            final float y = mVert.convertToPoint(series.values[i]);
+            mPathStroke.lineTo(x, y);
+            mPathFill.lineTo(x, y);
         }
 
-        // when data falls short, extend to requested end time
-        if (lastTime < mEndTime) {
-            lastX = mHoriz.convertToPoint(mEndTime);
-
-            mPathStroke.lineTo(lastX, lastY);
-            mPathFill.lineTo(lastX, lastY);
-        }
+        long totalData = series.total;
+        long lastTime = series.lastTime;
+        float lastX = series.lastX;
+        float lastY = series.size > 0 ? mVert.convertToPoint(totalData) : height;
 
         if (LOGD) {
             final RectF bounds = new RectF();
             mPathFill.computeBounds(bounds, true);
             Log.d(TAG, "onLayout() rendered with bounds=" + bounds.toString() + " and totalData="
-                    + totalData);
+                    + totalData + " from " + series.size + " points");
         }
 
         // drop to bottom of graph from current location
@@ -263,7 +326,8 @@ public class ChartNetworkSeriesView extends View {
             final long bucketDuration = mStats.getBucketDuration();
 
             // long window is average over two weeks
-            entry = mStats.getValues(lastTime - WEEK_IN_MILLIS * 2, lastTime, now, entry);
+            NetworkStatsHistory.Entry entry = mStats.getValues(
+                    lastTime - WEEK_IN_MILLIS * 2, lastTime, now, null);
             final long longWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
                     / entry.bucketDuration;
 
@@ -291,6 +355,64 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    /**
+     * Walk the buckets of the bound {@link NetworkStatsHistory} within the current bounds,
+     * accumulating their usage into a {@link ReducedSeries}.
+     */
+    private ReducedSeries reduceSeries() {
+        final ReducedSeries series = new ReducedSeries();
+
+        float lastX = 0;
+        long lastTime = mHoriz.convertToValue(lastX);
+
+        // TODO: count fractional data from first bucket crossing start;
+        // currently it only accepts first full bucket.
+
+        long totalData = 0;
+
+        NetworkStatsHistory.Entry entry = null;
+
+        final int start = mStats.getIndexBefore(mStart);
+        final int end = mStats.getIndexAfter(mEnd);
+        for (int i = start; i <= end; i++) {
+            entry = mStats.getValues(i, entry);
+
+            final long startTime = entry.bucketStart;
+            final long endTime = startTime + entry.bucketDuration;
+
+            final float startX = mHoriz.convertToPoint(startTime);
+            final float endX = mHoriz.convertToPoint(endTime);
+
+            // skip until we find first stats on screen
+            if (endX < 0) continue;
+
+            if (lastTime != startTime) {
+                // gap in buckets; line to start of current bucket
+                series.add(startX, totalData);
+            }
+
+            // increment by current bucket total
+            totalData += entry.rxBytes + entry.txBytes;
+
+            // always draw to end of current bucket
+            series.add(endX, totalData);
+
+            lastX = endX;
+            lastTime = endTime;
+        }
+
+        // when data falls short, extend to requested end time
+        if (lastTime < mEndTime) {
+            lastX = mHoriz.convertToPoint(mEndTime);
+            series.add(lastX, totalData);
+        }
+
+        series.total = totalData;
+        series.lastTime = lastTime;
+        series.lastX = lastX;
+        return series;
+    }
+
     public void setEndTime(long endTime) {
         mEndTime = endTime;
     }
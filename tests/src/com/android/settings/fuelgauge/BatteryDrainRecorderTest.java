@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+import android.util.SparseLongArray;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Round trips of the battery drain log: records appended then read back, recovery from a
+ * record which could not be written completely, and dropping of the old records.
+ */
+@SmallTest
+public class BatteryDrainRecorderTest extends AndroidTestCase {
+
+    private static final long RETENTION_MS = 2 * DateUtils.DAY_IN_MILLIS;
+    private static final long T0 = 1400000000000L;
+
+    private static final double DELTA = 1e-9;
+
+    private File mDir;
+    private BatteryDrainRecorder mRecorder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "battery_drain_test");
+        deleteDir();
+        assertTrue(mDir.mkdirs());
+        mRecorder = new BatteryDrainRecorder(mDir, RETENTION_MS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDir();
+        super.tearDown();
+    }
+
+    public void testAppendAndRead() {
+        // The first sample is only kept to compare the next one with
+        mRecorder.appendLocked(T0, 1, powers(10, 100, 20, 50));
+        mRecorder.appendLocked(T0 + 60000, 1, powers(10, 150, 20, 50, 30, 5));
+        mRecorder.appendLocked(T0 + 120000, 1, powers(10, 400, 20, 70, 30, 5));
+        // New charge cycle, with the clock gone back
+        mRecorder.appendLocked(T0 + 90000, 2, powers(10, 30));
+
+        BatteryDrainRecorder.History history = mRecorder.readHistoryLocked(10);
+        assertEquals(T0, history.startTime);
+        assertHistory(history, new long[] { T0 + 60000, T0 + 120000, T0 + 90000 },
+                new double[] { 0.5, 2.5, 0.3 });
+        assertEquals(1, history.resetCount);
+        assertEquals(T0 + 90000, history.resetTimes[0]);
+
+        history = mRecorder.readHistoryLocked(20);
+        assertHistory(history, new long[] { T0 + 120000 }, new double[] { 0.2 });
+        assertEquals(1, history.resetCount);
+
+        assertHistory(mRecorder.readHistoryLocked(30), new long[] { T0 + 60000 },
+                new double[] { 0.05 });
+        assertHistory(mRecorder.readHistoryLocked(99), new long[0], new double[0]);
+    }
+
+    public void testIncompleteRecordIsOverwritten() throws Exception {
+        mRecorder.appendLocked(T0, 1, powers(10, 100));
+        mRecorder.appendLocked(T0 + 60000, 1, powers(10, 150));
+        mRecorder.appendLocked(T0 + 120000, 1, powers(10, 250));
+
+        // Start of a record whose write was interrupted: a varint missing its last byte
+        final FileOutputStream out = new FileOutputStream(getLogFile(), true);
+        try {
+            out.write(new byte[] { (byte) 0x85, (byte) 0x80 });
+        } finally {
+            out.close();
+        }
+        assertHistory(mRecorder.readHistoryLocked(10), new long[] { T0 + 60000, T0 + 120000 },
+                new double[] { 0.5, 1.0 });
+
+        mRecorder.appendLocked(T0 + 180000, 1, powers(10, 400));
+        assertHistory(mRecorder.readHistoryLocked(10),
+                new long[] { T0 + 60000, T0 + 120000, T0 + 180000 },
+                new double[] { 0.5, 1.0, 1.5 });
+    }
+
+    public void testTruncatedLogIsRecovered() throws Exception {
+        mRecorder.appendLocked(T0, 1, powers(10, 100));
+        mRecorder.appendLocked(T0 + 60000, 1, powers(10, 150));
+        mRecorder.appendLocked(T0 + 120000, 1, powers(10, 250));
+
+        // Lose the last byte of the last record
+        final RandomAccessFile file = new RandomAccessFile(getLogFile(), "rw");
+        try {
+            file.setLength(file.length() - 1);
+        } finally {
+            file.close();
+        }
+        assertHistory(mRecorder.readHistoryLocked(10), new long[] { T0 + 60000 },
+                new double[] { 0.5 });
+
+        // The state is ahead of the log: the next sample is only kept for comparison
+        mRecorder.appendLocked(T0 + 180000, 1, powers(10, 400));
+        mRecorder.appendLocked(T0 + 240000, 1, powers(10, 450));
+        assertHistory(mRecorder.readHistoryLocked(10), new long[] { T0 + 60000, T0 + 240000 },
+                new double[] { 0.5, 0.5 });
+    }
+
+    public void testCompact() {
+        final long hour = DateUtils.HOUR_IN_MILLIS;
+        final long day = DateUtils.DAY_IN_MILLIS;
+        mRecorder.appendLocked(T0, 1, powers(10, 100));
+        mRecorder.appendLocked(T0 + hour, 1, powers(10, 200));
+        mRecorder.appendLocked(T0 + day, 1, powers(10, 300));
+        mRecorder.appendLocked(T0 + 2 * day, 1, powers(10, 450));
+        final long lengthBefore = getLogFile().length();
+
+        // More than a day past the retention: the log is rewritten from the cutoff
+        mRecorder.appendLocked(T0 + 3 * day + hour, 1, powers(10, 600));
+        final long cutoff = T0 + 3 * day + hour - RETENTION_MS;
+        BatteryDrainRecorder.History history = mRecorder.readHistoryLocked(10);
+        assertEquals(cutoff, history.startTime);
+        assertHistory(history, new long[] { T0 + 2 * day, T0 + 3 * day + hour },
+                new double[] { 1.5, 1.5 });
+        assertTrue(getLogFile().length() <= lengthBefore);
+
+        // Records are appended to the rewritten log
+        mRecorder.appendLocked(T0 + 3 * day + 2 * hour, 1, powers(10, 700));
+        history = mRecorder.readHistoryLocked(10);
+        assertEquals(cutoff, history.startTime);
+        assertHistory(history,
+                new long[] { T0 + 2 * day, T0 + 3 * day + hour, T0 + 3 * day + 2 * hour },
+                new double[] { 1.5, 1.5, 1.0 });
+    }
+
+    private static void assertHistory(BatteryDrainRecorder.History history, long[] times,
+            double[] drains) {
+        assertEquals(times.length, history.size);
+        for (int i = 0; i < times.length; i++) {
+            assertEquals("Time of entry " + i, times[i], history.times[i]);
+            assertEquals("Drain of entry " + i, drains[i], history.drains[i], DELTA);
+        }
+    }
+
+    /**
+     * @param uidsAndPowers uids each followed by its total power, in hundredths of mAh
+     */
+    private static SparseLongArray powers(long... uidsAndPowers) {
+        final SparseLongArray powers = new SparseLongArray();
+        for (int i = 0; i < uidsAndPowers.length; i += 2) {
+            powers.put((int) uidsAndPowers[i], uidsAndPowers[i + 1]);
+        }
+        return powers;
+    }
+
+    private File getLogFile() {
+        return new File(mDir, BatteryDrainRecorder.LOG_FILE_NAME);
+    }
+
+    private void deleteDir() {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.os.AsyncTask;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the single term queries answered by the in-memory Index give the same results as
+ * the ones answered by the database.
+ */
+@MediumTest
+public class InMemoryIndexTest extends InstrumentationTestCase {
+
+    private static final String DATABASE_NAME = "search_index_test.db";
+    private static final String AUTHORITY = "com.android.settings.test";
+
+    private static final int RAW_COUNT = 300;
+    private static final int RANK_COUNT = 5;
+
+    private static final long UPDATE_TIMEOUT_SECONDS = 60;
+
+    private static final String[] SYLLABLES = {
+            "ba", "ce", "di", "fo", "gu", "ha", "je", "ki", "lo", "mu"
+    };
+
+    private static final String[] FIXED_TITLES = {
+            "Wi-Fi", "Réseau sans fil", "Données mobiles", "VPN", "Ecran", "Écran"
+    };
+
+    private static final String[] QUERIES = {
+            "b", "ba", "bace", "BaCe", "z", "1", "12", "199",
+            "wi", "WI", "fi", "fil", "r", "ré", "réseau", "don", "vpn", "e", "é", "écran"
+    };
+
+    private Context mContext;
+    private IndexDatabaseHelper mDatabaseHelper;
+    private Index mIndex;
+    private Random mRandom;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDatabaseHelper = new IndexDatabaseHelper(mContext, DATABASE_NAME);
+        mIndex = new Index(mContext, AUTHORITY, mDatabaseHelper);
+        mRandom = new Random(42);
+
+        for (int n = 0; n < RAW_COUNT; n++) {
+            mIndex.addIndexableData(createRaw(createSentence(3) + " " + n, n));
+        }
+        for (int n = 0; n < FIXED_TITLES.length; n++) {
+            mIndex.addIndexableData(createRaw(FIXED_TITLES[n], RAW_COUNT + n));
+        }
+        processAndWait();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabaseHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testSameResultsAsDatabase() throws Exception {
+        final List<String> queries = new ArrayList<String>();
+        Collections.addAll(queries, QUERIES);
+        for (int n = 0; n < 50; n++) {
+            final String word = createWord();
+            queries.add(word.substring(0, 1 + mRandom.nextInt(word.length())));
+        }
+
+        final List<List<String>> inMemoryResults = new ArrayList<List<String>>();
+        for (String query : queries) {
+            final Cursor cursor = mIndex.search(query);
+            try {
+                assertFalse("Not answered from memory: " + query, cursor instanceof MergeCursor);
+                inMemoryResults.add(readRows(cursor));
+            } finally {
+                cursor.close();
+            }
+        }
+
+        mIndex.setInMemorySearchEnabled(false);
+        for (int n = 0; n < queries.size(); n++) {
+            final String query = queries.get(n);
+            final Cursor cursor = mIndex.search(query);
+            final List<String> expected;
+            try {
+                expected = readRows(cursor);
+            } finally {
+                cursor.close();
+            }
+            assertSameRows(query, expected, inMemoryResults.get(n));
+        }
+    }
+
+    public void testMultipleTermsAreLeftToDatabase() throws Exception {
+        final Cursor cursor = mIndex.search("ba ce");
+        try {
+            assertTrue(cursor instanceof MergeCursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The database only orders the primary matches by rank: rows of the same rank may come in
+     * any order. Check that the ranks come in the same order, and that the same rows are there.
+     */
+    private static void assertSameRows(String query, List<String> expected, List<String> actual) {
+        assertEquals("Row count for '" + query + "'", expected.size(), actual.size());
+        for (int n = 0; n < expected.size(); n++) {
+            assertEquals("Rank of row " + n + " for '" + query + "'",
+                    getRank(expected.get(n)), getRank(actual.get(n)));
+        }
+        final List<String> sortedExpected = new ArrayList<String>(expected);
+        final List<String> sortedActual = new ArrayList<String>(actual);
+        Collections.sort(sortedExpected);
+        Collections.sort(sortedActual);
+        assertEquals("Rows for '" + query + "'", sortedExpected, sortedActual);
+    }
+
+    private static String getRank(String row) {
+        return row.substring(0, row.indexOf('|'));
+    }
+
+    /**
+     * @return each row as the string of its columns, starting with the rank
+     */
+    private static List<String> readRows(Cursor cursor) {
+        final List<String> rows = new ArrayList<String>(cursor.getCount());
+        final int columnCount = cursor.getColumnCount();
+        final int rankIndex = cursor.getColumnIndexOrThrow(
+                IndexDatabaseHelper.IndexColumns.DATA_RANK);
+        while (cursor.moveToNext()) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(cursor.getString(rankIndex));
+            for (int n = 0; n < columnCount; n++) {
+                sb.append('|');
+                sb.append(cursor.getString(n));
+            }
+            rows.add(sb.toString());
+        }
+        return rows;
+    }
+
+    private SearchIndexableRaw createRaw(String title, int n) {
+        final SearchIndexableRaw raw = new SearchIndexableRaw(mContext);
+        // Few ranks, so that there are many rows of the same rank
+        raw.rank = 1 + mRandom.nextInt(RANK_COUNT);
+        raw.title = title;
+        raw.summaryOn = createSentence(4);
+        raw.summaryOff = (n % 3 == 0) ? createSentence(4) : null;
+        raw.entries = (n % 5 == 0) ? createSentence(2) : null;
+        raw.keywords = createSentence(2);
+        raw.screenTitle = "Screen " + (n % 10);
+        raw.className = "com.android.settings.test.Fragment" + (n % 10);
+        raw.key = "key_" + n;
+        raw.iconResId = 0;
+        return raw;
+    }
+
+    private String createSentence(int wordCount) {
+        final StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < wordCount; n++) {
+            if (n > 0) {
+                sb.append(' ');
+            }
+            sb.append(createWord());
+        }
+        return sb.toString();
+    }
+
+    private String createWord() {
+        final StringBuilder sb = new StringBuilder();
+        final int count = 1 + mRandom.nextInt(3);
+        for (int n = 0; n < count; n++) {
+            sb.append(SYLLABLES[mRandom.nextInt(SYLLABLES.length)]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Process the data added to the Index and wait for the update to be done, and so for the
+     * in-memory Index to be loaded. Updates are run on the AsyncTask serial executor.
+     */
+    private void processAndWait() throws InterruptedException {
+        mIndex.updateInternal();
+        final CountDownLatch latch = new CountDownLatch(1);
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue("Index update timed out",
+                latch.await(UPDATE_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.provider.SearchIndexableResource;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the Search Index build and queries, using synthetic indexable data.
+ *
+ * It is a large test, left out of the runs of the small and medium tests, to be run on demand.
+ * The size of the corpus can be given as instrumentation arguments:
+ *
+ * adb shell am instrument -w -e class com.android.settings.search.IndexBenchmark \
+ *     -e rawCount 2000 -e resourceCount 200 -e iterations 50 \
+ *     com.android.settings.tests/android.test.InstrumentationTestRunner
+ *
+ * Results are logged and reported as instrumentation status.
+ */
+@LargeTest
+public class IndexBenchmark extends InstrumentationTestCase {
+
+    private static final String TAG = "IndexBenchmark";
+
+    private static final String DATABASE_NAME = "search_index_benchmark.db";
+    private static final String AUTHORITY = "com.android.settings.benchmark";
+
+    private static final int DEFAULT_RAW_COUNT = 1000;
+    private static final int DEFAULT_RESOURCE_COUNT = 100;
+    // Percentiles are meaningless over a handful of samples
+    private static final int DEFAULT_ITERATIONS = 20;
+    private static final int QUERY_COUNT = 200;
+    private static final int DELTA_PERCENT = 5;
+
+    private static final long UPDATE_TIMEOUT_SECONDS = 300;
+
+    private static final String[] SYLLABLES = {
+            "ba", "ce", "di", "fo", "gu", "ha", "je", "ki", "lo", "mu", "na", "pe", "qui", "ro",
+            "su", "ta", "ve", "wi", "xo", "zu"
+    };
+
+    private Context mContext;
+    private IndexDatabaseHelper mDatabaseHelper;
+    private Index mIndex;
+    private Random mRandom;
+
+    private int mRawCount;
+    private int mResourceCount;
+    private int mIterations;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDatabaseHelper = new IndexDatabaseHelper(mContext, DATABASE_NAME);
+        mIndex = new Index(mContext, AUTHORITY, mDatabaseHelper);
+        mRandom = new Random(42);
+
+        mRawCount = getIntArgument("rawCount", DEFAULT_RAW_COUNT);
+        mResourceCount = getIntArgument("resourceCount", DEFAULT_RESOURCE_COUNT);
+        mIterations = getIntArgument("iterations", DEFAULT_ITERATIONS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabaseHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testFullBuild() throws Exception {
+        final long[] durations = new long[mIterations];
+        long rowCount = 0;
+        long allocCount = 0;
+        for (int n = 0; n < mIterations; n++) {
+            clearIndex();
+            final List<SearchIndexableRaw> raws = createRaws(mRawCount);
+            final List<SearchIndexableResource> resources = createResources(mResourceCount);
+
+            Debug.startAllocCounting();
+            Debug.resetGlobalAllocCount();
+            final long start = SystemClock.elapsedRealtime();
+            addAll(raws, resources);
+            processAndWait();
+            durations[n] = SystemClock.elapsedRealtime() - start;
+            Debug.stopAllocCounting();
+
+            allocCount += Debug.getGlobalAllocCount();
+            rowCount += getRowCount();
+        }
+
+        assertTrue("Nothing has been indexed", rowCount > 0);
+        final Bundle results = new Bundle();
+        putPercentiles(results, "full_build_millis", durations);
+        results.putLong("rows", rowCount / mIterations);
+        results.putLong("allocations_per_row", allocCount / rowCount);
+        report("testFullBuild", results);
+    }
+
+    public void testDeltaUpdate() throws Exception {
+        final List<SearchIndexableRaw> raws = createRaws(mRawCount);
+        final List<SearchIndexableResource> resources = createResources(mResourceCount);
+        addAll(raws, resources);
+        processAndWait();
+
+        final long[] unchangedDurations = new long[mIterations];
+        final long[] deltaDurations = new long[mIterations];
+        final int changedCount = Math.max(1, raws.size() * DELTA_PERCENT / 100);
+        for (int n = 0; n < mIterations; n++) {
+            // Nothing has changed
+            long start = SystemClock.elapsedRealtime();
+            addAll(raws, resources);
+            processAndWait();
+            unchangedDurations[n] = SystemClock.elapsedRealtime() - start;
+
+            // Some of the raw data have changed
+            for (int i = 0; i < changedCount; i++) {
+                final SearchIndexableRaw raw = raws.get(mRandom.nextInt(raws.size()));
+                raw.summaryOn = createSentence(6);
+            }
+            start = SystemClock.elapsedRealtime();
+            addAll(raws, resources);
+            processAndWait();
+            deltaDurations[n] = SystemClock.elapsedRealtime() - start;
+        }
+
+        final Bundle results = new Bundle();
+        putPercentiles(results, "unchanged_update_millis", unchangedDurations);
+        putPercentiles(results, "delta_update_millis", deltaDurations);
+        results.putInt("changed_sources", changedCount);
+        report("testDeltaUpdate", results);
+    }
+
+    public void testSearch() throws Exception {
+        addAll(createRaws(mRawCount), createResources(mResourceCount));
+        processAndWait();
+
+        final String[] queries = new String[QUERY_COUNT];
+        for (int n = 0; n < queries.length; n++) {
+            final String word = createWord();
+            queries[n] = word.substring(0, 1 + mRandom.nextInt(word.length()));
+        }
+
+        final Bundle results = new Bundle();
+        putPercentiles(results, "search_in_memory_micros", measureSearch(queries));
+        mIndex.setInMemorySearchEnabled(false);
+        putPercentiles(results, "search_sql_micros", measureSearch(queries));
+        report("testSearch", results);
+    }
+
+    public void testSuggestions() throws Exception {
+        for (int n = 0; n < 64; n++) {
+            mIndex.addSavedQuery(createWord());
+        }
+        final String[] queries = new String[QUERY_COUNT];
+        for (int n = 0; n < queries.length; n++) {
+            queries[n] = SYLLABLES[mRandom.nextInt(SYLLABLES.length)];
+        }
+        // Make sure all the saved queries have been written
+        mIndex.addSavedQuery(createWord()).get(UPDATE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        final long[] durations = new long[queries.length];
+        for (int n = 0; n < queries.length; n++) {
+            final long start = System.nanoTime();
+            final Cursor cursor = mIndex.getSuggestions(queries[n]);
+            cursor.getCount();
+            cursor.close();
+            durations[n] = (System.nanoTime() - start) / 1000;
+        }
+
+        final Bundle results = new Bundle();
+        putPercentiles(results, "suggestions_micros", durations);
+        report("testSuggestions", results);
+    }
+
+    private long[] measureSearch(String[] queries) {
+        final long[] durations = new long[queries.length];
+        for (int n = 0; n < queries.length; n++) {
+            final long start = System.nanoTime();
+            final Cursor cursor = mIndex.search(queries[n]);
+            cursor.getCount();
+            cursor.close();
+            durations[n] = (System.nanoTime() - start) / 1000;
+        }
+        return durations;
+    }
+
+    private List<SearchIndexableRaw> createRaws(int count) {
+        final List<SearchIndexableRaw> raws = new ArrayList<SearchIndexableRaw>(count);
+        for (int n = 0; n < count; n++) {
+            final SearchIndexableRaw raw = new SearchIndexableRaw(mContext);
+            raw.rank = 1 + mRandom.nextInt(20);
+            raw.title = createSentence(3) + " " + n;
+            raw.summaryOn = createSentence(6);
+            raw.summaryOff = (n % 3 == 0) ? createSentence(6) : null;
+            raw.entries = (n % 5 == 0) ? createSentence(4) : null;
+            raw.keywords = createSentence(2);
+            raw.screenTitle = "Screen " + (n % 50);
+            raw.className = "com.android.settings.benchmark.Fragment" + (n % 50);
+            raw.key = "key_" + n;
+            raw.iconResId = 0;
+            raws.add(raw);
+        }
+        return raws;
+    }
+
+    private List<SearchIndexableResource> createResources(int count) {
+        final List<Integer> xmlResIds = new ArrayList<Integer>();
+        for (SearchIndexableResource res : SearchIndexableResources.values()) {
+            if (res.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
+                xmlResIds.add(res.xmlResId);
+            }
+        }
+        final List<SearchIndexableResource> resources =
+                new ArrayList<SearchIndexableResource>(count);
+        if (xmlResIds.isEmpty()) {
+            return resources;
+        }
+        for (int n = 0; n < count; n++) {
+            final SearchIndexableResource sir = new SearchIndexableResource(mContext);
+            sir.rank = 1 + mRandom.nextInt(20);
+            sir.xmlResId = xmlResIds.get(n % xmlResIds.size());
+            sir.className = "com.android.settings.benchmark.ResourceFragment" + n;
+            resources.add(sir);
+        }
+        return resources;
+    }
+
+    private String createSentence(int wordCount) {
+        final StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < wordCount; n++) {
+            if (n > 0) {
+                sb.append(' ');
+            }
+            sb.append(createWord());
+        }
+        return sb.toString();
+    }
+
+    private String createWord() {
+        final StringBuilder sb = new StringBuilder();
+        final int count = 2 + mRandom.nextInt(3);
+        for (int n = 0; n < count; n++) {
+            sb.append(SYLLABLES[mRandom.nextInt(SYLLABLES.length)]);
+        }
+        return sb.toString();
+    }
+
+    private void addAll(List<SearchIndexableRaw> raws, List<SearchIndexableResource> resources) {
+        for (int n = 0; n < raws.size(); n++) {
+            mIndex.addIndexableData(raws.get(n));
+        }
+        mIndex.addIndexableData(resources.toArray(new SearchIndexableResource[resources.size()]));
+    }
+
+    /**
+     * Process the data added to the Index and wait for the update to be done. Updates are run
+     * on the AsyncTask serial executor, so waiting for a task queued after it is enough.
+     */
+    private void processAndWait() throws InterruptedException {
+        mIndex.updateInternal();
+        final CountDownLatch latch = new CountDownLatch(1);
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue("Index update timed out",
+                latch.await(UPDATE_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private void clearIndex() {
+        mDatabaseHelper.getWritableDatabase().delete(
+                IndexDatabaseHelper.Tables.TABLE_PREFS_INDEX, null, null);
+        mDatabaseHelper.getWritableDatabase().delete(
+                IndexDatabaseHelper.Tables.TABLE_SOURCE_FINGERPRINTS, null, null);
+    }
+
+    private long getRowCount() {
+        final Cursor cursor = mDatabaseHelper.getReadableDatabase().rawQuery(
+                "SELECT COUNT(*) FROM " + IndexDatabaseHelper.Tables.TABLE_PREFS_INDEX, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void putPercentiles(Bundle results, String name, long[] values) {
+        final long[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        results.putLong(name + "_p50", getPercentile(sorted, 50));
+        results.putLong(name + "_p90", getPercentile(sorted, 90));
+        results.putLong(name + "_p99", getPercentile(sorted, 99));
+        results.putLong(name + "_max", sorted[sorted.length - 1]);
+    }
+
+    private static long getPercentile(long[] sorted, int percentile) {
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private void report(String name, Bundle results) {
+        for (String key : results.keySet()) {
+            Log.i(TAG, name + ": " + key + " = " + results.get(key));
+        }
+        getInstrumentation().sendStatus(0, results);
+    }
+
+    private int getIntArgument(String name, int defaultValue) {
+        if (!(getInstrumentation() instanceof InstrumentationTestRunner)) {
+            return defaultValue;
+        }
+        final Bundle arguments = ((InstrumentationTestRunner) getInstrumentation()).getArguments();
+        final String value = (arguments != null) ? arguments.getString(name) : null;
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}